@@ -9,17 +9,25 @@ import java.awt.RenderingHints;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.SwingUtilities;
 
 import com.id.file.File;
 import com.id.file.FilesRenameInterpreter;
+import com.id.fuzzy.FrecencyStore;
+import com.id.fuzzy.FuzzyFinderDriver;
 import com.id.platform.FileSystem;
 import com.id.platform.RealFileSystem;
 
 public class App {
   public static final StaticSettings settings = StaticSettings.fromFile(".settings");
   public static final Font FONT = loadFont();
+  private static final int LOAD_THREAD_COUNT = 4;
 
   public static void main(String[] args) {
     SwingUtilities.invokeLater(new Runnable() {
@@ -31,15 +39,59 @@ public class App {
   }
 
   private static void startApp() {
-    FileSystem fileSystem = new RealFileSystem();
+    RealFileSystem fileSystem = new RealFileSystem();
+    fileSystem.setUndoJournalDirectory(
+        new java.io.File(System.getProperty("user.home"), ".id/undo"));
+    Executor uiExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        SwingUtilities.invokeLater(command);
+      }
+    };
+    Executor loadExecutor = makeLoadExecutor();
+    fileSystem.setLoadExecutors(loadExecutor, uiExecutor);
     BashShell shell = new BashShell(null);
     File file = getFilesFile(fileSystem, shell);
-    AppParts appParts = new AppParts(fileSystem, shell, file);
+    FuzzyFinderDriver fileFinderDriver = FuzzyFinderDriver.openSaved(file,
+        new java.io.File(".files"), new java.io.File(".files.index"), loadExecutor, uiExecutor);
+    fileFinderDriver.setFrecencyStore(new FrecencyStore(new java.io.File(".files.frecency")));
+    AppParts appParts = new AppParts(fileSystem, shell, file, fileFinderDriver);
+    appParts.getFinder().setExecutors(makeFinderExecutor(), uiExecutor);
+    appParts.getEditorSettings().setHighlightExecutors(makeHighlightExecutor(), uiExecutor);
 
     appParts.showSwingView();
     appParts.openFiles();
   }
 
+  private static Executor makeHighlightExecutor() {
+    // Highlights split their lines into chunks, one task each, which idle
+    // workers steal from busy ones. The pool's threads are daemons.
+    return new ForkJoinPool();
+  }
+
+  private static Executor makeLoadExecutor() {
+    return Executors.newFixedThreadPool(LOAD_THREAD_COUNT, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "file-loader");
+        // Loads of files nobody is waiting for shouldn't keep the app alive.
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static ExecutorService makeFinderExecutor() {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "finder");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
   private static File getFilesFile(final FileSystem fileSystem,
                                    final Shell shell) {
     File file = fileSystem.getFileOrNewFile(".files");
@@ -13,6 +13,7 @@ import com.id.editor.StackList;
 import com.id.file.File;
 import com.id.file.FileView;
 import com.id.fuzzy.Finder;
+import com.id.fuzzy.FinderDriver;
 import com.id.fuzzy.FuzzyFinderDriver;
 import com.id.git.GitRepository;
 import com.id.git.Repository;
@@ -38,8 +39,14 @@ public class AppParts {
   private final Finder finder;
   private final EditorOpener editorOpener;
   private final File files;
+  private final SharedEditorSettings editorSettings;
 
   public AppParts(FileSystem fileSystem, Shell shell, File files) {
+    this(fileSystem, shell, files, new FuzzyFinderDriver(files));
+  }
+
+  public AppParts(FileSystem fileSystem, Shell shell, File files,
+      FinderDriver fileFinderDriver) {
     this.files = files;
     editorList = new EditorList();
     stackList = new StackList();
@@ -51,7 +58,7 @@ public class AppParts {
     ViewportTracker viewportTracker = new ViewportTracker(focusManager);
 
     Register register = new Register();
-    SharedEditorSettings editorSettings = new SharedEditorSettings();
+    editorSettings = new SharedEditorSettings();
     EditorFactory editorFactory = new EditorFactory(highlightState, register,
         viewportTracker, editorSettings);
     editorOpener = new EditorOpener(editorFactory, focusManager,
@@ -62,7 +69,7 @@ public class AppParts {
         minibuffer, commandExecutor, focusManager);
     controller = new Controller(editorList, fileSystem,
         finder, repository, highlightState, stackList, minibufferSubsystem,
-        commandExecutor, null, new FuzzyFinderDriver(files), focusManager,
+        commandExecutor, null, fileFinderDriver, focusManager,
         editorOpener, editorSettings);
   }
 
@@ -122,4 +129,12 @@ public class AppParts {
   public void openFiles() {
     editorOpener.openFileView(new FileView(files));
   }
+
+  public SharedEditorSettings getEditorSettings() {
+    return editorSettings;
+  }
+
+  public Finder getFinder() {
+    return finder;
+  }
 }
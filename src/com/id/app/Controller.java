@@ -1,5 +1,6 @@
 package com.id.app;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,6 +20,7 @@ import com.id.fuzzy.Finder;
 import com.id.fuzzy.FinderDriver;
 import com.id.fuzzy.SubstringFinderDriver;
 import com.id.git.Diff;
+import com.id.git.FileDelta;
 import com.id.git.Repository;
 import com.id.platform.FileSystem;
 
@@ -248,7 +250,15 @@ public class Controller implements KeyStrokeHandler {
   }
 
   public void saveFile() {
-    focusManager.getFocusedEditor().save(fileSystem);
+    try {
+      focusManager.getFocusedEditor().save(fileSystem);
+    } catch (File.LoadingException e) {
+      // Files that haven't loaded in full can't be saved over what's on disk.
+      e.printStackTrace();
+    } catch (IOException e) {
+      // The file is left modified, so it can be saved again.
+      e.printStackTrace();
+    }
   }
 
   public void showFileFinder() {
@@ -330,7 +340,7 @@ public class Controller implements KeyStrokeHandler {
 
   public void importDiffs() {
     List<String> revisions = repository.getRevisionList();
-    finder.runFindAction(new SubstringFinderDriver(new File(revisions)),
+    finder.runFindAction(new SubstringFinderDriver(revisions),
         new Finder.SelectionListener() {
       @Override
       public void onItemSelected(String item) {
@@ -342,11 +352,18 @@ public class Controller implements KeyStrokeHandler {
   public void importDiffsRelativeTo(String revision) {
     Diff diff = repository.getDiffRelativeTo(revision);
     for (String filename : diff.getModifiedFiles()) {
-      Editor editor = openFile(filename);
+      final Editor editor = openFile(filename);
       if (editor == null) {
         continue;  // Probably a deleted file.
       }
-      editor.setDiffMarkers(diff.getDelta(filename));
+      final FileDelta delta = diff.getDelta(filename);
+      // Files load in the background, so markers go on once they're in.
+      editor.whenLoaded(new Runnable() {
+        @Override
+        public void run() {
+          editor.setDiffMarkers(delta);
+        }
+      });
     }
   }
 
@@ -356,7 +373,7 @@ public class Controller implements KeyStrokeHandler {
     for (HighlightPattern pattern : previousHighlights) {
       items.add(pattern.getText());
     }
-    finder.runFindAction(new SubstringFinderDriver(new File(items)), new Finder.SelectionListener() {
+    finder.runFindAction(new SubstringFinderDriver(items), new Finder.SelectionListener() {
       @Override
       public void onItemSelected(String item) {
         highlightState.setHighlightPattern(Patterns.wholeWord(item));
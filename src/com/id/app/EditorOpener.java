@@ -42,7 +42,11 @@ public class EditorOpener implements EditorEnvironment {
     if (existingEditor != null) {
       return existingEditor;
     }
-    FileView fileView = loadFileView(filename, 0, -1);
+    FileView fileView = null;
+    File file = fileSystem.getFileAsync(filename);
+    if (file != null) {
+      fileView = new FileView(file);
+    }
     if (fileView == null && createNewFile) {
       fileView = new FileView(File.createNewFile(filename));
     }
@@ -40,6 +40,11 @@ public class HighlightPattern {
     return text.equals(p.getText()) && matchType == p.matchType;
   }
 
+  @Override
+  public int hashCode() {
+    return text.hashCode() * 31 + matchType.hashCode();
+  }
+
   public Matcher matcher(String line) {
     return pattern.matcher(line);
   }
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import com.id.editor.Closable;
 import com.id.editor.Editor;
 import com.id.editor.Focusable;
 
@@ -146,7 +147,19 @@ public class ListModel<T> implements Iterable<T>, Focusable {
     if (items.isEmpty()) {
       return;
     }
-    remove(focusedIndex);
+    close(focusedIndex);
+  }
+
+  /**
+   * Removes an item for good, closing it if it is {@link Closable}. Items
+   * that are only being moved should use {@link #remove} instead.
+   */
+  public void close(int i) {
+    T removed = get(i);
+    remove(i);
+    if (removed instanceof Closable) {
+      ((Closable) removed).close();
+    }
   }
 
   public void remove(int i) {
@@ -232,7 +245,7 @@ public class ListModel<T> implements Iterable<T>, Focusable {
       @Override
       public void remove() {
         i--;
-        ListModel.this.remove(i);
+        ListModel.this.close(i);
       }
     };
   }
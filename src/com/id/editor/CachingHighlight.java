@@ -1,163 +1,447 @@
 package com.id.editor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 
 import com.id.app.HighlightPattern;
 import com.id.file.File;
 
+/**
+ * Finds and remembers the matches of a pattern on each line. A lazy
+ * highlight only matches the lines that are painted or moved through, and
+ * matches the rest of them when it's asked for the number of matches.
+ *
+ * Matching in the background is split into chunks of lines, each its own
+ * task, so a pool of threads matches them side by side. Each chunk's
+ * matches are put in place on the UI thread as soon as it's done.
+ */
 public class CachingHighlight implements Highlight, File.Listener {
   public enum MatchKind {
     PARTIAL,
     COMPLETE,
   }
 
-  private static class Match {
-    public final int start;
-    public final int length;
-
-    public Match(int start, int length) {
-      this.start = start;
-      this.length = length;
-    }
-
-    public boolean contains(int x) {
-      return x >= start && x < start + length;
-    }
-
-    public boolean startsBefore(int x) {
-      return start < x;
-    }
+  /**
+   * The matches on a line, as columns [starts[i], ends[i]). Matches don't
+   * overlap and come in order, so both arrays are increasing and lookups
+   * are binary searches.
+   */
+  private static class LineMatches {
+    private static final int[] EMPTY = new int[0];
 
-    public boolean startsAfter(int x) {
-      return start > x;
-    }
+    private int[] starts = EMPTY;
+    private int[] ends = EMPTY;
+    private int size = 0;
 
-    @Override
-    public String toString() {
-      return "Match[" + start + ", " + length + "]";
+    public void addMatch(int start, int end) {
+      if (size == starts.length) {
+        int capacity = Math.max(2, size * 2);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+      }
+      starts[size] = start;
+      ends[size] = end;
+      size++;
     }
-  }
 
-  private static class LineMatches {
-    private final List<Match> matches = new ArrayList<Match>();
-
-    public void addMatch(Match match) {
-      matches.add(match);
+    /**
+     * Returns the index of the first match starting after x.
+     */
+    private int findFirstStartAfter(int x) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (starts[middle] > x) {
+          high = middle;
+        } else {
+          low = middle + 1;
+        }
+      }
+      return low;
     }
 
     public boolean isMatchAt(int x) {
-      for (Match match : matches) {
-        if (match.contains(x)) {
-          return true;
-        }
-      }
-      return false;
+      int i = findFirstStartAfter(x) - 1;
+      return i >= 0 && x < ends[i];
     }
 
     public int getNextMatch(int x) {
-      for (Match match : matches) {
-        if (match.startsAfter(x)) {
-          return match.start;
-        }
-      }
-      return -1;
+      int i = findFirstStartAfter(x);
+      return i < size ? starts[i] : -1;
     }
 
     public int getPreviousMatch(int x) {
-      for (int i = matches.size() - 1; i >= 0; i--) {
-        Match match = matches.get(i);
-        if (match.startsBefore(x)) {
-          return match.start;
-        }
-      }
-      return -1;
+      int i = findFirstStartAfter(x - 1) - 1;
+      return i >= 0 ? starts[i] : -1;
     }
 
     public boolean isEmpty() {
-      return matches.isEmpty();
+      return size == 0;
     }
 
     public int getFirstMatch() {
-      return matches.get(0).start;
+      return starts[0];
     }
 
     public int getLastMatch() {
-      return matches.get(matches.size() - 1).start;
+      return starts[size - 1];
+    }
+
+    public void addTo(Spans spans) {
+      for (int i = 0; i < size; i++) {
+        spans.add(starts[i], ends[i]);
+      }
     }
 
     @Override
     public String toString() {
-      return "LineMatches[" + matches + "]";
+      StringBuilder result = new StringBuilder("LineMatches[");
+      for (int i = 0; i < size; i++) {
+        result.append(i == 0 ? "" : ", ").append(starts[i]).append("-").append(ends[i]);
+      }
+      return result.append("]").toString();
     }
 
     public int getMatchCount() {
-      return matches.size();
+      return size;
     }
   }
 
+  /**
+   * The lines a lazy highlight reads from.
+   */
+  public interface Lines {
+    int getLineCount();
+    String getLine(int y);
+
+    /**
+     * Returns the lines from y on as they are now, which can be read on
+     * another thread while the lines change.
+     */
+    Iterator<String> getSnapshot(int y);
+  }
+
+  public interface Listener {
+    /**
+     * Called each time a chunk of lines matched in the background is put in
+     * place, so the matches so far can be shown.
+     */
+    void onMatchesCounted();
+  }
+
+  public static Lines linesOf(final File file) {
+    return new Lines() {
+      @Override
+      public int getLineCount() {
+        return file.getLineCount();
+      }
+
+      @Override
+      public String getLine(int y) {
+        return file.getLine(y);
+      }
+
+      @Override
+      public Iterator<String> getSnapshot(int y) {
+        return file.getLineIterator(y);
+      }
+    };
+  }
+
+  // Shared by the lines that aren't tracked, which have no matches.
+  private static final LineMatches NO_MATCHES = new LineMatches();
+  // How many unknown lines each background task matches.
+  static final int CHUNK_SIZE = 1 << 12;
+  // How many lines are matched between checks for cancellation.
+  private static final int CANCELLATION_CHECK_INTERVAL = 1 << 8;
+
   private final HighlightPattern pattern;
-  private final List<LineMatches> lineMatches = new ArrayList<LineMatches>();
+  // Null for highlights that match every line up front.
+  private final Lines lines;
+  // The lines that may have matches, in increasing order, and their
+  // matches, null where a line hasn't been matched yet. Lines that aren't
+  // tracked have no matches, so a highlight narrowed down to a few
+  // candidate lines costs as much as they do, not as much as the file.
+  private int[] lineNumbers = new int[0];
+  private LineMatches[] lineMatches = new LineMatches[0];
+  private int size = 0;
+  private int lineCount = 0;
+  private int knownMatchCount = 0;
+  private int unknownLineCount = 0;
+  // Bumped by every change to the lines, so that background matching of
+  // older lines is thrown away. Workers read it to stop early.
+  private volatile int version = 0;
+  private volatile boolean cancelled = false;
+  private int pendingChunkCount = 0;
+  private Executor workExecutor = null;
+  private Executor uiExecutor = null;
+  private final List<Listener> listeners = new ArrayList<Listener>();
 
   public static CachingHighlight forLiteralWord(String word, List<String> lines) {
     return new CachingHighlight(Patterns.wholeWord(word), lines);
   }
 
+  /**
+   * Makes a highlight that matches all the lines straight away.
+   */
   public CachingHighlight(HighlightPattern pattern, List<String> lines) {
     this.pattern = pattern;
-
+    this.lines = null;
     for (String line : lines) {
-      lineMatches.add(makeMatchFor(line));
+      LineMatches matches = makeMatchFor(line);
+      if (!matches.isEmpty()) {
+        track(lineCount, matches);
+      }
+      lineCount++;
     }
   }
 
+  /**
+   * Makes a highlight that only matches lines when they're asked about, and
+   * matches them again when they change. Counting the matches needs every
+   * line, so it's done with the executors if there are any.
+   */
+  public CachingHighlight(HighlightPattern pattern, Lines lines) {
+    this(pattern, lines, null);
+  }
+
+  /**
+   * Makes a lazy highlight that knows there are no matches on the lines
+   * missing from candidates, which are in increasing order. Null candidates
+   * means every line. Only the candidates are tracked, so making one takes
+   * as long as there are candidates.
+   */
+  public CachingHighlight(HighlightPattern pattern, Lines lines, int[] candidates) {
+    this.pattern = pattern;
+    this.lines = lines;
+    this.lineCount = lines.getLineCount();
+    if (candidates == null) {
+      for (int i = 0; i < lineCount; i++) {
+        track(i, null);
+      }
+    } else {
+      for (int candidate : candidates) {
+        track(candidate, null);
+      }
+    }
+  }
+
+  /**
+   * Makes counting the matches match the lines not known yet on
+   * workExecutor, handing the results back on uiExecutor. Without executors
+   * they're matched as soon as they're needed.
+   */
+  public void setExecutors(Executor workExecutor, Executor uiExecutor) {
+    this.workExecutor = workExecutor;
+    this.uiExecutor = uiExecutor;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
   private LineMatches makeMatchFor(String line) {
-    LineMatches matches = new LineMatches();
     if (pattern == null) {
-      return matches;
+      return new LineMatches();
     }
-    Matcher matcher = pattern.matcher(line);
+    return makeMatchFor(pattern.matcher(line));
+  }
+
+  private static LineMatches makeMatchFor(Matcher matcher) {
+    LineMatches matches = new LineMatches();
     while (matcher.find()) {
-      matches.addMatch(new Match(matcher.start(), matcher.end() - matcher.start()));
+      matches.addMatch(matcher.start(), matcher.end());
+    }
+    return matches;
+  }
+
+  /**
+   * Returns the matches for a changed line, or null for a lazy highlight,
+   * which only matches it when it's asked about.
+   */
+  private LineMatches makeMatchForChange(String line) {
+    return lines == null ? makeMatchFor(line) : null;
+  }
+
+  private void countIn(LineMatches matches, int sign) {
+    if (matches == null) {
+      unknownLineCount += sign;
+    } else {
+      knownMatchCount += sign * matches.getMatchCount();
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > lineNumbers.length) {
+      capacity = Math.max(capacity, lineNumbers.length * 2);
+      lineNumbers = Arrays.copyOf(lineNumbers, capacity);
+      lineMatches = Arrays.copyOf(lineMatches, capacity);
+    }
+  }
+
+  /**
+   * Tracks line y, which comes after all the tracked lines.
+   */
+  private void track(int y, LineMatches matches) {
+    ensureCapacity(size + 1);
+    lineNumbers[size] = y;
+    lineMatches[size] = matches;
+    size++;
+    countIn(matches, 1);
+  }
+
+  /**
+   * Returns the index of the first tracked line at or after y.
+   */
+  private int findLine(int y) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (lineNumbers[middle] >= y) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+
+  private int findTrackedLine(int y) {
+    int i = findLine(y);
+    return i < size && lineNumbers[i] == y ? i : -1;
+  }
+
+  private void setMatches(int i, LineMatches matches) {
+    countIn(lineMatches[i], -1);
+    lineMatches[i] = matches;
+    countIn(matches, 1);
+  }
+
+  /**
+   * Returns the matches of the i-th tracked line, matching it if need be.
+   */
+  private LineMatches getMatchesAt(int i) {
+    LineMatches matches = lineMatches[i];
+    if (matches == null) {
+      matches = makeMatchFor(lines.getLine(lineNumbers[i]));
+      setMatches(i, matches);
     }
     return matches;
   }
 
+  private LineMatches getLineMatches(int y) {
+    int i = findTrackedLine(y);
+    return i == -1 ? NO_MATCHES : getMatchesAt(i);
+  }
+
+  /**
+   * Replaces lines [y, y + removedCount) with the inserted ones, tracking
+   * those that may have matches. Takes as long as there are tracked lines
+   * after y.
+   */
+  private void replaceLines(int y, int removedCount, List<String> insertedLines) {
+    version++;
+    int from = findLine(y);
+    int to = findLine(y + removedCount);
+    for (int i = from; i < to; i++) {
+      countIn(lineMatches[i], -1);
+    }
+    int[] insertedNumbers = new int[insertedLines.size()];
+    LineMatches[] insertedMatches = new LineMatches[insertedLines.size()];
+    int insertedCount = 0;
+    for (int i = 0; i < insertedLines.size(); i++) {
+      LineMatches matches = makeMatchForChange(insertedLines.get(i));
+      if (matches == null || !matches.isEmpty()) {
+        insertedNumbers[insertedCount] = y + i;
+        insertedMatches[insertedCount] = matches;
+        insertedCount++;
+        countIn(matches, 1);
+      }
+    }
+    int oldSize = size;
+    int tail = size - to;
+    int tailStart = from + insertedCount;
+    if (tailStart != to) {
+      ensureCapacity(tailStart + tail);
+      System.arraycopy(lineNumbers, to, lineNumbers, tailStart, tail);
+      System.arraycopy(lineMatches, to, lineMatches, tailStart, tail);
+    }
+    System.arraycopy(insertedNumbers, 0, lineNumbers, from, insertedCount);
+    System.arraycopy(insertedMatches, 0, lineMatches, from, insertedCount);
+    size = tailStart + tail;
+    // Let go of the matches of lines that are gone.
+    Arrays.fill(lineMatches, size, Math.max(size, oldSize), null);
+    int shift = insertedLines.size() - removedCount;
+    if (shift != 0) {
+      for (int i = tailStart; i < size; i++) {
+        lineNumbers[i] += shift;
+      }
+    }
+    lineCount += shift;
+  }
+
   @Override
   public boolean isHighlighted(int y, int x) {
-    return lineMatches.get(y).isMatchAt(x);
+    return getLineMatches(y).isMatchAt(x);
+  }
+
+  @Override
+  public void getSpans(int y, Spans spans) {
+    getLineMatches(y).addTo(spans);
   }
 
   @Override
   public void onLineInserted(int y, String line) {
-    lineMatches.add(y, makeMatchFor(line));
+    replaceLines(y, 0, Collections.singletonList(line));
   }
 
   @Override
   public void onLineRemoved(int y, String line) {
-    lineMatches.remove(y);
+    replaceLines(y, 1, Collections.<String>emptyList());
   }
 
   @Override
   public void onLineChanged(int y, String oldLine, String newLine) {
-    lineMatches.set(y, makeMatchFor(newLine));
+    replaceLines(y, 1, Collections.singletonList(newLine));
+  }
+
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    replaceLines(y, removedLines.size(), insertedLines);
   }
 
   @Override
   public Point getNextMatch(int y, int x) {
-    if (lineMatches.size() <= y) {
+    return getNextMatch(y, x, lineCount);
+  }
+
+  /**
+   * Returns the next match before line end.
+   */
+  public Point getNextMatch(int y, int x, int end) {
+    if (end <= y) {
       return null;
     }
-    int n = lineMatches.get(y).getNextMatch(x);
+    int n = getLineMatches(y).getNextMatch(x);
     if (n != -1) {
       return new Point(y, n);
     }
     // No more matches on the current line so we go looking.
-    for (int i = y + 1; i < lineMatches.size(); i++) {
-      LineMatches matches = lineMatches.get(i);
+    for (int i = findLine(y + 1); i < size && lineNumbers[i] < end; i++) {
+      LineMatches matches = getMatchesAt(i);
       if (!matches.isEmpty()) {
-        return new Point(i, matches.getFirstMatch());
+        return new Point(lineNumbers[i], matches.getFirstMatch());
       }
     }
     // No more matches.
@@ -166,30 +450,204 @@ public class CachingHighlight implements Highlight, File.Listener {
 
   @Override
   public Point getPreviousMatch(int y, int x) {
-    Point point = getPreviousMatchInner(y, x);
-    return point;
+    return getPreviousMatch(y, x, 0);
   }
 
-  private Point getPreviousMatchInner(int y, int x) {
-    int n = lineMatches.get(y).getPreviousMatch(x);
+  /**
+   * Returns the previous match from line start on.
+   */
+  public Point getPreviousMatch(int y, int x, int start) {
+    int n = getLineMatches(y).getPreviousMatch(x);
     if (n != -1) {
       return new Point(y, n);
     }
-    for (int i = y - 1; i >= 0; i--) {
-      LineMatches matches = lineMatches.get(i);
+    for (int i = findLine(y) - 1; i >= 0 && lineNumbers[i] >= start; i--) {
+      LineMatches matches = getMatchesAt(i);
       if (!matches.isEmpty()) {
-        return new Point(i, matches.getLastMatch());
+        return new Point(lineNumbers[i], matches.getLastMatch());
       }
     }
     return null;
   }
 
+  /**
+   * Returns the number of matches. While lines are being matched in the
+   * background, only those known so far are counted.
+   */
   @Override
   public int getMatchCount() {
-    int result = 0;
-    for (LineMatches matches : lineMatches) {
-      result += matches.getMatchCount();
+    if (unknownLineCount > 0) {
+      if (workExecutor == null) {
+        for (int i = 0; i < size; i++) {
+          getMatchesAt(i);
+        }
+      } else {
+        matchInBackground();
+      }
+    }
+    return knownMatchCount;
+  }
+
+  /**
+   * Returns the number of matches on lines [start, end). Counting part of
+   * the lines matches them straight away.
+   */
+  public int getMatchCount(int start, int end) {
+    if (start == 0 && end == lineCount) {
+      return getMatchCount();
+    }
+    int count = 0;
+    for (int i = findLine(start); i < size && lineNumbers[i] < end; i++) {
+      count += getMatchesAt(i).getMatchCount();
+    }
+    return count;
+  }
+
+  /**
+   * Looks for a match only as far as it takes to find one.
+   */
+  @Override
+  public boolean hasMatches() {
+    for (int i = 0; knownMatchCount == 0 && unknownLineCount > 0; i++) {
+      getMatchesAt(i);
+    }
+    return knownMatchCount > 0;
+  }
+
+  public boolean hasMatches(int start, int end) {
+    for (int i = findLine(start); i < size && lineNumbers[i] < end; i++) {
+      if (!getMatchesAt(i).isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the lines that have matches or haven't been looked at yet, in
+   * increasing order.
+   */
+  public int[] getPossibleMatchLines() {
+    int[] result = new int[size];
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (lineMatches[i] == null || !lineMatches[i].isEmpty()) {
+        result[count++] = lineNumbers[i];
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  // For testing.
+  int getTrackedLineCount() {
+    return size;
+  }
+
+  /**
+   * Stops matching in the background. The highlight still works, matching
+   * lines as they're asked about.
+   */
+  @Override
+  public void cancel() {
+    cancelled = true;
+  }
+
+  private boolean isStale(int startVersion) {
+    return cancelled || version != startVersion;
+  }
+
+  private void matchInBackground() {
+    if (pendingChunkCount > 0 || cancelled) {
+      return;
+    }
+    int startVersion = version;
+    int i = 0;
+    while (true) {
+      int[] chunk = new int[Math.min(CHUNK_SIZE, unknownLineCount)];
+      int chunkSize = 0;
+      for (; i < size && chunkSize < chunk.length; i++) {
+        if (lineMatches[i] == null) {
+          chunk[chunkSize++] = lineNumbers[i];
+        }
+      }
+      if (chunkSize == 0) {
+        return;
+      }
+      pendingChunkCount++;
+      workExecutor.execute(new ChunkMatcher(Arrays.copyOf(chunk, chunkSize),
+          lines.getSnapshot(chunk[0]), startVersion));
+    }
+  }
+
+  /**
+   * Matches a chunk of unknown lines on a worker, with one matcher reset for
+   * each line, then hands them to the UI thread.
+   */
+  private class ChunkMatcher implements Runnable {
+    // In increasing order.
+    private final int[] chunkLines;
+    // From the first of the chunk's lines on.
+    private final Iterator<String> snapshot;
+    private final int startVersion;
+
+    public ChunkMatcher(int[] chunkLines, Iterator<String> snapshot, int startVersion) {
+      this.chunkLines = chunkLines;
+      this.snapshot = snapshot;
+      this.startVersion = startVersion;
+    }
+
+    @Override
+    public void run() {
+      LineMatches[] matched = new LineMatches[chunkLines.length];
+      Matcher matcher = null;
+      int y = chunkLines[0];
+      for (int i = 0; i < chunkLines.length; i++) {
+        if (i % CANCELLATION_CHECK_INTERVAL == 0 && isStale(startVersion)) {
+          matched = null;
+          break;
+        }
+        for (; y < chunkLines[i]; y++) {
+          snapshot.next();
+        }
+        String line = snapshot.next();
+        y++;
+        if (pattern == null) {
+          matched[i] = makeMatchFor(line);
+          continue;
+        }
+        matcher = matcher == null ? pattern.matcher(line) : matcher.reset(line);
+        matched[i] = makeMatchFor(matcher);
+      }
+      final LineMatches[] result = matched;
+      uiExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          onChunkMatched(chunkLines, result, startVersion);
+        }
+      });
+    }
+  }
+
+  private void onChunkMatched(int[] chunkLines, LineMatches[] matched, int startVersion) {
+    pendingChunkCount--;
+    if (cancelled) {
+      return;
+    }
+    if (matched == null || version != startVersion) {
+      // The lines changed while they were being matched.
+      if (pendingChunkCount == 0 && unknownLineCount > 0) {
+        matchInBackground();
+      }
+      return;
+    }
+    for (int i = 0; i < matched.length; i++) {
+      int index = findTrackedLine(chunkLines[i]);
+      if (index != -1 && lineMatches[index] == null) {
+        setMatches(index, matched[i]);
+      }
+    }
+    for (Listener listener : listeners) {
+      listener.onMatchesCounted();
     }
-    return result;
   }
 }
@@ -0,0 +1,9 @@
+package com.id.editor;
+
+/**
+ * Something that holds on to resources until it is closed, such as an editor
+ * registered as a view of its file.
+ */
+public interface Closable {
+  void close();
+}
@@ -1,5 +1,6 @@
 package com.id.editor;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -21,12 +22,13 @@ import com.id.git.FileDelta;
 import com.id.platform.FileSystem;
 
 public class Editor implements KeyStrokeHandler, HighlightState.Listener,
-    File.Listener, Focusable, SharedEditorSettings.Listener {
+    File.Listener, Focusable, Closable, SharedEditorSettings.Listener {
   private static final int TAB_SIZE = 2;
   private static final int DELTA_PADDING = 2;
 
   public interface Listener {
     void onSizeChanged();
+    void onHighlightChanged();
   }
 
   public interface Iterator {
@@ -110,6 +112,14 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
     public PhysicalLineIterator() {
     }
 
+    /**
+     * Starts at line y, or at the given line of its grave if graveY isn't -1.
+     */
+    public PhysicalLineIterator(int y, int graveY) {
+      this.y = y;
+      this.graveY = graveY;
+    }
+
     @Override
     public int getLineCount() {
       return getPhysicalLineCount();
@@ -348,11 +358,11 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
   }
 
   private Iterator getPhysicalLineIterator(int physicalY) {
-    PhysicalLineIterator it = new PhysicalLineIterator();
-    for (int i = 0; i < physicalY; i++) {
-      it.next();
+    int y = file.getLogicalLine(physicalY);
+    if (y >= getLineCount()) {
+      return new PhysicalLineIterator(getLineCount(), -1);
     }
-    return it;
+    return new PhysicalLineIterator(y, physicalY - getPhysicalLine(y) - 1);
   }
 
   private Iterator getLogicalLineIterator(int y) {
@@ -360,21 +370,11 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
   }
 
   private int getPhysicalLine(int logicalY) {
-    int result = 0;
-    for (int y = 0; y < logicalY; y++) {
-      result += getGrave(y).size();
-      result++;
-    }
-    return result;
+    return file.getPhysicalLine(logicalY);
   }
 
   private int getPhysicalLineCount() {
-    int result = 0;
-    for (int y = 0; y < getLineCount(); y++) {
-      result += getGrave(y).size();
-      result++;
-    }
-    return result;
+    return file.getPhysicalLineCount();
   }
 
   public int getLineCountForMode() {
@@ -419,6 +419,12 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
     }
   }
 
+  private void fireHighlightChanged() {
+    for (Listener listener : listeners) {
+      listener.onHighlightChanged();
+    }
+  }
+
   public int getRealCursorY() {
     return getCursorPosition().getY() + file.getStart();
   }
@@ -556,7 +562,10 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
     if (file.isEmpty()) {
       return "";
     }
-    String line = getLine(y);
+    return getIndent(getLine(y));
+  }
+
+  private static String getIndent(String line) {
     StringBuffer indent = new StringBuffer();
     for (int i = 0; i < line.length(); i++) {
       if (!isWhitespace(line.charAt(i))) {
@@ -904,6 +913,7 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
 
   private void setHighlight(Highlight highlight) {
     removeFileListener(this.highlight);
+    this.highlight.cancel();
     this.highlight = highlight;
     addFileListener(highlight);
   }
@@ -937,7 +947,21 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
 
   @Override
   public void onHighlightStateChanged() {
-    setHighlight(new CachingHighlight(highlightState.getHighlightPattern(), file.getLineList()));
+    HighlightPattern pattern = highlightState.getHighlightPattern();
+    if (pattern == null) {
+      // Avoids touching every line of the file when there's nothing to find.
+      setHighlight(new EmptyHighlight());
+      return;
+    }
+    // Every view of the file shares its matches, and only the lines shown or
+    // moved through are matched up front.
+    setHighlight(settings.getHighlightCache().getHighlight(file, pattern,
+        new CachingHighlight.Listener() {
+          @Override
+          public void onMatchesCounted() {
+            fireHighlightChanged();
+          }
+        }));
   }
 
   public void recenter() {
@@ -947,7 +971,7 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
   public void next() {
     // TODO(koz): We should distinguish between having a search with no matches
     // and not having a search.
-    if (highlight.getMatchCount() > 0) {
+    if (highlight.hasMatches()) {
       Point point = highlight.getNextMatch(cursor.getY(), cursor.getX());
       if (point != null) {
         cursor.moveTo(point);
@@ -963,7 +987,7 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
   public void previous() {
     // TODO(koz): We should distinguish between having a search with no matches
     // and not having a search.
-    if (highlight.getMatchCount() > 0) {
+    if (highlight.hasMatches()) {
       Point point = highlight.getPreviousMatch(cursor.getY(), cursor.getX());
       if (point != null) {
         cursor.moveTo(point);
@@ -1034,14 +1058,26 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
 
   @Override
   public boolean handleKeyStroke(KeyStroke keyStroke) {
-    return keyHandler.handleKeyPress(keyStroke, this);
+    if (!file.isLoading() && !file.isLoadFailed()) {
+      return keyHandler.handleKeyPress(keyStroke, this);
+    }
+    try {
+      return keyHandler.handleKeyPress(keyStroke, this);
+    } catch (File.LoadingException e) {
+      // Files are read-only until they have loaded in full.
+      return true;
+    }
+  }
+
+  public void whenLoaded(Runnable callback) {
+    file.whenLoaded(callback);
   }
 
   public void setDiffMarkers(FileDelta delta) {
     file.setDiffMarkers(delta);
   }
 
-  public void save(FileSystem fileSystem) {
+  public void save(FileSystem fileSystem) throws IOException {
     file.save(fileSystem);
   }
 
@@ -1100,6 +1136,16 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
     return currentSearch != null && currentSearch.isHighlight(y, x);
   }
 
+  /**
+   * Adds the matches of the search and of the highlight on line y to spans.
+   */
+  public void getHighlightSpans(int y, Spans spans) {
+    if (currentSearch != null) {
+      currentSearch.getSpans(y, spans);
+    }
+    highlight.getSpans(y, spans);
+  }
+
   public void enterSearch() {
     this.currentSearch = new Search(new Minibuffer(), file.getFile(), cursor.getPoint(), new Search.Listener() {
       @Override
@@ -1131,6 +1177,9 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
   }
 
   public void exitSearch() {
+    if (currentSearch != null) {
+      currentSearch.close();
+    }
     this.currentSearch = null;
   }
 
@@ -1334,23 +1383,29 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
       int startY = visual.getStartPoint().getY();
       int endY = visual.getEndPoint().getY();
       visual.toggleMode(Visual.Mode.NONE);
+      List<String> lines = new ArrayList<String>();
       for (int i = startY; i <= endY; i++) {
-        indentLine(i);
+        lines.add(indentLine(getLine(i)));
       }
+      file.changeLines(startY, lines);
     } else {
-      indentLine(cursor.getY());
+      String line = getLine(cursor.getY());
+      String indented = indentLine(line);
+      if (!indented.equals(line)) {
+        file.changeLine(cursor.getY(), indented);
+      }
     }
     file.breakPatch();
   }
 
-  private void indentLine(int y) {
-    if (getLine(y).isEmpty()) {
-      return;
+  private String indentLine(String line) {
+    if (line.isEmpty()) {
+      return line;
     }
-    String indent = getIndentForLine(y);
+    String indent = getIndent(line);
     int remainder = indent.length() % TAB_SIZE;
     int indentAmount = TAB_SIZE - remainder;
-    file.changeLine(y, repeatChar(' ', indentAmount) + getLine(y));
+    return repeatChar(' ', indentAmount) + line;
   }
 
   private String repeatChar(char c, int n) {
@@ -1367,24 +1422,30 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
       int startY = visual.getStartPoint().getY();
       int endY = visual.getEndPoint().getY();
       visual.toggleMode(Visual.Mode.NONE);
+      List<String> lines = new ArrayList<String>();
       for (int i = startY; i <= endY; i++) {
-        outdentLine(i);
+        lines.add(outdentLine(getLine(i)));
       }
+      file.changeLines(startY, lines);
     } else {
-      outdentLine(cursor.getY());
+      String line = getLine(cursor.getY());
+      String outdented = outdentLine(line);
+      if (!outdented.equals(line)) {
+        file.changeLine(cursor.getY(), outdented);
+      }
     }
     cursor.applyCursorConstraints();
     file.breakPatch();
   }
 
-  private void outdentLine(int y) {
-    String indent = getIndentForLine(y);
+  private String outdentLine(String line) {
+    String indent = getIndent(line);
     if (indent.isEmpty()) {
-      return;
+      return line;
     }
     int remainder = indent.length() % TAB_SIZE;
     int outdentAmount = remainder == 0 ? TAB_SIZE : remainder;
-    file.removeText(y, 0, outdentAmount);
+    return line.substring(outdentAmount);
   }
 
   public void makeSnippetFromVisual() {
@@ -1429,6 +1490,33 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
     // Do nothing.
   }
 
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    int changed = Math.min(removedLines.size(), insertedLines.size());
+    int position = y + changed;
+    int removeCount = removedLines.size() - changed;
+    int insertCount = insertedLines.size() - changed;
+    if (removeCount == 0 && insertCount == 0) {
+      return;
+    }
+    if (removeCount > 0 && position <= cursor.getY()) {
+      cursor.moveBy(-Math.min(removeCount, cursor.getY() - position + 1), 0);
+    }
+    if (insertCount > 0) {
+      int oldLineCount = file.getLineCount() - insertCount;
+      if (oldLineCount == 0) {
+        // The first line lands under the cursor, the rest push it down,
+        // unless they are the start of a file being loaded.
+        if (!file.isLoading()) {
+          cursor.moveBy(insertCount - 1, 0);
+        }
+      } else if (position <= cursor.getY()) {
+        cursor.moveBy(insertCount, 0);
+      }
+    }
+    fireSizeChanged();
+  }
+
   public List<Range> getDeltas() {
     return file.getDeltas(DELTA_PADDING);
   }
@@ -1480,6 +1568,18 @@ public class Editor implements KeyStrokeHandler, HighlightState.Listener,
     return focused;
   }
 
+  /**
+   * Detaches the editor from its file and the shared settings once it has
+   * been closed.
+   */
+  @Override
+  public void close() {
+    file.close();
+    highlight.cancel();
+    highlightState.removeListener(this);
+    settings.removeListener(this);
+  }
+
   public void reselectVisual() {
     visual.reselectLast();
   }
@@ -1,5 +1,6 @@
 package com.id.editor;
 
+import java.util.List;
 
 public class EmptyHighlight implements Highlight {
   @Override
@@ -7,6 +8,11 @@ public class EmptyHighlight implements Highlight {
     return false;
   }
 
+  @Override
+  public void getSpans(int y, Spans spans) {
+    // Do nothing.
+  }
+
   @Override
   public void onLineInserted(int y, String line) {
     // Do nothing.
@@ -22,6 +28,11 @@ public class EmptyHighlight implements Highlight {
     // Do nothing.
   }
 
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    // Do nothing.
+  }
+
   @Override
   public Point getNextMatch(int y, int x) {
     return null;
@@ -32,8 +43,18 @@ public class EmptyHighlight implements Highlight {
     return null;
   }
 
+  @Override
+  public boolean hasMatches() {
+    return false;
+  }
+
   @Override
   public int getMatchCount() {
     return 0;
   }
+
+  @Override
+  public void cancel() {
+    // Do nothing.
+  }
 }
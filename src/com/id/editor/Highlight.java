@@ -4,7 +4,19 @@ import com.id.file.File;
 
 public interface Highlight extends File.Listener {
   boolean isHighlighted(int y, int x);
+
+  /**
+   * Adds the matches on line y to spans, in order.
+   */
+  void getSpans(int y, Spans spans);
   Point getNextMatch(int y, int x);
   Point getPreviousMatch(int y, int x);
   int getMatchCount();
+  boolean hasMatches();
+
+  /**
+   * Stops any work the highlight is doing in the background, once it's no
+   * longer shown.
+   */
+  void cancel();
 }
@@ -0,0 +1,233 @@
+package com.id.editor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.id.app.HighlightPattern;
+import com.id.file.File;
+import com.id.file.FileView;
+
+/**
+ * Shares highlights between the editors showing a file, so each file is
+ * matched once for a pattern however many views of it there are. Each view
+ * gets a highlight that reads the file's one through its range.
+ *
+ * Highlights nobody is showing any more are kept up to date for a while, so
+ * going back to a recent pattern doesn't match the file again. Only the
+ * {@link #IDLE_CAPACITY} most recently used of them are kept, and none are
+ * kept for a file once its last view is closed.
+ */
+public class HighlightCache {
+  static final int IDLE_CAPACITY = 16;
+
+  private static class Key {
+    public final File file;
+    public final HighlightPattern pattern;
+
+    public Key(File file, HighlightPattern pattern) {
+      this.file = file;
+      this.pattern = pattern;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return file == key.file && pattern.equals(key.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(file) * 31 + pattern.hashCode();
+    }
+  }
+
+  private static class Entry {
+    public final File file;
+    public final CachingHighlight highlight;
+    public int userCount = 0;
+
+    public Entry(File file, CachingHighlight highlight) {
+      this.file = file;
+      this.highlight = highlight;
+    }
+  }
+
+  // In order of use, least recent first.
+  private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  private int idleCount = 0;
+  private Executor workExecutor = null;
+  private Executor uiExecutor = null;
+
+  /**
+   * Makes highlights made from now on count their matches with the
+   * executors. See {@link CachingHighlight#setExecutors}.
+   */
+  public void setExecutors(Executor workExecutor, Executor uiExecutor) {
+    this.workExecutor = workExecutor;
+    this.uiExecutor = uiExecutor;
+  }
+
+  /**
+   * Returns a highlight of the pattern over the view. The listener hears
+   * about matches counted in the background until the highlight is
+   * cancelled, which gives it back to the cache.
+   */
+  public Highlight getHighlight(FileView view, HighlightPattern pattern,
+      CachingHighlight.Listener listener) {
+    Key key = new Key(view.getFile(), pattern);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      CachingHighlight highlight = new CachingHighlight(pattern,
+          CachingHighlight.linesOf(key.file));
+      highlight.setExecutors(workExecutor, uiExecutor);
+      key.file.addListener(highlight);
+      entry = new Entry(key.file, highlight);
+      entries.put(key, entry);
+    } else if (entry.userCount == 0) {
+      idleCount--;
+    }
+    entry.userCount++;
+    entry.highlight.addListener(listener);
+    return new ViewHighlight(entry, view, listener);
+  }
+
+  private void release(Entry entry, CachingHighlight.Listener listener) {
+    entry.highlight.removeListener(listener);
+    if (--entry.userCount > 0) {
+      return;
+    }
+    idleCount++;
+    if (entry.file.getViewCount() == 0) {
+      // Nothing shows the file any more.
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        Entry idle = it.next();
+        if (idle.file == entry.file && idle.userCount == 0) {
+          it.remove();
+          drop(idle);
+        }
+      }
+    }
+    Iterator<Entry> it = entries.values().iterator();
+    while (idleCount > IDLE_CAPACITY) {
+      Entry eldest = it.next();
+      if (eldest.userCount > 0) {
+        continue;
+      }
+      it.remove();
+      drop(eldest);
+    }
+  }
+
+  private void drop(Entry entry) {
+    idleCount--;
+    entry.file.removeListener(entry.highlight);
+    entry.highlight.cancel();
+  }
+
+  // For testing.
+  int getHighlightCount() {
+    return entries.size();
+  }
+
+  /**
+   * A file's highlight seen through a view, whose lines start at the view's
+   * start. The file's highlight follows the file itself, so edits need
+   * nothing here.
+   */
+  private class ViewHighlight implements Highlight {
+    private final Entry entry;
+    private final FileView view;
+    private final CachingHighlight.Listener listener;
+    private boolean cancelled = false;
+
+    public ViewHighlight(Entry entry, FileView view, CachingHighlight.Listener listener) {
+      this.entry = entry;
+      this.view = view;
+      this.listener = listener;
+    }
+
+    private int getStart() {
+      return view.getStart();
+    }
+
+    private int getEnd() {
+      return view.getStart() + view.getLineCount();
+    }
+
+    private Point toView(Point point) {
+      return point == null ? null : new Point(point.getY() - getStart(), point.getX());
+    }
+
+    @Override
+    public boolean isHighlighted(int y, int x) {
+      return entry.highlight.isHighlighted(getStart() + y, x);
+    }
+
+    @Override
+    public void getSpans(int y, Spans spans) {
+      entry.highlight.getSpans(getStart() + y, spans);
+    }
+
+    @Override
+    public Point getNextMatch(int y, int x) {
+      if (y >= view.getLineCount()) {
+        return null;
+      }
+      return toView(entry.highlight.getNextMatch(getStart() + y, x, getEnd()));
+    }
+
+    @Override
+    public Point getPreviousMatch(int y, int x) {
+      if (y >= view.getLineCount()) {
+        return null;
+      }
+      return toView(entry.highlight.getPreviousMatch(getStart() + y, x, getStart()));
+    }
+
+    @Override
+    public int getMatchCount() {
+      return entry.highlight.getMatchCount(getStart(), getEnd());
+    }
+
+    @Override
+    public boolean hasMatches() {
+      return entry.highlight.hasMatches(getStart(), getEnd());
+    }
+
+    @Override
+    public void cancel() {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      release(entry, listener);
+    }
+
+    @Override
+    public void onLineInserted(int y, String line) {
+      // Do nothing.
+    }
+
+    @Override
+    public void onLineRemoved(int y, String line) {
+      // Do nothing.
+    }
+
+    @Override
+    public void onLineChanged(int y, String oldLine, String newLine) {
+      // Do nothing.
+    }
+
+    @Override
+    public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+      // Do nothing.
+    }
+  }
+}
@@ -90,6 +90,14 @@ public class Minibuffer implements KeyStrokeHandler, File.Listener {
     fireTextChanged();
   }
 
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    if (removedLines.size() != insertedLines.size()) {
+      throw new IllegalStateException();
+    }
+    fireTextChanged();
+  }
+
   private void fireQuit() {
     for (Listener listener : listeners) {
       listener.onQuit();
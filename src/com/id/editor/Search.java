@@ -1,12 +1,20 @@
 package com.id.editor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import com.id.events.KeyStroke;
 import com.id.events.KeyStrokeHandler;
 import com.id.events.ShortcutTree;
 import com.id.file.File;
 
+/**
+ * Searches a file as the query is typed. A line containing the query also
+ * contains every prefix of it, so there's a highlight for each prefix typed
+ * so far, and each one only looks at the lines where the one before it may
+ * have matched. Deleting a character goes back to the highlight before.
+ */
 public class Search implements KeyStrokeHandler, Minibuffer.Listener {
   public interface Listener {
     void onSearchCompleted();
@@ -16,11 +24,23 @@ public class Search implements KeyStrokeHandler, Minibuffer.Listener {
     void onRecenter();
   }
 
+  private static class Stage {
+    public final String query;
+    public final CachingHighlight highlight;
+
+    public Stage(String query, CachingHighlight highlight) {
+      this.query = query;
+      this.highlight = highlight;
+    }
+  }
+
   private final Minibuffer minibuffer;
   private final File file;
   private Highlight highlight = new EmptyHighlight();
   private final Listener listener;
   private final ShortcutTree shortcuts = new ShortcutTree();
+  // Every stage listens to the file, so each stays right through edits.
+  private final List<Stage> stages = new ArrayList<Stage>();
   private final Point startPoint;
   private Point currentPoint;
 
@@ -31,7 +51,6 @@ public class Search implements KeyStrokeHandler, Minibuffer.Listener {
     this.currentPoint = startPoint;
     this.listener = listener;
     this.minibuffer.addListener(this);
-    file.addListener(highlight);
     shortcuts.setShortcut(Arrays.asList(KeyStroke.up()), new ShortcutTree.Action() {
       @Override
       public void execute() {
@@ -98,16 +117,53 @@ public class Search implements KeyStrokeHandler, Minibuffer.Listener {
 
   @Override
   public void onTextChanged() {
-    file.removeListener(highlight);
-    highlight = new CachingHighlight(Patterns.partWord(minibuffer.getText()), file.getLineList());
+    String query = minibuffer.getText();
+    while (!stages.isEmpty() && !query.startsWith(getLastStage().query)) {
+      popStage();
+    }
+    if (stages.isEmpty() || !getLastStage().query.equals(query)) {
+      // The empty query matches nothing, so it can't narrow the next one down.
+      int[] candidates = null;
+      if (!stages.isEmpty() && !getLastStage().query.isEmpty()) {
+        candidates = getLastStage().highlight.getPossibleMatchLines();
+      }
+      CachingHighlight stageHighlight = new CachingHighlight(Patterns.partWord(query),
+          CachingHighlight.linesOf(file), candidates);
+      file.addListener(stageHighlight);
+      stages.add(new Stage(query, stageHighlight));
+    }
+    highlight = getLastStage().highlight;
     moveTo(highlight.getNextMatch(startPoint.getY(), startPoint.getX()));
-    file.addListener(highlight);
+  }
+
+  private void popStage() {
+    Stage stage = stages.remove(stages.size() - 1);
+    file.removeListener(stage.highlight);
+    stage.highlight.cancel();
+  }
+
+  /**
+   * Stops the search's highlights from following the file.
+   */
+  public void close() {
+    while (!stages.isEmpty()) {
+      popStage();
+    }
+    highlight = new EmptyHighlight();
+  }
+
+  private Stage getLastStage() {
+    return stages.get(stages.size() - 1);
   }
 
   public boolean isHighlight(int y, int x) {
     return highlight.isHighlighted(y, x);
   }
 
+  public void getSpans(int y, Spans spans) {
+    highlight.getSpans(y, spans);
+  }
+
   @Override
   public void onQuit() {
     // TODO(koz): This should move the scroll region to exactly where it was
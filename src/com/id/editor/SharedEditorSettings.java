@@ -2,6 +2,7 @@ package com.id.editor;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Settings that are shared between all editors.
@@ -13,6 +14,7 @@ public class SharedEditorSettings {
 
   private boolean isInExpandoDiffMode = false;
   private List<Listener> listeners = new ArrayList<Listener>();
+  private final HighlightCache highlightCache = new HighlightCache();
 
   public SharedEditorSettings() {
   }
@@ -34,6 +36,22 @@ public class SharedEditorSettings {
     return isInExpandoDiffMode;
   }
 
+  /**
+   * Makes highlights count their matches on workExecutor, handing them back
+   * on uiExecutor. Without executors they're counted when asked for.
+   */
+  public void setHighlightExecutors(Executor workExecutor, Executor uiExecutor) {
+    highlightCache.setExecutors(workExecutor, uiExecutor);
+  }
+
+  /**
+   * The highlights of every editor, shared between those showing the same
+   * file.
+   */
+  public HighlightCache getHighlightCache() {
+    return highlightCache;
+  }
+
   private void fireOnChanged() {
     for (Listener listener : listeners) {
       listener.onSettingsChanged();
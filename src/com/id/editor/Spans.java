@@ -0,0 +1,40 @@
+package com.id.editor;
+
+import java.util.Arrays;
+
+/**
+ * Column ranges [start, end) on a line, filled in by highlights for drawing.
+ * One is cleared and reused for every line painted, so painting doesn't
+ * allocate once it's grown to fit.
+ */
+public class Spans {
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  private int size = 0;
+
+  public void clear() {
+    size = 0;
+  }
+
+  public void add(int start, int end) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, size * 2);
+      ends = Arrays.copyOf(ends, size * 2);
+    }
+    starts[size] = start;
+    ends[size] = end;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getStart(int i) {
+    return starts[i];
+  }
+
+  public int getEnd(int i) {
+    return ends[i];
+  }
+}
@@ -2,7 +2,7 @@ package com.id.editor;
 
 import com.id.app.ListModel;
 
-public class Stack extends ListModel<Editor> {
+public class Stack extends ListModel<Editor> implements Closable {
   private String name = null;
 
   public Stack() {
@@ -16,4 +16,11 @@ public class Stack extends ListModel<Editor> {
   public String getName() {
     return name;
   }
+
+  @Override
+  public void close() {
+    for (Editor editor : this) {
+      editor.close();
+    }
+  }
 }
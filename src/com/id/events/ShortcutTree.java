@@ -108,8 +108,12 @@ public class ShortcutTree {
         reset();
         return true;
       }
-      action.execute();
-      reset();
+      try {
+        action.execute();
+      } finally {
+        // An action that fails mustn't leave the tree partway down a sequence.
+        reset();
+      }
     }
     return wasHandled;
   }
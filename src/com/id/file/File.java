@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -18,20 +19,51 @@ public class File {
     void onLineInserted(int y, String line);
     void onLineRemoved(int y, String line);
     void onLineChanged(int y, String oldLine, String newLine);
+
+    /**
+     * Called once for a bulk edit that replaced the lines starting at y. It
+     * is equivalent to a call to onLineChanged for each of the first
+     * min(removed, inserted) lines, followed by onLineRemoved for each of the
+     * remaining removed lines, followed by onLineInserted for the remaining
+     * inserted lines from last to first, all at the same position.
+     */
+    void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines);
   }
 
   public interface SaveAction {
     void onSave(File file);
   }
 
-  private final List<String> lines = new ArrayList<String>();
+  /**
+   * Thrown when a file that is still being read in, or that couldn't be read
+   * in full, is edited or saved.
+   */
+  public static class LoadingException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public LoadingException(String message) {
+      super(message);
+    }
+  }
+
+  private final PieceTable lines;
   private final List<Listener> listeners = new ArrayList<Listener>();
   private final List<ModifiedListener> modifiedListeners = new ArrayList<ModifiedListener>();
+  private final ViewRegistry views = new ViewRegistry();
   private final Patchwork patchwork;
   private final Graveyard graveyard;
   // TODO(koz): Make regular save a SaveAction.
   private SaveAction saveAction = null;
   private String filename;
+  private String lineSeparator = "\n";
+  // The number of lines when the file was loaded or last saved, and how many
+  // of them are still untouched at the top of the file.
+  private int savedLineCount;
+  private int unchangedLineCount;
+  private boolean loading = false;
+  // Set when a background load stops part way, leaving the file read-only.
+  private boolean loadFailed = false;
+  private final List<Runnable> loadedCallbacks = new ArrayList<Runnable>();
 
   public static File createNewFile(String filename) {
     if (filename == null) {
@@ -43,9 +75,37 @@ public class File {
     return file;
   }
 
+  /**
+   * Creates an empty file whose lines will be added with
+   * {@link #appendLoadedLines} as they are read. The file can't be edited
+   * until {@link #finishLoading} is called.
+   */
+  public static File createLoadingFile(String filename) {
+    File file = new File();
+    file.setFilename(filename);
+    file.loading = true;
+    return file;
+  }
+
   public File() {
+    this(Arrays.<String>asList());
+  }
+
+  public File(String... lines) {
+    this(Arrays.asList(lines));
+  }
+
+  /**
+   * Creates a file holding the given lines. The list becomes the file's
+   * original buffer without being copied, so it must not be modified
+   * afterwards.
+   */
+  public File(List<String> lines) {
+    this.lines = new PieceTable(lines);
     this.patchwork = new Patchwork();
-    this.graveyard = new Graveyard(Arrays.<String>asList());
+    this.graveyard = new Graveyard(lines);
+    this.savedLineCount = lines.size();
+    this.unchangedLineCount = lines.size();
     listeners.add(patchwork);
     listeners.add(graveyard);
     patchwork.setListener(new ModifiedListener() {
@@ -56,22 +116,6 @@ public class File {
     });
   }
 
-  public File(String... lines) {
-    this();
-    for (String line : lines) {
-      insertLine(getLineCount(), line);
-    }
-    reset();
-  }
-
-  public File(List<String> lines) {
-    this();
-    for (String line : lines) {
-      insertLine(getLineCount(), line);
-    }
-    reset();
-  }
-
   // Lines
   public String getLine(int y) {
     return lines.get(y);
@@ -82,6 +126,7 @@ public class File {
   }
 
   public void insertLine(int y, String line) {
+    checkNotLoading();
     if (isEmpty()) {
       if (y > 1) {
         throw new IllegalStateException();
@@ -89,37 +134,193 @@ public class File {
         insertLine(0, "");
       }
     }
-    lines.add(y, line);
+    lines.insert(y, line);
     fireLineInserted(y, line);
   }
 
   public String removeLine(int y) {
+    checkNotLoading();
     String line = lines.remove(y);
     fireLineRemoved(y, line);
     return line;
   }
 
   public void changeLine(int y, String line) {
+    checkNotLoading();
     String oldLine = lines.set(y, line);
     fireLineChanged(y, oldLine, line);
   }
 
+  /**
+   * Replaces removeCount lines starting at y with the given lines, notifying
+   * listeners with a single onLinesReplaced call.
+   *
+   * @return the removed lines.
+   */
+  public List<String> replaceLines(int y, int removeCount, List<String> newLines) {
+    checkNotLoading();
+    if (removeCount == 0 && newLines.isEmpty()) {
+      return new ArrayList<String>();
+    }
+    if (isEmpty() && y == 1) {
+      insertLine(0, "");
+    }
+    List<String> removedLines = lines.replace(y, removeCount, newLines);
+    List<String> insertedLines = new ArrayList<String>(newLines);
+    markChangedFrom(y);
+    for (Listener l : listeners) {
+      l.onLinesReplaced(y, removedLines, insertedLines);
+    }
+    fireViewsLinesReplaced(y, removedLines, insertedLines);
+    return removedLines;
+  }
+
+  private void fireViewsLinesReplaced(int y, List<String> removedLines,
+      List<String> insertedLines) {
+    List<ViewRegistry.Entry> affected =
+        views.beginEdit(y, removedLines.size(), insertedLines.size());
+    for (ViewRegistry.Entry entry : affected) {
+      entry.getView().onLinesReplaced(y, removedLines, insertedLines);
+    }
+    views.endEdit(affected);
+  }
+
+  public boolean isLoading() {
+    return loading;
+  }
+
+  /**
+   * Whether a background load stopped part way. Such files only hold part of
+   * what's on disk, so they can't be edited or saved.
+   */
+  public boolean isLoadFailed() {
+    return loadFailed;
+  }
+
+  private void checkNotLoading() {
+    if (loading) {
+      throw new LoadingException(filename + " is still loading");
+    }
+    if (loadFailed) {
+      throw new LoadingException(filename + " couldn't be read in full");
+    }
+  }
+
+  /**
+   * Adds lines read in by a background load to the end of the file. They
+   * count as part of the file as it is on disk, so they can't be undone and
+   * don't modify the file. Listeners and views hear about them as a single
+   * insertion.
+   */
+  public void appendLoadedLines(List<String> loadedLines) {
+    if (!loading) {
+      throw new IllegalStateException(filename + " isn't loading");
+    }
+    if (loadedLines.isEmpty()) {
+      return;
+    }
+    int y = getLineCount();
+    lines.replace(y, 0, loadedLines);
+    graveyard.appendOriginalLines(loadedLines.size());
+    savedLineCount += loadedLines.size();
+    unchangedLineCount += loadedLines.size();
+    List<String> removedLines = new ArrayList<String>();
+    for (Listener l : listeners) {
+      if (l != patchwork && l != graveyard) {
+        l.onLinesReplaced(y, removedLines, loadedLines);
+      }
+    }
+    fireViewsLinesReplaced(y, removedLines, loadedLines);
+  }
+
+  /**
+   * Makes a loading file editable and runs the callbacks that were waiting
+   * for it.
+   */
+  public void finishLoading() {
+    loading = false;
+    List<Runnable> callbacks = new ArrayList<Runnable>(loadedCallbacks);
+    loadedCallbacks.clear();
+    for (Runnable callback : callbacks) {
+      callback.run();
+    }
+  }
+
+  /**
+   * Marks a loading file as only partly read. It stays read-only, and the
+   * callbacks waiting for it to load are dropped.
+   */
+  public void failLoading() {
+    if (!loading) {
+      throw new IllegalStateException(filename + " isn't loading");
+    }
+    loading = false;
+    loadFailed = true;
+    loadedCallbacks.clear();
+  }
+
+  /**
+   * Runs the callback once all the file's lines are in, which is straight
+   * away unless the file is loading. It never runs if the load fails.
+   */
+  public void whenLoaded(Runnable callback) {
+    if (loading) {
+      loadedCallbacks.add(callback);
+    } else if (!loadFailed) {
+      callback.run();
+    }
+  }
+
+  public void insertLines(int y, List<String> newLines) {
+    replaceLines(y, 0, newLines);
+  }
+
+  public List<String> removeLines(int y, int count) {
+    return replaceLines(y, count, new ArrayList<String>());
+  }
+
+  public void changeLines(int y, List<String> newLines) {
+    replaceLines(y, newLines.size(), newLines);
+  }
+
   private void fireLineInserted(int y, String line) {
+    markChangedFrom(y);
     for (Listener l : listeners) {
       l.onLineInserted(y, line);
     }
+    List<ViewRegistry.Entry> affected = views.beginEdit(y, 0, 1);
+    for (ViewRegistry.Entry entry : affected) {
+      entry.getView().onLineInserted(y, line);
+    }
+    views.endEdit(affected);
   }
 
   private void fireLineRemoved(int y, String line) {
+    markChangedFrom(y);
     for (Listener l : listeners) {
       l.onLineRemoved(y, line);
     }
+    List<ViewRegistry.Entry> affected = views.beginEdit(y, 1, 0);
+    for (ViewRegistry.Entry entry : affected) {
+      entry.getView().onLineRemoved(y, line);
+    }
+    views.endEdit(affected);
   }
 
   private void fireLineChanged(int y, String oldLine, String newLine) {
+    markChangedFrom(y);
     for (Listener l : listeners) {
       l.onLineChanged(y, oldLine, newLine);
     }
+    List<ViewRegistry.Entry> affected = views.beginEdit(y, 1, 1);
+    for (ViewRegistry.Entry entry : affected) {
+      entry.getView().onLineChanged(y, oldLine, newLine);
+    }
+    views.endEdit(affected);
+  }
+
+  private void markChangedFrom(int y) {
+    unchangedLineCount = Math.min(unchangedLineCount, y);
   }
 
   private void fireModifiedStateChanged() {
@@ -130,6 +331,8 @@ public class File {
 
   // Patches
   public void startPatchAt(Point point) {
+    // Failing here keeps an edit of a loading file from leaving a patch open.
+    checkNotLoading();
     patchwork.startPatchAt(point);
   }
 
@@ -153,12 +356,50 @@ public class File {
     return patchwork.redo(this);
   }
 
+  /**
+   * Restores the undo history recorded in the journal and records all further
+   * history to it.
+   */
+  public void setUndoJournal(UndoJournal undoJournal) {
+    patchwork.setUndoJournal(undoJournal);
+  }
+
+  /**
+   * A hash of the contents. It reads every line, so undo journals use the
+   * file system's cheaper {@link FileSystem#getContentStamp} instead.
+   */
+  public long getContentHash() {
+    long hash = UndoJournal.EMPTY_HASH;
+    for (Iterator<String> i = lines.iterator(0); i.hasNext();) {
+      hash = UndoJournal.hashLine(hash, i.next());
+    }
+    return hash;
+  }
+
+  public void setUndoMemoryBudget(long bytes) {
+    patchwork.setMemoryBudget(bytes);
+  }
+
+  /**
+   * An estimate of the heap used by this file's undo history, in bytes.
+   */
+  public long getUndoMemoryUsage() {
+    return patchwork.getMemoryUsage();
+  }
+
+  /**
+   * The number of bytes of this file's undo history spilled to disk.
+   */
+  public long getSpilledUndoSize() {
+    return patchwork.getSpilledSize();
+  }
+
   public Tombstone.Status getStatus(int y) {
     return graveyard.getStatus(y);
   }
 
   public void startPatchAt(int y, int x) {
-    patchwork.startPatchAt(new Point(y, x));
+    startPatchAt(new Point(y, x));
   }
 
   public void insertText(int y, int x, String text) {
@@ -201,7 +442,7 @@ public class File {
 
   public String[] getLines() {
     String[] result = new String[getLineCount()];
-    return lines.toArray(result);
+    return lines.toList().toArray(result);
   }
 
   public boolean isLineNew(int y) {
@@ -212,6 +453,26 @@ public class File {
     return graveyard.getGrave(y);
   }
 
+  /**
+   * Returns the physical line of line y, which counts the lines in the graves
+   * above it as well.
+   */
+  public int getPhysicalLine(int y) {
+    return graveyard.getPhysicalLine(y);
+  }
+
+  /**
+   * Returns the line at the given physical line, or the line whose grave
+   * contains it.
+   */
+  public int getLogicalLine(int physicalY) {
+    return graveyard.getLogicalLine(physicalY);
+  }
+
+  public int getPhysicalLineCount() {
+    return graveyard.getPhysicalLineCount();
+  }
+
   public static File loadFrom(String filename, BufferedReader bufferedReader)
       throws IOException {
     List<String> lines = new ArrayList<String>();
@@ -224,11 +485,6 @@ public class File {
     return file;
   }
 
-  private void reset() {
-    graveyard.reset();
-    patchwork.reset();
-  }
-
   public boolean hasUndo() {
     return patchwork.hasUndo();
   }
@@ -237,16 +493,77 @@ public class File {
     listeners.remove(listener);
   }
 
+  /**
+   * Registers a view of lines [start, end]. Unlike listeners, a view is only
+   * told about edits that can touch its lines, and keeps its range up to date
+   * through the returned entry.
+   */
+  public ViewRegistry.Entry registerView(Listener view, int start, int end) {
+    return views.add(view, start, end);
+  }
+
+  public void unregisterView(ViewRegistry.Entry entry) {
+    views.remove(entry);
+  }
+
+  public void moveView(ViewRegistry.Entry entry, int start, int end) {
+    views.move(entry, start, end);
+  }
+
+  public int getViewCount() {
+    return views.size();
+  }
+
   public List<String> getLineList() {
-    return new ArrayList<String>(lines);
+    return lines.toList();
+  }
+
+  /**
+   * Returns the lines from line y onwards without copying the buffer. Later
+   * edits to the file don't affect the iterator.
+   */
+  public Iterator<String> getLineIterator(int y) {
+    return lines.iterator(y);
+  }
+
+  /**
+   * The line break the file is saved with, which is the one it was loaded
+   * with.
+   */
+  public String getLineSeparator() {
+    return lineSeparator;
+  }
+
+  public void setLineSeparator(String lineSeparator) {
+    this.lineSeparator = lineSeparator;
+  }
+
+  /**
+   * If every edit since the file was loaded or last saved came after the
+   * lines it had then, returns how many lines that was. Otherwise returns -1.
+   * A file that has only been appended to can be saved without rewriting its
+   * saved lines.
+   */
+  public int getAppendOnlyStart() {
+    return unchangedLineCount == savedLineCount ? savedLineCount : -1;
   }
 
   public void setDiffMarkers(FileDelta delta) {
     graveyard.setDiffMarkers(delta);
   }
 
-  public void save(FileSystem fileSystem) {
+  /**
+   * Saves the file. If that fails it stays as modified as it was.
+   */
+  public void save(FileSystem fileSystem) throws IOException {
+    // Saving part of a file would write over the rest of it on disk.
+    checkNotLoading();
     fileSystem.save(this);
+    savedLineCount = getLineCount();
+    unchangedLineCount = savedLineCount;
+    if (patchwork.hasUndoJournal()) {
+      patchwork.recordSave(fileSystem.getContentStamp(filename));
+    }
     if (patchwork.isModified()) {
       patchwork.onSaved();
       if (saveAction != null) {
@@ -312,9 +629,7 @@ public class File {
 
   public List<String> getLineRange(int startY, int endY) {
     List<String> result = new ArrayList<String>();
-    for (int i = startY; i <= endY; i++) {
-      result.add(getLine(i));
-    }
+    lines.copyRange(startY, endY - startY + 1, result);
     return result;
   }
 
@@ -1,5 +1,6 @@
 package com.id.file;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -11,8 +12,8 @@ import com.id.platform.FileSystem;
 
 public class FileView implements File.Listener, ModifiedListener {
   private final File file;
-  private int start;
-  private int end;
+  private final ViewRegistry.Entry entry;
+  private boolean closed = false;
   private final List<File.Listener> listeners = new ArrayList<File.Listener>();
 
   public FileView(File file) {
@@ -21,80 +22,156 @@ public class FileView implements File.Listener, ModifiedListener {
 
   public FileView(File file, int start, int end) {
     this.file = file;
-    this.start = start;
-    this.end = end == -1 ? file.getLineCount() - 1 : end;
-    // TODO Make this not leak.
-    file.addListener(this);
+    this.entry = file.registerView(this, start, end == -1 ? file.getLineCount() - 1 : end);
+  }
+
+  /**
+   * Stops the view following edits to the file. A closed view keeps the range
+   * it had when it was closed.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    file.unregisterView(entry);
   }
 
   public int getStart() {
-    return start;
+    return entry.getStart();
+  }
+
+  private int getEnd() {
+    return entry.getEnd();
   }
 
   public Range getRange() {
-    return new Range(start, end);
+    return new Range(getStart(), getEnd());
   }
 
   public String getLine(int y) {
-    return file.getLine(start + y);
+    return file.getLine(getStart() + y);
   }
 
   public int getLineCount() {
-    return end - start + 1;
+    return getEnd() - getStart() + 1;
   }
 
   public void insertLine(int y, String line) {
-    file.insertLine(start + y, line);
+    file.insertLine(getStart() + y, line);
   }
 
   public void changeLine(int y, String line) {
-    file.changeLine(start + y, line);
+    file.changeLine(getStart() + y, line);
   }
 
   public String removeLine(int y) {
-    return file.removeLine(start + y);
+    return file.removeLine(getStart() + y);
   }
 
   @Override
   public void onLineInserted(int y, String line) {
+    int start = getStart();
+    int end = getEnd();
     if (y < start) {
-      start++;
-      end++;
+      entry.setRange(start + 1, end + 1);
     } else if (start <= y && y <= end + 1) {
-      end++;
+      entry.setRange(start, end + 1);
       fireOnLineInserted(y - start, line);
     }
   }
 
   @Override
   public void onLineRemoved(int y, String line) {
+    int start = getStart();
+    int end = getEnd();
     if (y < start) {
-      start--;
-      end--;
+      entry.setRange(start - 1, end - 1);
     } else if (start <= y && y <= end) {
-      end--;
+      entry.setRange(start, end - 1);
       fireOnLineRemoved(y - start, line);
     }
   }
 
   @Override
   public void onLineChanged(int y, String oldLine, String newLine) {
-    if (start <= y && y <= end) {
+    int start = getStart();
+    if (start <= y && y <= getEnd()) {
       fireOnLineChanged(y - start, oldLine, newLine);
     }
   }
 
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    int start = getStart();
+    int end = getEnd();
+    int changed = Math.min(removedLines.size(), insertedLines.size());
+    int position = y + changed;
+    int viewY = -1;
+    List<String> viewRemoved = new ArrayList<String>();
+    List<String> viewInserted = new ArrayList<String>();
+
+    // Changed lines never move the view.
+    int changedStart = Math.max(y, start);
+    int changedEnd = Math.min(position, end + 1);
+    if (changedStart < changedEnd) {
+      viewY = changedStart - start;
+      viewRemoved.addAll(removedLines.subList(changedStart - y, changedEnd - y));
+      viewInserted.addAll(insertedLines.subList(changedStart - y, changedEnd - y));
+    }
+
+    // Removals above the view shift it up, the rest come out of the view.
+    int removeCount = removedLines.size() - changed;
+    if (removeCount > 0) {
+      int removedBefore = position < start ? Math.min(removeCount, start - position) : 0;
+      start -= removedBefore;
+      end -= removedBefore;
+      int removedInView = 0;
+      if (start <= position && position <= end) {
+        removedInView = Math.min(removeCount - removedBefore, end - position + 1);
+      }
+      if (removedInView > 0) {
+        if (viewY == -1) {
+          viewY = position - start;
+        }
+        int from = changed + removedBefore;
+        viewRemoved.addAll(removedLines.subList(from, from + removedInView));
+        end -= removedInView;
+      }
+    }
+
+    int insertCount = insertedLines.size() - changed;
+    if (insertCount > 0) {
+      if (position < start) {
+        start += insertCount;
+        end += insertCount;
+      } else if (position <= end + 1) {
+        if (viewY == -1) {
+          viewY = position - start;
+        }
+        viewInserted.addAll(insertedLines.subList(changed, insertedLines.size()));
+        end += insertCount;
+      }
+    }
+    entry.setRange(start, end);
+
+    if (viewY != -1) {
+      fireOnLinesReplaced(viewY, viewRemoved, viewInserted);
+    }
+  }
+
   @Override
   public void onModifiedStateChanged() {
     // Do nothing.
   }
 
   public void growToCover(Range range) {
-    if (range.getStart() < start) {
-      start = range.getStart();
-    }
-    if (range.getEnd() > end) {
-      end = range.getEnd();
+    int start = Math.min(range.getStart(), getStart());
+    int end = Math.max(range.getEnd(), getEnd());
+    if (closed) {
+      entry.setRange(start, end);
+    } else {
+      file.moveView(entry, start, end);
     }
   }
 
@@ -103,7 +180,7 @@ public class FileView implements File.Listener, ModifiedListener {
   }
 
   public void startPatchAt(int y, int x) {
-    file.startPatchAt(start + y, x);
+    file.startPatchAt(getStart() + y, x);
   }
 
   public void breakPatch() {
@@ -183,11 +260,24 @@ public class FileView implements File.Listener, ModifiedListener {
   }
 
   public Status getStatus(int y) {
-    return file.getStatus(start + y);
+    return file.getStatus(getStart() + y);
   }
 
   public Grave getGrave(int y) {
-    return file.getGrave(start + y);
+    return file.getGrave(getStart() + y);
+  }
+
+  public int getPhysicalLine(int y) {
+    return file.getPhysicalLine(getStart() + y) - file.getPhysicalLine(getStart());
+  }
+
+  public int getLogicalLine(int physicalY) {
+    int line = file.getLogicalLine(file.getPhysicalLine(getStart()) + physicalY);
+    return Math.min(line, getEnd() + 1) - getStart();
+  }
+
+  public int getPhysicalLineCount() {
+    return getPhysicalLine(getLineCount());
   }
 
   /**
@@ -199,11 +289,14 @@ public class FileView implements File.Listener, ModifiedListener {
   public List<String> removeLineRange(int from, int to) {
     int firstLine = Math.min(from, to);
     int lastLine = Math.max(from, to);
-    List<String> result = new ArrayList<String>();
-    for (int i = 0; i < lastLine - firstLine + 1; i++) {
-      result.add(removeLine(firstLine));
-    }
-    return result;
+    return file.removeLines(getStart() + firstLine, lastLine - firstLine + 1);
+  }
+
+  /**
+   * Replaces lines starting at y with the given lines, as a single change.
+   */
+  public void changeLines(int y, List<String> lines) {
+    file.changeLines(getStart() + y, lines);
   }
 
   public void appendToLine(int y, String tail) {
@@ -268,9 +361,16 @@ public class FileView implements File.Listener, ModifiedListener {
     int rangeSize = end - start + 1;
     // When joining ranges bigger than one, we want n - 1 joins.
     int timesToJoin = rangeSize == 1 ? 1 : rangeSize - 1;
-    for (int i = 0; i < timesToJoin; i++) {
-      join(start);
+    // Do nothing past the last line.
+    timesToJoin = Math.min(timesToJoin, getLineCount() - 1 - start);
+    if (timesToJoin <= 0) {
+      return;
     }
+    String joined = getLine(start);
+    for (int i = 1; i <= timesToJoin; i++) {
+      joined = removeTrailingWhitespace(joined) + " " + removeLeadingWhitespace(getLine(start + i));
+    }
+    file.replaceLines(getStart() + start, timesToJoin + 1, Arrays.asList(joined));
   }
 
   private void joinWith(int y, String delimiter) {
@@ -425,19 +525,14 @@ public class FileView implements File.Listener, ModifiedListener {
   }
 
   public void insertLines(int y, List<String> lines) {
-    // NOTE(koz): We insert lines in reverse order so the markers get restored
-    // to their original state.
-    for (int i = lines.size() - 1; i >= 0; i--) {
-      String line = lines.get(i);
-      insertLine(y, line);
-    }
+    file.insertLines(getStart() + y, lines);
   }
 
   public void setDiffMarkers(FileDelta delta) {
     file.setDiffMarkers(delta);
   }
 
-  public void save(FileSystem fileSystem) {
+  public void save(FileSystem fileSystem) throws IOException {
     file.save(fileSystem);
   }
 
@@ -445,6 +540,18 @@ public class FileView implements File.Listener, ModifiedListener {
     return file.isModified();
   }
 
+  public boolean isLoading() {
+    return file.isLoading();
+  }
+
+  public boolean isLoadFailed() {
+    return file.isLoadFailed();
+  }
+
+  public void whenLoaded(Runnable callback) {
+    file.whenLoaded(callback);
+  }
+
   public boolean isMarkersClear() {
     return file.isMarkersClear();
   }
@@ -454,11 +561,11 @@ public class FileView implements File.Listener, ModifiedListener {
   }
 
   public List<String> getLineList() {
-    return file.getLineRange(start, end);
+    return file.getLineRange(getStart(), getEnd());
   }
 
   public List<String> getLineRange(int start, int end) {
-    return file.getLineRange(this.start + start, this.start + end);
+    return file.getLineRange(getStart() + start, getStart() + end);
   }
 
   private void fireOnLineInserted(int y, String line) {
@@ -479,6 +586,12 @@ public class FileView implements File.Listener, ModifiedListener {
     }
   }
 
+  private void fireOnLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    for (File.Listener listener : listeners) {
+      listener.onLinesReplaced(y, removedLines, insertedLines);
+    }
+  }
+
   public Point getNextModifiedPoint(int y, int x) {
     boolean acceptNextModified = false;
     for (int i = y; i < getLineCount(); i++) {
@@ -512,7 +625,7 @@ public class FileView implements File.Listener, ModifiedListener {
   }
 
   public void undoLine(int y) {
-    file.undoLine(start + y);
+    file.undoLine(getStart() + y);
   }
 
   public void undoLineRange(int startY, int endY) {
@@ -526,7 +639,7 @@ public class FileView implements File.Listener, ModifiedListener {
   }
 
   public void wipe(int y) {
-    file.wipe(start + y);
+    file.wipe(getStart() + y);
   }
 
   public int findNextWordBreak(int y, int x) {
@@ -718,7 +831,7 @@ public class FileView implements File.Listener, ModifiedListener {
   }
 
   public FileView makeView(int startY, int endY) {
-    return file.makeView(start + startY, start + endY);
+    return file.makeView(getStart() + startY, getStart() + endY);
   }
 
   public int getModifiedLinesCount() {
@@ -781,6 +894,6 @@ public class FileView implements File.Listener, ModifiedListener {
     if (point == null) {
       return null;
     }
-    return point.offset(-start, 0);
+    return point.offset(-getStart(), 0);
   }
 }
@@ -0,0 +1,43 @@
+package com.id.file;
+
+/**
+ * Scores fuzzy matches against strings stored in a char array, with the same
+ * rules as {@link Trie#doScoredFuzzyMatch}: a query character matches the
+ * same character, or any case of it when both are boundaries or the
+ * candidate's follows a boundary start, and every boundary up to the end of
+ * the match costs 20.
+ *
+ * Whether a query character can match at a position doesn't depend on how
+ * the earlier characters were matched, and the cost of a match only grows
+ * with where it ends, so matching each query character at its first
+ * possible position gives the best score. That takes one pass over the
+ * candidate and allocates nothing.
+ */
+public class FuzzyScorer {
+  public static final int NO_MATCH = -1;
+  public static final int BOUNDARY_COST = 20;
+
+  /**
+   * Returns the score of the query against chars[start, end), or NO_MATCH.
+   * Lower scores are better. onBoundary says whether the first character
+   * counts as following a boundary start.
+   */
+  public static int score(char[] chars, int start, int end, String query, boolean onBoundary) {
+    int score = 0;
+    int queryIndex = 0;
+    for (int i = start; i < end && queryIndex < query.length(); i++) {
+      char c = chars[i];
+      boolean isBoundary = Trie.isBoundary(c);
+      if (isBoundary) {
+        score += BOUNDARY_COST;
+      }
+      char queryHead = query.charAt(queryIndex);
+      boolean isBoundaryMatch = (onBoundary || isBoundary) && Trie.isBoundary(queryHead);
+      if (Trie.equal(c, queryHead, isBoundaryMatch)) {
+        queryIndex++;
+      }
+      onBoundary = Trie.isBoundaryStart(c);
+    }
+    return queryIndex == query.length() ? score : NO_MATCH;
+  }
+}
@@ -1,34 +1,83 @@
 package com.id.file;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
 
 import com.id.git.FileDelta;
 
+/**
+ * Tracks the status of each line and the lines deleted after it. Lines that
+ * are untouched and have nothing buried after them are stored as nulls in
+ * {@link SparseLineList}s, so they take no space at all and the lines of a
+ * freshly loaded file are never looked at.
+ */
 public class Graveyard implements File.Listener {
-  private final List<Tombstone> tombstones = new ArrayList<Tombstone>();
-  private final List<Grave> graves = new ArrayList<Grave>();
+  private static final Grave EMPTY_GRAVE = new Grave();
+
+  private final SparseLineList<Tombstone> tombstones;
+  private final SparseLineList<Grave> graves;
   private Grave otherGrave;
+  // Weighs each line as one plus the size of its grave.
+  private LineWeightIndex physicalLines;
 
   public Graveyard(List<String> lines) {
-    for (String line : lines) {
-      tombstones.add(new Tombstone(line, line));
-      graves.add(new Grave());
-    }
+    tombstones = new SparseLineList<Tombstone>(lines.size());
+    graves = new SparseLineList<Grave>(lines.size());
     reset();
   }
 
   public void reset() {
     resetRange(0, tombstones.size() - 1);
     otherGrave = new Grave();
+    physicalLines = new LineWeightIndex(tombstones.size());
   }
 
   public void resetRange(int from, int to) {
-    for (int i = from; i <= to; i++) {
-      tombstones.get(i).reset();
-      graves.set(i, new Grave());
+    if (from > to) {
+      return;
+    }
+    tombstones.clear(from, to - from + 1);
+    graves.clear(from, to - from + 1);
+    if (physicalLines != null) {
+      physicalLines.setWeight(from, to - from + 1, 1);
+    }
+  }
+
+  /**
+   * Adds untouched lines to the end of the file, as when they are read in
+   * after the file has been opened.
+   */
+  public void appendOriginalLines(int count) {
+    int y = tombstones.size();
+    tombstones.insertNulls(y, count);
+    graves.insertNulls(y, count);
+    physicalLines.insert(y, count);
+  }
+
+  /**
+   * Tombstones of untouched lines aren't stored.
+   */
+  private static Tombstone storable(Tombstone tombstone) {
+    return tombstone.getStatus() == Tombstone.Status.NORMAL ? null : tombstone;
+  }
+
+  private static Grave storable(Grave grave) {
+    return grave.isEmpty() ? null : grave;
+  }
+
+  /**
+   * Called after the grave of line y has changed size.
+   */
+  private void graveChanged(int y) {
+    if (y == -1) {
+      return;
     }
+    Grave grave = getGrave(y);
+    if (grave.isEmpty()) {
+      graves.set(y, null);
+    }
+    physicalLines.setWeight(y, 1 + grave.size());
   }
 
   @Override
@@ -37,31 +86,122 @@ public class Graveyard implements File.Listener {
 
     Grave previousGrave = getGrave(y - 1);
     splitResult = previousGrave.split(line);
+    physicalLines.insert(y, 1);
     if (splitResult == null) {
-      splitResult = new Pair(new Tombstone(line, null), new Grave());
+      tombstones.insert(y, Arrays.asList(new Tombstone(line, null)));
+      graves.insertNulls(y, 1);
+      return;
     }
-    tombstones.add(y, splitResult.getTombstone());
-    graves.add(y, splitResult.getGrave());
+    tombstones.insert(y, Arrays.asList(storable(splitResult.getTombstone())));
+    graves.insert(y, Arrays.asList(storable(splitResult.getGrave())));
+    graveChanged(y - 1);
+    graveChanged(y);
   }
 
   @Override
   public void onLineRemoved(int y, String line) {
     Tombstone tombstone = tombstones.remove(y);
     Grave grave = graves.remove(y);
-    if (!tombstone.getCurrent().equals(line)) {
+    physicalLines.remove(y, 1);
+    bury(y - 1, tombstone, grave, line);
+  }
+
+  private void bury(int previousY, Tombstone tombstone, Grave grave, String line) {
+    if (tombstone == null) {
+      tombstone = new Tombstone(line, line);
+    } else if (!tombstone.getCurrent().equals(line)) {
       throw new IllegalStateException();
     }
+    if (grave == null) {
+      grave = EMPTY_GRAVE;
+    }
     if (tombstone.getStatus() == Tombstone.Status.NEW && grave.isEmpty()) {
       // Deleting a new line with an empty grave yields nothing to inherit.
       return;
     }
-    Grave previousGrave = getGrave(y - 1);
+    Grave previousGrave = getWritableGrave(previousY);
     previousGrave.inherit(tombstone, grave);
+    graveChanged(previousY);
+  }
+
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    int changed = Math.min(removedLines.size(), insertedLines.size());
+    for (int i = 0; i < changed; i++) {
+      onLineChanged(y + i, removedLines.get(i), insertedLines.get(i));
+    }
+    int position = y + changed;
+    removeLines(position, removedLines.subList(changed, removedLines.size()));
+    insertLines(position, insertedLines.subList(changed, insertedLines.size()));
+  }
+
+  private void removeLines(int y, List<String> lines) {
+    List<Tombstone> removedTombstones = tombstones.getRange(y, lines.size());
+    List<Grave> removedGraves = graves.getRange(y, lines.size());
+    for (int i = 0; i < lines.size(); i++) {
+      bury(y - 1, removedTombstones.get(i), removedGraves.get(i), lines.get(i));
+    }
+    tombstones.remove(y, lines.size());
+    graves.remove(y, lines.size());
+    physicalLines.remove(y, lines.size());
+  }
+
+  private void insertLines(int y, List<String> lines) {
+    // Lines are inserted from last to first at the same position, so each one
+    // is dug out of the same grave.
+    Grave previousGrave = getGrave(y - 1);
+    Tombstone[] newTombstones = new Tombstone[lines.size()];
+    Grave[] newGraves = new Grave[lines.size()];
+    for (int i = lines.size() - 1; i >= 0; i--) {
+      Pair splitResult = previousGrave.split(lines.get(i));
+      if (splitResult == null) {
+        newTombstones[i] = new Tombstone(lines.get(i), null);
+      } else {
+        newTombstones[i] = storable(splitResult.getTombstone());
+        newGraves[i] = storable(splitResult.getGrave());
+      }
+    }
+    tombstones.insert(y, Arrays.asList(newTombstones));
+    graves.insert(y, Arrays.asList(newGraves));
+    physicalLines.insert(y, lines.size());
+    graveChanged(y - 1);
+    for (int i = 0; i < newGraves.length; i++) {
+      if (newGraves[i] != null) {
+        graveChanged(y + i);
+      }
+    }
   }
 
   @Override
   public void onLineChanged(int y, String oldLine, String newLine) {
-    tombstones.get(y).setCurrent(newLine);
+    Tombstone tombstone = tombstones.get(y);
+    if (tombstone == null) {
+      tombstone = new Tombstone(newLine, oldLine);
+    } else {
+      tombstone.setCurrent(newLine);
+    }
+    boolean isNormal = tombstone.getStatus() == Tombstone.Status.NORMAL;
+    tombstones.set(y, isNormal ? null : tombstone);
+  }
+
+  /**
+   * Returns the physical line of line y, counting the lines in the graves of
+   * the lines before it.
+   */
+  public int getPhysicalLine(int y) {
+    return physicalLines.getWeightBefore(y);
+  }
+
+  /**
+   * Returns the line whose physical line, or whose grave, covers the given
+   * physical line.
+   */
+  public int getLogicalLine(int physicalY) {
+    return physicalLines.findLine(physicalY);
+  }
+
+  public int getPhysicalLineCount() {
+    return physicalLines.getTotalWeight();
   }
 
   public void debug(int y) {
@@ -70,16 +210,36 @@ public class Graveyard implements File.Listener {
   }
 
   public Tombstone.Status getStatus(int y) {
-    return tombstones.get(y).getStatus();
+    Tombstone tombstone = tombstones.get(y);
+    return tombstone == null ? Tombstone.Status.NORMAL : tombstone.getStatus();
   }
 
+  /**
+   * Returns the grave after line y, which must not be modified.
+   */
   public Grave getGrave(int y) {
     if (y == -1) {
       return otherGrave;
     }
-    return graves.get(y);
+    Grave grave = graves.get(y);
+    return grave == null ? EMPTY_GRAVE : grave;
+  }
+
+  private Grave getWritableGrave(int y) {
+    if (y == -1) {
+      return otherGrave;
+    }
+    Grave grave = graves.get(y);
+    if (grave == null) {
+      grave = new Grave();
+      graves.set(y, grave);
+    }
+    return grave;
   }
 
+  /**
+   * Returns the tombstone for line y, or null if the line is unmodified.
+   */
   public Tombstone getTombstone(int y) {
     return tombstones.get(y);
   }
@@ -89,7 +249,7 @@ public class Graveyard implements File.Listener {
   }
 
   public boolean isAllGravesEmpty() {
-    for (Grave grave : graves) {
+    for (Grave grave : graves.getValues()) {
       if (!grave.isEmpty()) {
         return false;
       }
@@ -103,7 +263,7 @@ public class Graveyard implements File.Listener {
     for (int i = 0; i < graves.size(); i++) {
       result.append(i)
             .append(": ")
-            .append(tombstones.get(i))
+            .append(tombstones.get(i) == null ? "Tombstone[]" : tombstones.get(i))
             .append(" / ")
             .append(getGrave(i))
             .append("\n");
@@ -121,13 +281,14 @@ public class Graveyard implements File.Listener {
     for (Entry<Integer, List<String>> deletion : delta.getDeletions().entrySet()) {
       int y = deletion.getKey();
       for (Tombstone tombstone : Tombstone.deletionsFromLines(deletion.getValue())) {
-        getGrave(y).inherit(tombstone, new Grave());
+        getWritableGrave(y).inherit(tombstone, new Grave());
       }
+      graveChanged(y);
     }
   }
 
   public boolean isAllStatusNormal() {
-    for (Tombstone tombstone : tombstones) {
+    for (Tombstone tombstone : tombstones.getValues()) {
       if (tombstone.getStatus() != Tombstone.Status.NORMAL) {
         return false;
       }
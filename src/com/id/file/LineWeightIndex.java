@@ -0,0 +1,225 @@
+package com.id.file;
+
+import java.util.Random;
+
+/**
+ * Gives every line of a file a weight, and answers prefix sums of weights and
+ * which line covers a given running total in O(log n).
+ *
+ * The graveyard uses this with a weight of one plus the size of each line's
+ * grave, which maps between logical lines and the physical lines shown when
+ * graves are expanded. Lines are kept in a treap of runs, where each run is a
+ * number of consecutive lines with the same weight, so a file whose lines all
+ * have weight one is a single node. Neighbouring runs of the same weight are
+ * joined whenever they meet.
+ */
+public class LineWeightIndex {
+  private static final Random random = new Random();
+
+  private static class Node {
+    private int count;
+    private final int weight;
+    private final int priority;
+    private Node left;
+    private Node right;
+    private int lineCount;
+    private int totalWeight;
+
+    public Node(int count, int weight, int priority) {
+      this.count = count;
+      this.weight = weight;
+      this.priority = priority;
+      update();
+    }
+
+    public void update() {
+      lineCount = lineCount(left) + count + lineCount(right);
+      totalWeight = totalWeight(left) + count * weight + totalWeight(right);
+    }
+  }
+
+  private Node root;
+
+  /**
+   * Creates an index of lineCount lines, each with weight one.
+   */
+  public LineWeightIndex(int lineCount) {
+    root = makeRun(lineCount, 1);
+  }
+
+  private static int lineCount(Node node) {
+    return node == null ? 0 : node.lineCount;
+  }
+
+  private static int totalWeight(Node node) {
+    return node == null ? 0 : node.totalWeight;
+  }
+
+  private static Node makeRun(int count, int weight) {
+    return count == 0 ? null : new Node(count, weight, random.nextInt());
+  }
+
+  public int size() {
+    return lineCount(root);
+  }
+
+  public int getTotalWeight() {
+    return totalWeight(root);
+  }
+
+  /**
+   * Inserts count lines of weight one before line y.
+   */
+  public void insert(int y, int count) {
+    Node[] parts = split(root, y);
+    root = join(join(parts[0], makeRun(count, 1)), parts[1]);
+  }
+
+  public void remove(int y, int count) {
+    Node[] head = split(root, y);
+    root = join(head[0], split(head[1], count)[1]);
+  }
+
+  public void setWeight(int y, int weight) {
+    setWeight(y, 1, weight);
+  }
+
+  /**
+   * Sets the weight of lines [y, y + count).
+   */
+  public void setWeight(int y, int count, int weight) {
+    Node[] head = split(root, y);
+    Node tail = split(head[1], count)[1];
+    root = join(join(head[0], makeRun(count, weight)), tail);
+  }
+
+  /**
+   * Returns the total weight of the lines before line y.
+   */
+  public int getWeightBefore(int y) {
+    int result = 0;
+    Node node = root;
+    while (node != null) {
+      int leftCount = lineCount(node.left);
+      if (y <= leftCount) {
+        node = node.left;
+      } else if (y < leftCount + node.count) {
+        return result + totalWeight(node.left) + (y - leftCount) * node.weight;
+      } else {
+        result += totalWeight(node.left) + node.count * node.weight;
+        y -= leftCount + node.count;
+        node = node.right;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the line y for which getWeightBefore(y) <= weight <
+   * getWeightBefore(y + 1), or size() if weight is at least the total.
+   */
+  public int findLine(int weight) {
+    int result = 0;
+    Node node = root;
+    while (node != null) {
+      int leftWeight = totalWeight(node.left);
+      if (weight < leftWeight) {
+        node = node.left;
+        continue;
+      }
+      weight -= leftWeight;
+      int runWeight = node.count * node.weight;
+      if (weight < runWeight) {
+        return result + lineCount(node.left) + weight / node.weight;
+      }
+      weight -= runWeight;
+      result += lineCount(node.left) + node.count;
+      node = node.right;
+    }
+    return result;
+  }
+
+  // For testing.
+  int getRunCount() {
+    return countRuns(root);
+  }
+
+  private static int countRuns(Node node) {
+    return node == null ? 0 : countRuns(node.left) + 1 + countRuns(node.right);
+  }
+
+  /**
+   * Splits the tree into one holding the first y lines and one holding the
+   * rest, cutting a run in two if necessary.
+   */
+  private static Node[] split(Node node, int y) {
+    if (node == null) {
+      return new Node[] { null, null };
+    }
+    int leftCount = lineCount(node.left);
+    if (y <= leftCount) {
+      Node[] parts = split(node.left, y);
+      node.left = parts[1];
+      node.update();
+      return new Node[] { parts[0], node };
+    }
+    if (y >= leftCount + node.count) {
+      Node[] parts = split(node.right, y - leftCount - node.count);
+      node.right = parts[0];
+      node.update();
+      return new Node[] { node, parts[1] };
+    }
+    // The rest of the run keeps the node's priority, which is at least that
+    // of everything it inherits on the right.
+    int k = y - leftCount;
+    Node rest = new Node(node.count - k, node.weight, node.priority);
+    rest.right = node.right;
+    rest.update();
+    node.count = k;
+    node.right = null;
+    node.update();
+    return new Node[] { node, rest };
+  }
+
+  /**
+   * Merges the trees, making a's last run and b's first one run if they have
+   * the same weight.
+   */
+  private static Node join(Node a, Node b) {
+    if (a == null || b == null) {
+      return merge(a, b);
+    }
+    Node last = a;
+    while (last.right != null) {
+      last = last.right;
+    }
+    Node first = b;
+    while (first.left != null) {
+      first = first.left;
+    }
+    if (last.weight != first.weight) {
+      return merge(a, b);
+    }
+    int count = last.count + first.count;
+    Node head = split(a, lineCount(a) - last.count)[0];
+    Node tail = split(b, first.count)[1];
+    return merge(merge(head, makeRun(count, last.weight)), tail);
+  }
+
+  private static Node merge(Node a, Node b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a.priority > b.priority) {
+      a.right = merge(a.right, b);
+      a.update();
+      return a;
+    }
+    b.left = merge(a, b.left);
+    b.update();
+    return b;
+  }
+}
@@ -0,0 +1,426 @@
+package com.id.file;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import com.id.util.Util;
+
+/**
+ * A read-only radix trie from string keys to string values, kept in a file
+ * that is mapped into memory, so opening one takes no time however many keys
+ * it holds. Fuzzy matching works as in {@link Trie}. The file also records the
+ * length, modification time and content hash of the source the keys came
+ * from, so that callers can tell whether it is out of date.
+ *
+ * After the header, the file holds six ints for every node in breadth-first
+ * order: the start and length of its label in the character table, its first
+ * child and child count, and its first value and value count. A node's
+ * children are consecutive and sorted by the first character of their labels.
+ * Then come the start and length of every value, then the character table.
+ */
+public class MappedTrie {
+  private static final int MAGIC = 0x69645472;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 44;
+  private static final int NODE_INTS = 6;
+  private static final int CANCELLATION_CHECK_INTERVAL = 1 << 12;
+
+  private final long sourceLength;
+  private final long sourceModified;
+  private final long sourceHash;
+  private final IntBuffer nodes;
+  private final IntBuffer values;
+  private final CharBuffer chars;
+
+  private MappedTrie(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a trie file");
+    }
+    sourceLength = buffer.getLong(8);
+    sourceModified = buffer.getLong(16);
+    sourceHash = buffer.getLong(24);
+    int nodeCount = buffer.getInt(32);
+    int valueCount = buffer.getInt(36);
+    int charCount = buffer.getInt(40);
+    long nodesSize = 4L * NODE_INTS * nodeCount;
+    long valuesSize = 4L * 2 * valueCount;
+    if (nodeCount < 1 || HEADER_SIZE + nodesSize + valuesSize + 2L * charCount
+        != buffer.capacity()) {
+      throw new IOException("Truncated trie file");
+    }
+    nodes = slice(buffer, HEADER_SIZE, nodesSize).asIntBuffer();
+    values = slice(buffer, HEADER_SIZE + nodesSize, valuesSize).asIntBuffer();
+    chars = slice(buffer, HEADER_SIZE + nodesSize + valuesSize, 2L * charCount).asCharBuffer();
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, long start, long size) {
+    ByteBuffer copy = buffer.duplicate();
+    copy.position((int) start);
+    copy.limit((int) (start + size));
+    return copy.slice();
+  }
+
+  public static MappedTrie open(java.io.File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+      return new MappedTrie(buffer);
+    } finally {
+      // The mapping stays valid after the file is closed.
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a trie holding the entries to the file, replacing it only once it
+   * has been written in full.
+   */
+  public static void write(SortedMap<String, List<String>> entries, long sourceLength,
+      long sourceModified, long sourceHash, java.io.File file) throws IOException {
+    List<String> keys = new ArrayList<String>(entries.keySet());
+    StringBuilder charTable = new StringBuilder();
+    IntList nodeTable = new IntList();
+    IntList valueTable = new IntList();
+    // The keys each node covers, and how much of them its path matches.
+    IntList pending = new IntList();
+    addNode(nodeTable, charTable, "");
+    pending.add(0);
+    pending.add(keys.size());
+    pending.add(0);
+    for (int node = 0; node < nodeTable.size() / NODE_INTS; node++) {
+      int lo = pending.get(3 * node);
+      int hi = pending.get(3 * node + 1);
+      int depth = pending.get(3 * node + 2);
+      int firstValue = valueTable.size() / 2;
+      nodeTable.set(node * NODE_INTS + 4, firstValue);
+      if (lo < hi && keys.get(lo).length() == depth) {
+        // Sorted keys put the one ending here first.
+        for (String value : entries.get(keys.get(lo))) {
+          valueTable.add(charTable.length());
+          valueTable.add(value.length());
+          charTable.append(value);
+        }
+        lo++;
+      }
+      nodeTable.set(node * NODE_INTS + 5, valueTable.size() / 2 - firstValue);
+      nodeTable.set(node * NODE_INTS + 2, nodeTable.size() / NODE_INTS);
+      int childCount = 0;
+      for (int start = lo; start < hi; childCount++) {
+        char c = keys.get(start).charAt(depth);
+        int end = start + 1;
+        while (end < hi && keys.get(end).charAt(depth) == c) {
+          end++;
+        }
+        // The first and last keys of a sorted group share what they all do.
+        String first = keys.get(start);
+        String last = keys.get(end - 1);
+        int labelEnd = depth + 1;
+        while (labelEnd < first.length() && labelEnd < last.length()
+            && first.charAt(labelEnd) == last.charAt(labelEnd)) {
+          labelEnd++;
+        }
+        addNode(nodeTable, charTable, first.substring(depth, labelEnd));
+        pending.add(start);
+        pending.add(end);
+        pending.add(labelEnd);
+        start = end;
+      }
+      nodeTable.set(node * NODE_INTS + 3, childCount);
+    }
+
+    java.io.File parent = file.getAbsoluteFile().getParentFile();
+    java.io.File temp = java.io.File.createTempFile(".id-" + file.getName(), ".tmp", parent);
+    boolean written = false;
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(sourceLength);
+        out.writeLong(sourceModified);
+        out.writeLong(sourceHash);
+        out.writeInt(nodeTable.size() / NODE_INTS);
+        out.writeInt(valueTable.size() / 2);
+        out.writeInt(charTable.length());
+        nodeTable.writeTo(out);
+        valueTable.writeTo(out);
+        out.writeChars(charTable.toString());
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(file)) {
+        // Some platforms won't rename over an existing file.
+        if (!file.delete() || !temp.renameTo(file)) {
+          throw new IOException("Couldn't replace " + file);
+        }
+      }
+      written = true;
+    } finally {
+      if (!written) {
+        temp.delete();
+      }
+    }
+  }
+
+  private static void addNode(IntList nodeTable, StringBuilder charTable, String label) {
+    nodeTable.add(charTable.length());
+    nodeTable.add(label.length());
+    for (int i = 2; i < NODE_INTS; i++) {
+      nodeTable.add(0);
+    }
+    charTable.append(label);
+  }
+
+  private static class IntList {
+    private int[] ints = new int[64];
+    private int size = 0;
+
+    public void add(int i) {
+      if (size == ints.length) {
+        int[] grown = new int[2 * size];
+        System.arraycopy(ints, 0, grown, 0, size);
+        ints = grown;
+      }
+      ints[size++] = i;
+    }
+
+    public int get(int index) {
+      return ints[index];
+    }
+
+    public void set(int index, int i) {
+      ints[index] = i;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+      for (int i = 0; i < size; i++) {
+        out.writeInt(ints[i]);
+      }
+    }
+  }
+
+  public long getSourceLength() {
+    return sourceLength;
+  }
+
+  public long getSourceModified() {
+    return sourceModified;
+  }
+
+  public long getSourceHash() {
+    return sourceHash;
+  }
+
+  private int labelStart(int node) {
+    return nodes.get(node * NODE_INTS);
+  }
+
+  private int labelLength(int node) {
+    return nodes.get(node * NODE_INTS + 1);
+  }
+
+  private int firstChild(int node) {
+    return nodes.get(node * NODE_INTS + 2);
+  }
+
+  private int childCount(int node) {
+    return nodes.get(node * NODE_INTS + 3);
+  }
+
+  /**
+   * Returns the values stored under exactly the key.
+   */
+  public List<String> getValues(String key) {
+    List<String> result = new ArrayList<String>();
+    int node = 0;
+    int i = 0;
+    while (i < key.length()) {
+      int child = -1;
+      for (int j = firstChild(node); j < firstChild(node) + childCount(node); j++) {
+        if (chars.get(labelStart(j)) == key.charAt(i)) {
+          child = j;
+          break;
+        }
+      }
+      if (child < 0 || labelLength(child) > key.length() - i) {
+        return result;
+      }
+      for (int j = 0; j < labelLength(child); j++) {
+        if (chars.get(labelStart(child) + j) != key.charAt(i + j)) {
+          return result;
+        }
+      }
+      node = child;
+      i += labelLength(child);
+    }
+    int firstValue = nodes.get(node * NODE_INTS + 4);
+    for (int j = 0; j < nodes.get(node * NODE_INTS + 5); j++) {
+      result.add(getValue(firstValue + j));
+    }
+    return result;
+  }
+
+  private String getValue(int value) {
+    int start = values.get(2 * value);
+    char[] text = new char[values.get(2 * value + 1)];
+    for (int i = 0; i < text.length; i++) {
+      text[i] = chars.get(start + i);
+    }
+    return new String(text);
+  }
+
+  /**
+   * A stack of positions in the search, as in {@link Trie}.
+   */
+  private static class FuzzyStack {
+    private int[] nodes = new int[16];
+    private int[] offsets = new int[16];
+    private boolean[] onBoundary = new boolean[16];
+    private int[] queryIndexes = new int[16];
+    private int size = 0;
+
+    public void push(int node, int offset, boolean boundary, int queryIndex) {
+      if (size == nodes.length) {
+        int capacity = 2 * size;
+        nodes = Arrays.copyOf(nodes, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        onBoundary = Arrays.copyOf(onBoundary, capacity);
+        queryIndexes = Arrays.copyOf(queryIndexes, capacity);
+      }
+      nodes[size] = node;
+      offsets[size] = offset;
+      onBoundary[size] = boundary;
+      queryIndexes[size] = queryIndex;
+      size++;
+    }
+  }
+
+  /**
+   * Returns the keys fuzzily matching the query, best first, stopping after
+   * maxResults of them, exactly as
+   * {@link Trie#doScoredFuzzyMatch(boolean, String, int)} does.
+   */
+  public List<Trie.FuzzyMatch> doScoredFuzzyMatch(boolean onBoundary, String query,
+      int maxResults) {
+    List<Trie.FuzzyMatch> results = new ArrayList<Trie.FuzzyMatch>();
+    Set<String> seen = new HashSet<String>();
+    Map<Integer, BitSet> visited = new HashMap<Integer, BitSet>();
+    FuzzyStack current = new FuzzyStack();
+    FuzzyStack next = new FuzzyStack();
+    current.push(0, 0, onBoundary, 0);
+    int score = 0;
+    int steps = 0;
+    while (results.size() < maxResults && (current.size > 0 || next.size > 0)) {
+      if (++steps % CANCELLATION_CHECK_INTERVAL == 0) {
+        Util.checkCancelled();
+      }
+      if (current.size == 0) {
+        FuzzyStack swap = current;
+        current = next;
+        next = swap;
+        score += 20;
+      }
+      current.size--;
+      int node = current.nodes[current.size];
+      int offset = current.offsets[current.size];
+      boolean isOnBoundary = current.onBoundary[current.size];
+      int queryIndex = current.queryIndexes[current.size];
+
+      int labelLength = labelLength(node);
+      if (!markVisited(visited, node, labelLength, offset, isOnBoundary, queryIndex)) {
+        continue;
+      }
+      if (queryIndex == query.length()) {
+        addCompletions(node, score, seen, results, maxResults);
+        continue;
+      }
+
+      char queryHead = query.charAt(queryIndex);
+      if (offset < labelLength) {
+        pushFuzzySteps(current, next, node, offset + 1, chars.get(labelStart(node) + offset),
+            isOnBoundary, queryIndex, queryHead);
+        continue;
+      }
+      int firstChild = firstChild(node);
+      for (int i = childCount(node) - 1; i >= 0; i--) {
+        int child = firstChild + i;
+        pushFuzzySteps(current, next, child, 1, chars.get(labelStart(child)), isOnBoundary,
+            queryIndex, queryHead);
+      }
+    }
+    return results;
+  }
+
+  private static boolean markVisited(Map<Integer, BitSet> visited, int node, int labelLength,
+      int offset, boolean onBoundary, int queryIndex) {
+    BitSet positions = visited.get(node);
+    if (positions == null) {
+      positions = new BitSet();
+      visited.put(node, positions);
+    }
+    int index = 2 * (queryIndex * (labelLength + 1) + offset) + (onBoundary ? 1 : 0);
+    if (positions.get(index)) {
+      return false;
+    }
+    positions.set(index);
+    return true;
+  }
+
+  private void pushFuzzySteps(FuzzyStack current, FuzzyStack next, int node, int offset,
+      char c, boolean onBoundary, int queryIndex, char queryHead) {
+    boolean isBoundaryMatch = (onBoundary || Trie.isBoundary(c)) && Trie.isBoundary(queryHead);
+    FuzzyStack stack = Trie.isBoundary(c) ? next : current;
+    boolean nextOnBoundary = Trie.isBoundaryStart(c);
+    stack.push(node, offset, nextOnBoundary, queryIndex);
+    if (Trie.equal(c, queryHead, isBoundaryMatch)) {
+      stack.push(node, offset, nextOnBoundary, queryIndex + 1);
+    }
+  }
+
+  private void addCompletions(int node, int score, Set<String> seen,
+      List<Trie.FuzzyMatch> out, int max) {
+    FuzzyStack stack = new FuzzyStack();
+    stack.push(node, 0, false, 0);
+    while (stack.size > 0) {
+      int next = stack.nodes[--stack.size];
+      int firstValue = nodes.get(next * NODE_INTS + 4);
+      int valueCount = nodes.get(next * NODE_INTS + 5);
+      for (int i = 0; i < valueCount; i++) {
+        String completion = getValue(firstValue + i);
+        if (seen.add(completion)) {
+          out.add(new Trie.FuzzyMatch(completion, score));
+          if (out.size() >= max) {
+            return;
+          }
+        }
+      }
+      int firstChild = firstChild(next);
+      for (int i = childCount(next) - 1; i >= 0; i--) {
+        stack.push(firstChild + i, 0, false, 0);
+      }
+    }
+  }
+}
@@ -1,16 +1,48 @@
 package com.id.file;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
 import com.id.editor.Point;
 
 public class Patch implements File.Listener {
-  private interface Change {
-    void apply(File file);
-    Change invert();
+  private static final int INSERT_LINE = 0;
+  private static final int REMOVE_LINE = 1;
+  private static final int CHANGE_LINE = 2;
+  private static final int EDIT_LINE = 3;
+  private static final int REPLACE_LINES = 4;
+
+  // Rough per-object overheads used for the memory estimate.
+  private static final long OBJECT_SIZE = 24;
+  private static final long STRING_SIZE = 40;
+
+  private static abstract class Change {
+    public abstract void apply(File file);
+    public abstract Change invert();
+    public abstract void writeTo(DataOutputStream out) throws IOException;
+    public abstract long getMemoryUsage();
+
+    /**
+     * Returns a single change equivalent to this one followed by next, or null
+     * if they can't be combined.
+     */
+    public Change mergeWith(Change next) {
+      return null;
+    }
+
+    /**
+     * Returns an equivalent change that takes less memory.
+     */
+    public Change compact() {
+      return this;
+    }
   }
 
-  private class InsertLine implements Change {
+  private static class InsertLine extends Change {
     private final int y;
     private final String line;
 
@@ -28,9 +60,32 @@ public class Patch implements File.Listener {
     public Change invert() {
       return new RemoveLine(y, line);
     }
+
+    @Override
+    public Change mergeWith(Change next) {
+      if (next instanceof ChangeLine) {
+        ChangeLine change = (ChangeLine) next;
+        if (change.y == y && change.from.equals(line)) {
+          return new InsertLine(y, change.to);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+      out.writeByte(INSERT_LINE);
+      out.writeInt(y);
+      writeString(out, line);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+      return OBJECT_SIZE + sizeOf(line);
+    }
   }
 
-  private class RemoveLine implements Change {
+  private static class RemoveLine extends Change {
     private final int y;
     private final String line;
 
@@ -48,9 +103,21 @@ public class Patch implements File.Listener {
     public Change invert() {
       return new InsertLine(y, line);
     }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+      out.writeByte(REMOVE_LINE);
+      out.writeInt(y);
+      writeString(out, line);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+      return OBJECT_SIZE + sizeOf(line);
+    }
   }
 
-  private class ChangeLine implements Change {
+  private static class ChangeLine extends Change {
     private final int y;
     private final String from;
     private final String to;
@@ -70,6 +137,131 @@ public class Patch implements File.Listener {
     public Change invert() {
       return new ChangeLine(y, to, from);
     }
+
+    @Override
+    public Change mergeWith(Change next) {
+      if (next instanceof ChangeLine) {
+        ChangeLine change = (ChangeLine) next;
+        if (change.y == y && change.from.equals(to)) {
+          return new ChangeLine(y, from, change.to);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public Change compact() {
+      int prefix = 0;
+      int maxPrefix = Math.min(from.length(), to.length());
+      while (prefix < maxPrefix && from.charAt(prefix) == to.charAt(prefix)) {
+        prefix++;
+      }
+      int suffix = 0;
+      int maxSuffix = maxPrefix - prefix;
+      while (suffix < maxSuffix
+          && from.charAt(from.length() - suffix - 1) == to.charAt(to.length() - suffix - 1)) {
+        suffix++;
+      }
+      return new EditLine(y, prefix, suffix,
+          new String(from.substring(prefix, from.length() - suffix)),
+          new String(to.substring(prefix, to.length() - suffix)));
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+      out.writeByte(CHANGE_LINE);
+      out.writeInt(y);
+      writeString(out, from);
+      writeString(out, to);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+      return OBJECT_SIZE + sizeOf(from) + sizeOf(to);
+    }
+  }
+
+  /**
+   * A line change stored as the text that differs between the old and new
+   * line. The unchanged prefix and suffix are taken from the line in the file
+   * when the change is applied.
+   */
+  private static class EditLine extends Change {
+    private final int y;
+    private final int prefixLength;
+    private final int suffixLength;
+    private final String removed;
+    private final String inserted;
+
+    public EditLine(int y, int prefixLength, int suffixLength, String removed, String inserted) {
+      this.y = y;
+      this.prefixLength = prefixLength;
+      this.suffixLength = suffixLength;
+      this.removed = removed;
+      this.inserted = inserted;
+    }
+
+    @Override
+    public void apply(File file) {
+      String line = file.getLine(y);
+      file.changeLine(y, line.substring(0, prefixLength) + inserted
+          + line.substring(line.length() - suffixLength));
+    }
+
+    @Override
+    public Change invert() {
+      return new EditLine(y, prefixLength, suffixLength, inserted, removed);
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+      out.writeByte(EDIT_LINE);
+      out.writeInt(y);
+      out.writeInt(prefixLength);
+      out.writeInt(suffixLength);
+      writeString(out, removed);
+      writeString(out, inserted);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+      return OBJECT_SIZE + sizeOf(removed) + sizeOf(inserted);
+    }
+  }
+
+  private static class ReplaceLines extends Change {
+    private final int y;
+    private final List<String> removedLines;
+    private final List<String> insertedLines;
+
+    public ReplaceLines(int y, List<String> removedLines, List<String> insertedLines) {
+      this.y = y;
+      this.removedLines = removedLines;
+      this.insertedLines = insertedLines;
+    }
+
+    @Override
+    public void apply(File file) {
+      file.replaceLines(y, removedLines.size(), insertedLines);
+    }
+
+    @Override
+    public Change invert() {
+      return new ReplaceLines(y, insertedLines, removedLines);
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+      out.writeByte(REPLACE_LINES);
+      out.writeInt(y);
+      writeLines(out, removedLines);
+      writeLines(out, insertedLines);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+      return OBJECT_SIZE + sizeOf(removedLines) + sizeOf(insertedLines);
+    }
   }
 
   private final Stack<Change> changes = new Stack<Change>();
@@ -94,6 +286,11 @@ public class Patch implements File.Listener {
     changes.push(new ChangeLine(y, oldLine, newLine));
   }
 
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    changes.push(new ReplaceLines(y, removedLines, insertedLines));
+  }
+
   public boolean isEmpty() {
     return changes.isEmpty();
   }
@@ -119,4 +316,126 @@ public class Patch implements File.Listener {
   public Point getPosition() {
     return position;
   }
+
+  /**
+   * Shrinks a finished patch. Successive edits to the same line are merged
+   * into one, and line changes only keep the text that actually differs.
+   */
+  public void compact() {
+    List<Change> merged = new ArrayList<Change>();
+    for (Change change : changes) {
+      if (!merged.isEmpty()) {
+        Change combined = merged.get(merged.size() - 1).mergeWith(change);
+        if (combined != null) {
+          merged.set(merged.size() - 1, combined);
+          continue;
+        }
+      }
+      merged.add(change);
+    }
+    changes.clear();
+    for (Change change : merged) {
+      changes.push(change.compact());
+    }
+  }
+
+  public int getChangeCount() {
+    return changes.size();
+  }
+
+  /**
+   * An estimate of the heap used by this patch, in bytes.
+   */
+  public long getMemoryUsage() {
+    long result = OBJECT_SIZE;
+    for (Change change : changes) {
+      result += change.getMemoryUsage();
+    }
+    return result;
+  }
+
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(position.getY());
+    out.writeInt(position.getX());
+    out.writeInt(changes.size());
+    for (Change change : changes) {
+      change.writeTo(out);
+    }
+  }
+
+  public static Patch readFrom(DataInputStream in) throws IOException {
+    int y = in.readInt();
+    int x = in.readInt();
+    Patch patch = new Patch(new Point(y, x));
+    int changeCount = in.readInt();
+    for (int i = 0; i < changeCount; i++) {
+      patch.changes.push(readChange(in));
+    }
+    return patch;
+  }
+
+  private static Change readChange(DataInputStream in) throws IOException {
+    int type = in.readByte();
+    int y = in.readInt();
+    switch (type) {
+    case INSERT_LINE:
+      return new InsertLine(y, readString(in));
+    case REMOVE_LINE:
+      return new RemoveLine(y, readString(in));
+    case CHANGE_LINE:
+      String from = readString(in);
+      return new ChangeLine(y, from, readString(in));
+    case EDIT_LINE:
+      int prefixLength = in.readInt();
+      int suffixLength = in.readInt();
+      String removed = readString(in);
+      return new EditLine(y, prefixLength, suffixLength, removed, readString(in));
+    case REPLACE_LINES:
+      List<String> removedLines = readLines(in);
+      return new ReplaceLines(y, removedLines, readLines(in));
+    }
+    throw new IOException("Unknown change type " + type);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    out.writeInt(s.length());
+    out.writeChars(s);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = in.readChar();
+    }
+    return new String(chars);
+  }
+
+  private static void writeLines(DataOutputStream out, List<String> lines) throws IOException {
+    out.writeInt(lines.size());
+    for (String line : lines) {
+      writeString(out, line);
+    }
+  }
+
+  private static List<String> readLines(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<String> lines = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      lines.add(readString(in));
+    }
+    return lines;
+  }
+
+  private static long sizeOf(String s) {
+    return STRING_SIZE + 2L * s.length();
+  }
+
+  private static long sizeOf(List<String> lines) {
+    long result = OBJECT_SIZE;
+    for (String line : lines) {
+      result += sizeOf(line);
+    }
+    return result;
+  }
 }
@@ -0,0 +1,93 @@
+package com.id.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A stack of patches kept in a compressed temporary file, used to hold the
+ * oldest undo history once it no longer fits in memory. The file is created
+ * on the first push.
+ */
+public class PatchJournal {
+  private final List<Long> offsets = new ArrayList<Long>();
+  private java.io.File journalFile = null;
+  private RandomAccessFile data = null;
+  private long length = 0;
+
+  public void push(Patch patch) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+    patch.writeTo(out);
+    out.close();
+    if (data == null) {
+      journalFile = java.io.File.createTempFile("id-undo", ".journal");
+      journalFile.deleteOnExit();
+      data = new RandomAccessFile(journalFile, "rw");
+    }
+    data.seek(length);
+    data.write(bytes.toByteArray());
+    offsets.add(length);
+    length += bytes.size();
+  }
+
+  /**
+   * Removes and returns the most recently pushed patch.
+   */
+  public Patch pop() throws IOException {
+    if (offsets.isEmpty()) {
+      throw new IllegalStateException("Journal is empty");
+    }
+    long offset = offsets.remove(offsets.size() - 1);
+    byte[] bytes = new byte[(int) (length - offset)];
+    data.seek(offset);
+    data.readFully(bytes);
+    data.setLength(offset);
+    length = offset;
+    DataInputStream in = new DataInputStream(
+        new InflaterInputStream(new ByteArrayInputStream(bytes)));
+    try {
+      return Patch.readFrom(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  public int size() {
+    return offsets.size();
+  }
+
+  public boolean isEmpty() {
+    return offsets.isEmpty();
+  }
+
+  /**
+   * The number of bytes the journal takes on disk.
+   */
+  public long getByteLength() {
+    return length;
+  }
+
+  public void clear() {
+    offsets.clear();
+    length = 0;
+    if (data == null) {
+      return;
+    }
+    try {
+      data.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    journalFile.delete();
+    data = null;
+    journalFile = null;
+  }
+}
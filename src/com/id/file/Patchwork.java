@@ -1,17 +1,42 @@
 package com.id.file;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.Stack;
 
 import com.id.editor.Point;
 
+/**
+ * The undo history of a file. Finished patches are compacted, and once the
+ * history takes more than the memory budget the oldest patches are spilled
+ * to a {@link PatchJournal} on disk, to be read back if undo reaches them.
+ * With an {@link UndoJournal} the history is also kept across sessions.
+ */
 public class Patchwork implements File.Listener {
+  public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
   private final Stack<Patch> pastPatches = new Stack<Patch>();
   private final Stack<Patch> futurePatches = new Stack<Patch>();
+  private final PatchJournal journal = new PatchJournal();
+  private UndoJournal undoJournal = null;
+  // Patches from earlier sessions that haven't been read back in yet. They
+  // are older than everything in the spill journal and in memory.
+  private Stack<Long> journalPast = new Stack<Long>();
+  private Stack<Long> journalFuture = new Stack<Long>();
   private Patch currentPatch = null;
   private int savedAtDepth = 0;
   private ModifiedListener listener;
+  private long memoryBudget;
+  private long memoryUsage = 0;
+  private boolean canSpill = true;
+
+  public Patchwork() {
+    this(DEFAULT_MEMORY_BUDGET);
+  }
 
-  public Patchwork() {}
+  public Patchwork(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
 
   private void stateChanged() {
     if (listener != null) {
@@ -35,21 +60,113 @@ public class Patchwork implements File.Listener {
       currentPatch = null;
       return;
     }
-    if (!futurePatches.isEmpty()) {
+    if (!futurePatches.isEmpty() || !journalFuture.isEmpty()) {
       clearFuturePatches();
     }
-    pastPatches.add(currentPatch);
+    currentPatch.compact();
+    if (undoJournal != null) {
+      try {
+        undoJournal.recordPatch(currentPatch);
+      } catch (IOException e) {
+        e.printStackTrace();
+        closeUndoJournal();
+      }
+    }
+    pushPatch(pastPatches, currentPatch);
     currentPatch = null;
+    enforceMemoryBudget();
     stateChanged();
   }
 
   private void clearFuturePatches() {
-    if (pastPatches.size() < savedAtDepth) {
+    if (getDepth() < savedAtDepth) {
       // We've lost the point we came from (modified the file from a point
       // earlier than when it was last saved at).
       savedAtDepth = -1;
     }
-    futurePatches.clear();
+    while (!futurePatches.isEmpty()) {
+      popPatch(futurePatches);
+    }
+    journalFuture.clear();
+  }
+
+  private void pushPatch(Stack<Patch> patches, Patch patch) {
+    patches.push(patch);
+    memoryUsage += patch.getMemoryUsage();
+  }
+
+  private Patch popPatch(Stack<Patch> patches) {
+    Patch patch = patches.pop();
+    memoryUsage -= patch.getMemoryUsage();
+    return patch;
+  }
+
+  /**
+   * Spills the oldest patches to the journal until the history fits in the
+   * memory budget. The most recent patch always stays in memory.
+   */
+  private void enforceMemoryBudget() {
+    while (canSpill && memoryUsage > memoryBudget && pastPatches.size() > 1) {
+      Patch oldest = pastPatches.get(0);
+      try {
+        journal.push(oldest);
+      } catch (IOException e) {
+        e.printStackTrace();
+        // Keep the history in memory rather than lose it.
+        canSpill = false;
+        return;
+      }
+      pastPatches.remove(0);
+      memoryUsage -= oldest.getMemoryUsage();
+    }
+  }
+
+  private int getDepth() {
+    return journalPast.size() + journal.size() + pastPatches.size();
+  }
+
+  /**
+   * Continues the history recorded in the given journal, and records all
+   * further history to it. The file must be in its last saved state.
+   */
+  public void setUndoJournal(UndoJournal undoJournal) {
+    boolean modified = isModified();
+    reset();
+    this.undoJournal = undoJournal;
+    journalPast = undoJournal.getUndoOffsets();
+    journalFuture = undoJournal.getRedoOffsets();
+    savedAtDepth = modified ? -1 : getDepth();
+  }
+
+  private void closeUndoJournal() {
+    if (undoJournal != null) {
+      undoJournal.close();
+      undoJournal = null;
+    }
+  }
+
+  private void recordUndo() {
+    if (undoJournal == null) {
+      return;
+    }
+    try {
+      undoJournal.recordUndo();
+    } catch (IOException e) {
+      e.printStackTrace();
+      closeUndoJournal();
+    }
+  }
+
+  private void recordRedo() {
+    if (undoJournal == null) {
+      return;
+    }
+    try {
+      undoJournal.recordRedo();
+    } catch (IOException e) {
+      e.printStackTrace();
+      closeUndoJournal();
+    }
   }
 
   public boolean inPatch() {
@@ -57,10 +174,28 @@ public class Patchwork implements File.Listener {
   }
 
   public void onSaved() {
-    savedAtDepth = pastPatches.size();
+    savedAtDepth = getDepth();
     stateChanged();
   }
 
+  public boolean hasUndoJournal() {
+    return undoJournal != null;
+  }
+
+  /**
+   * Records in the undo journal that the current state was written out with
+   * contents that have the given stamp. Every save should be recorded, even
+   * when the file isn't modified.
+   */
+  public void recordSave(long contentStamp) {
+    try {
+      undoJournal.recordSave(contentStamp);
+    } catch (IOException e) {
+      e.printStackTrace();
+      closeUndoJournal();
+    }
+  }
+
 
   public boolean isModified() {
     return isInMiddleOfPatch() || !isAtSavedDepth();
@@ -71,7 +206,7 @@ public class Patchwork implements File.Listener {
   }
 
   private boolean isAtSavedDepth() {
-    return pastPatches.size() == savedAtDepth;
+    return getDepth() == savedAtDepth;
   }
 
   public boolean isSaved() {
@@ -79,19 +214,20 @@ public class Patchwork implements File.Listener {
   }
 
   public boolean hasUndo() {
-    return !pastPatches.isEmpty();
+    return getDepth() > 0;
   }
 
   public Point undo(File file) {
     if (inPatch()) {
       throw new IllegalStateException("discarding info in undo");
     }
-    if (pastPatches.isEmpty()) {
+    if (pastPatches.isEmpty() && !restoreFromJournal()) {
       return null;
     }
-    Patch patch = pastPatches.pop();
-    futurePatches.push(patch);
+    Patch patch = popPatch(pastPatches);
+    pushPatch(futurePatches, patch);
     patch.applyInverse(file);
+    recordUndo();
     stateChanged();
     return patch.getPosition();
   }
@@ -100,16 +236,50 @@ public class Patchwork implements File.Listener {
     if (inPatch()) {
       throw new IllegalStateException("discarding info in redo");
     }
-    if (futurePatches.isEmpty()) {
+    if (futurePatches.isEmpty() && !restoreFromUndoJournal(journalFuture, futurePatches)) {
       return null;
     }
-    Patch patch = futurePatches.pop();
-    pastPatches.push(patch);
+    Patch patch = popPatch(futurePatches);
+    pushPatch(pastPatches, patch);
     patch.apply(file);
+    recordRedo();
+    enforceMemoryBudget();
     stateChanged();
     return patch.getPosition();
   }
 
+  private boolean restoreFromJournal() {
+    if (journal.isEmpty()) {
+      return restoreFromUndoJournal(journalPast, pastPatches);
+    }
+    try {
+      pushPatch(pastPatches, journal.pop());
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      // The rest of the history can't be recovered.
+      savedAtDepth = -1;
+      journal.clear();
+      journalPast.clear();
+      return false;
+    }
+  }
+
+  private boolean restoreFromUndoJournal(Stack<Long> offsets, Stack<Patch> patches) {
+    if (offsets.isEmpty()) {
+      return false;
+    }
+    try {
+      pushPatch(patches, undoJournal.readPatch(offsets.pop()));
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      savedAtDepth = -1;
+      offsets.clear();
+      return false;
+    }
+  }
+
   @Override
   public void onLineInserted(int y, String line) {
     if (currentPatch != null) {
@@ -134,11 +304,44 @@ public class Patchwork implements File.Listener {
     }
   }
 
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    if (currentPatch != null) {
+      currentPatch.onLinesReplaced(y, removedLines, insertedLines);
+      stateChanged();
+    }
+  }
+
   public void reset() {
     futurePatches.clear();
     pastPatches.clear();
+    journal.clear();
+    closeUndoJournal();
+    journalPast.clear();
+    journalFuture.clear();
     currentPatch = null;
     savedAtDepth = 0;
+    memoryUsage = 0;
+  }
+
+  public void setMemoryBudget(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+    enforceMemoryBudget();
+  }
+
+  /**
+   * An estimate of the heap used by the finished patches in the undo and
+   * redo history, in bytes.
+   */
+  public long getMemoryUsage() {
+    return memoryUsage;
+  }
+
+  /**
+   * The number of bytes of history spilled to disk.
+   */
+  public long getSpilledSize() {
+    return journal.getByteLength();
   }
 
   public void setModified() {
@@ -0,0 +1,376 @@
+package com.id.file;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Stack;
+
+/**
+ * Line storage for a {@link File}.
+ *
+ * Lines live in buffers: the original buffer, which is the list the file was
+ * loaded from and is never copied or written to, and a buffer for each run of
+ * lines added after loading. The contents of the file are described by a
+ * sequence of pieces, each referring to a run of lines in one of the buffers.
+ * An added buffer is only held by the pieces that refer to it, so lines that
+ * are replaced or removed are let go of once no piece or snapshot needs them.
+ *
+ * The pieces are kept in a treap ordered by position, so lookups and edits
+ * cost O(log n) in the number of pieces. Nodes are never modified once built,
+ * which makes {@link #snapshot()} free.
+ */
+public class PieceTable {
+  private static final Random random = new Random();
+
+  private static class Node {
+    private final List<String> buffer;
+    private final int offset;
+    private final int length;
+    private final int priority;
+    private final Node left;
+    private final Node right;
+    private final int lineCount;
+
+    public Node(List<String> buffer, int offset, int length, int priority,
+        Node left, Node right) {
+      this.buffer = buffer;
+      this.offset = offset;
+      this.length = length;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+      this.lineCount = lineCount(left) + length + lineCount(right);
+    }
+
+    public Node withChildren(Node left, Node right) {
+      return new Node(buffer, offset, length, priority, left, right);
+    }
+
+    public Node withPiece(int offset, int length, Node left, Node right) {
+      return new Node(buffer, offset, length, priority, left, right);
+    }
+  }
+
+  private final List<String> original;
+  private Node root;
+
+  public PieceTable() {
+    this(new ArrayList<String>());
+  }
+
+  /**
+   * Creates a table over the given lines. The list is used as the original
+   * buffer as is, so it must not be modified afterwards.
+   */
+  public PieceTable(List<String> original) {
+    this.original = original;
+    this.root = original.isEmpty() ? null : leaf(original, 0, original.size());
+  }
+
+  private PieceTable(List<String> original, Node root) {
+    this.original = original;
+    this.root = root;
+  }
+
+  private static int lineCount(Node node) {
+    return node == null ? 0 : node.lineCount;
+  }
+
+  private static Node leaf(List<String> buffer, int offset, int length) {
+    return new Node(buffer, offset, length, random.nextInt(), null, null);
+  }
+
+  public int size() {
+    return lineCount(root);
+  }
+
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  public String get(int y) {
+    checkIndex(y, size());
+    Node node = root;
+    while (true) {
+      int leftCount = lineCount(node.left);
+      if (y < leftCount) {
+        node = node.left;
+      } else if (y < leftCount + node.length) {
+        return node.buffer.get(node.offset + y - leftCount);
+      } else {
+        y -= leftCount + node.length;
+        node = node.right;
+      }
+    }
+  }
+
+  public void insert(int y, String line) {
+    checkIndex(y, size() + 1);
+    Node[] parts = split(root, y);
+    root = merge(appendTo(parts[0], line), parts[1]);
+  }
+
+  public String remove(int y) {
+    checkIndex(y, size());
+    String line = get(y);
+    Node[] parts = split(root, y);
+    root = merge(parts[0], split(parts[1], 1)[1]);
+    return line;
+  }
+
+  public String set(int y, String line) {
+    checkIndex(y, size());
+    String oldLine = get(y);
+    Node[] parts = split(root, y);
+    root = merge(appendTo(parts[0], line), split(parts[1], 1)[1]);
+    return oldLine;
+  }
+
+  /**
+   * Replaces removeCount lines starting at y with the given lines.
+   *
+   * @return the removed lines.
+   */
+  public List<String> replace(int y, int removeCount, List<String> newLines) {
+    checkIndex(y, size() + 1);
+    checkIndex(y + removeCount, size() + 1);
+    List<String> removedLines = new ArrayList<String>(removeCount);
+    copyRange(y, removeCount, removedLines);
+    Node[] head = split(root, y);
+    Node tail = split(head[1], removeCount)[1];
+    Node middle = null;
+    if (!newLines.isEmpty()) {
+      middle = leaf(new ArrayList<String>(newLines), 0, newLines.size());
+    }
+    root = merge(merge(head[0], middle), tail);
+    return removedLines;
+  }
+
+  /**
+   * Returns a table with the current contents that is unaffected by later
+   * edits to this one. Costs O(1).
+   */
+  public PieceTable snapshot() {
+    return new PieceTable(original, root);
+  }
+
+  /**
+   * Adds lines [start, start + count) to the given list.
+   */
+  public void copyRange(int start, int count, List<String> out) {
+    if (count <= 0) {
+      return;
+    }
+    checkIndex(start, size());
+    checkIndex(start + count - 1, size());
+    copyRange(root, start, start + count, out);
+  }
+
+  public List<String> toList() {
+    List<String> result = new ArrayList<String>(size());
+    copyRange(0, size(), result);
+    return result;
+  }
+
+  /**
+   * Returns the lines from line start onwards without copying them. Nodes are
+   * never modified, so the iterator sees the contents as they were when it was
+   * made even if the table is edited while it is in use.
+   */
+  public Iterator<String> iterator(int start) {
+    checkIndex(start, size() + 1);
+    final Stack<Node> path = new Stack<Node>();
+    int offset = start;
+    Node node = root;
+    // Find the piece holding line start, remembering the pieces to its right
+    // that still have to be visited.
+    while (node != null) {
+      int leftCount = lineCount(node.left);
+      if (offset < leftCount) {
+        path.push(node);
+        node = node.left;
+      } else if (offset < leftCount + node.length) {
+        offset -= leftCount;
+        break;
+      } else {
+        offset -= leftCount + node.length;
+        node = node.right;
+      }
+    }
+    final Node first = node;
+    final int firstOffset = offset;
+    return new Iterator<String>() {
+      private Node piece = first;
+      private int i = firstOffset;
+
+      @Override
+      public boolean hasNext() {
+        return piece != null;
+      }
+
+      @Override
+      public String next() {
+        if (piece == null) {
+          throw new NoSuchElementException();
+        }
+        String line = piece.buffer.get(piece.offset + i);
+        i++;
+        if (i == piece.length) {
+          advance();
+        }
+        return line;
+      }
+
+      private void advance() {
+        Node next = piece.right;
+        if (next == null) {
+          piece = path.isEmpty() ? null : path.pop();
+        } else {
+          while (next.left != null) {
+            path.push(next);
+            next = next.left;
+          }
+          piece = next;
+        }
+        i = 0;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * The number of pieces the lines are currently split into.
+   */
+  public int getPieceCount() {
+    return countPieces(root);
+  }
+
+  private static int countPieces(Node node) {
+    if (node == null) {
+      return 0;
+    }
+    return countPieces(node.left) + 1 + countPieces(node.right);
+  }
+
+  /**
+   * The number of lines in the buffers the pieces refer to.
+   */
+  int getBufferedLineCount() {
+    IdentityHashMap<List<String>, Boolean> buffers =
+        new IdentityHashMap<List<String>, Boolean>();
+    addBuffers(root, buffers);
+    int count = 0;
+    for (List<String> buffer : buffers.keySet()) {
+      count += buffer.size();
+    }
+    return count;
+  }
+
+  private static void addBuffers(Node node, IdentityHashMap<List<String>, Boolean> buffers) {
+    if (node == null) {
+      return;
+    }
+    addBuffers(node.left, buffers);
+    buffers.put(node.buffer, true);
+    addBuffers(node.right, buffers);
+  }
+
+  private static void copyRange(Node node, int from, int to, List<String> out) {
+    if (node == null || to <= 0 || from >= node.lineCount) {
+      return;
+    }
+    int leftCount = lineCount(node.left);
+    copyRange(node.left, from, to, out);
+    int pieceFrom = Math.max(from - leftCount, 0);
+    int pieceTo = Math.min(to - leftCount, node.length);
+    for (int i = pieceFrom; i < pieceTo; i++) {
+      out.add(node.buffer.get(node.offset + i));
+    }
+    int rightStart = leftCount + node.length;
+    copyRange(node.right, from - rightStart, to - rightStart, out);
+  }
+
+  /**
+   * Adds the line to the end of the given tree. Lines added one after another
+   * extend a single piece and share its buffer; any other line gets a buffer
+   * of its own.
+   */
+  private Node appendTo(Node tree, String line) {
+    Node extended = extendLastPiece(tree, line);
+    if (extended != null) {
+      return extended;
+    }
+    List<String> buffer = new ArrayList<String>();
+    buffer.add(line);
+    return merge(tree, leaf(buffer, 0, 1));
+  }
+
+  /**
+   * Adds the line to the buffer of the tree's last piece and extends the
+   * piece over it, if the piece ends where the buffer does. Older pieces over
+   * the same buffer stop short of the line, so snapshots don't see it.
+   */
+  private Node extendLastPiece(Node node, String line) {
+    if (node == null) {
+      return null;
+    }
+    if (node.right != null) {
+      Node right = extendLastPiece(node.right, line);
+      return right == null ? null : node.withChildren(node.left, right);
+    }
+    if (node.buffer == original || node.offset + node.length != node.buffer.size()) {
+      return null;
+    }
+    node.buffer.add(line);
+    return node.withPiece(node.offset, node.length + 1, node.left, null);
+  }
+
+  /**
+   * Splits the tree into one holding the first y lines and one holding the
+   * rest.
+   */
+  private static Node[] split(Node node, int y) {
+    if (node == null) {
+      return new Node[] { null, null };
+    }
+    int leftCount = lineCount(node.left);
+    if (y <= leftCount) {
+      Node[] parts = split(node.left, y);
+      return new Node[] { parts[0], node.withChildren(parts[1], node.right) };
+    }
+    if (y >= leftCount + node.length) {
+      Node[] parts = split(node.right, y - leftCount - node.length);
+      return new Node[] { node.withChildren(node.left, parts[0]), parts[1] };
+    }
+    int k = y - leftCount;
+    return new Node[] {
+        node.withPiece(node.offset, k, node.left, null),
+        node.withPiece(node.offset + k, node.length - k, null, node.right) };
+  }
+
+  private static Node merge(Node a, Node b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a.priority > b.priority) {
+      return a.withChildren(a.left, merge(a.right, b));
+    }
+    return b.withChildren(merge(a, b.left), b.right);
+  }
+
+  private static void checkIndex(int y, int limit) {
+    if (y < 0 || y >= limit) {
+      throw new IndexOutOfBoundsException("Line " + y + ", size " + limit);
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package com.id.file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A list with one entry per line of a file where most entries are null.
+ *
+ * Entries are kept in a treap of runs: a run is either a single non-null
+ * entry or any number of consecutive nulls, so untouched stretches of a file
+ * cost one node however long they are. Runs of nulls that end up next to each
+ * other are joined. Every operation is O(log n) in the number of runs.
+ */
+public class SparseLineList<T> {
+  private static final Random random = new Random();
+
+  private static class Node<T> {
+    // Null for a run of nulls.
+    private T value;
+    private int count;
+    private final int priority;
+    private Node<T> left;
+    private Node<T> right;
+    private int lineCount;
+
+    public Node(T value, int count, int priority) {
+      this.value = value;
+      this.count = count;
+      this.priority = priority;
+      update();
+    }
+
+    public void update() {
+      lineCount = lineCount(left) + count + lineCount(right);
+    }
+  }
+
+  private Node<T> root;
+
+  /**
+   * Creates a list of size nulls.
+   */
+  public SparseLineList(int size) {
+    root = makeGap(size);
+  }
+
+  private static int lineCount(Node<?> node) {
+    return node == null ? 0 : node.lineCount;
+  }
+
+  private Node<T> makeGap(int count) {
+    return count == 0 ? null : new Node<T>(null, count, random.nextInt());
+  }
+
+  private Node<T> makeEntry(T value) {
+    return new Node<T>(value, 1, random.nextInt());
+  }
+
+  public int size() {
+    return lineCount(root);
+  }
+
+  public T get(int y) {
+    checkIndex(y, size());
+    return find(y).value;
+  }
+
+  public void set(int y, T value) {
+    checkIndex(y, size());
+    Node<T> node = find(y);
+    if (node.value != null && value != null) {
+      node.value = value;
+      return;
+    }
+    if (node.value == null && value == null) {
+      return;
+    }
+    Node<T>[] head = split(root, y);
+    Node<T> tail = split(head[1], 1)[1];
+    root = join(join(head[0], value == null ? makeGap(1) : makeEntry(value)), tail);
+  }
+
+  /**
+   * Inserts the given entries, which may be null, before line y.
+   */
+  public void insert(int y, List<T> values) {
+    checkIndex(y, size() + 1);
+    Node<T> inserted = null;
+    int gap = 0;
+    for (T value : values) {
+      if (value == null) {
+        gap++;
+        continue;
+      }
+      inserted = merge(merge(inserted, makeGap(gap)), makeEntry(value));
+      gap = 0;
+    }
+    inserted = merge(inserted, makeGap(gap));
+    Node<T>[] parts = split(root, y);
+    root = join(join(parts[0], inserted), parts[1]);
+  }
+
+  /**
+   * Inserts count nulls before line y.
+   */
+  public void insertNulls(int y, int count) {
+    checkIndex(y, size() + 1);
+    Node<T>[] parts = split(root, y);
+    root = join(join(parts[0], makeGap(count)), parts[1]);
+  }
+
+  public T remove(int y) {
+    T value = get(y);
+    remove(y, 1);
+    return value;
+  }
+
+  public void remove(int y, int count) {
+    checkIndex(y, size() + 1);
+    checkIndex(y + count, size() + 1);
+    Node<T>[] head = split(root, y);
+    root = join(head[0], split(head[1], count)[1]);
+  }
+
+  /**
+   * Sets lines [y, y + count) to null.
+   */
+  public void clear(int y, int count) {
+    remove(y, count);
+    insertNulls(y, count);
+  }
+
+  /**
+   * Returns the entries of lines [y, y + count), including nulls.
+   */
+  public List<T> getRange(int y, int count) {
+    List<T> result = new ArrayList<T>(count);
+    for (int i = 0; i < count; i++) {
+      result.add(get(y + i));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the non-null entries in order.
+   */
+  public List<T> getValues() {
+    List<T> result = new ArrayList<T>();
+    addValues(root, result);
+    return result;
+  }
+
+  private void addValues(Node<T> node, List<T> out) {
+    if (node == null) {
+      return;
+    }
+    addValues(node.left, out);
+    if (node.value != null) {
+      out.add(node.value);
+    }
+    addValues(node.right, out);
+  }
+
+  // For testing.
+  int getRunCount() {
+    return countRuns(root);
+  }
+
+  private static int countRuns(Node<?> node) {
+    return node == null ? 0 : countRuns(node.left) + 1 + countRuns(node.right);
+  }
+
+  private Node<T> find(int y) {
+    Node<T> node = root;
+    while (true) {
+      int leftCount = lineCount(node.left);
+      if (y < leftCount) {
+        node = node.left;
+      } else if (y < leftCount + node.count) {
+        return node;
+      } else {
+        y -= leftCount + node.count;
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * Splits the tree into one holding the first y lines and one holding the
+   * rest, cutting a run of nulls in two if necessary.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Node<T>[] split(Node<T> node, int y) {
+    if (node == null) {
+      return new Node[] { null, null };
+    }
+    int leftCount = lineCount(node.left);
+    if (y <= leftCount) {
+      Node<T>[] parts = split(node.left, y);
+      node.left = parts[1];
+      node.update();
+      return new Node[] { parts[0], node };
+    }
+    if (y >= leftCount + node.count) {
+      Node<T>[] parts = split(node.right, y - leftCount - node.count);
+      node.right = parts[0];
+      node.update();
+      return new Node[] { node, parts[1] };
+    }
+    // Only runs of nulls can be cut. The rest of the run keeps the node's
+    // priority, which is at least that of everything it inherits on the right.
+    int k = y - leftCount;
+    Node<T> rest = new Node<T>(null, node.count - k, node.priority);
+    rest.right = node.right;
+    rest.update();
+    node.count = k;
+    node.right = null;
+    node.update();
+    return new Node[] { node, rest };
+  }
+
+  /**
+   * Merges the trees, making a's last run and b's first one run if both are
+   * nulls.
+   */
+  private Node<T> join(Node<T> a, Node<T> b) {
+    if (a == null || b == null) {
+      return merge(a, b);
+    }
+    Node<T> last = a;
+    while (last.right != null) {
+      last = last.right;
+    }
+    Node<T> first = b;
+    while (first.left != null) {
+      first = first.left;
+    }
+    if (last.value != null || first.value != null) {
+      return merge(a, b);
+    }
+    int count = last.count + first.count;
+    Node<T> head = split(a, lineCount(a) - last.count)[0];
+    Node<T> tail = split(b, first.count)[1];
+    return merge(merge(head, makeGap(count)), tail);
+  }
+
+  private Node<T> merge(Node<T> a, Node<T> b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    if (a.priority > b.priority) {
+      a.right = merge(a.right, b);
+      a.update();
+      return a;
+    }
+    b.left = merge(a, b.left);
+    b.update();
+    return b;
+  }
+
+  private static void checkIndex(int y, int limit) {
+    if (y < 0 || y >= limit) {
+      throw new IndexOutOfBoundsException("Line " + y + ", size " + limit);
+    }
+  }
+}
@@ -29,6 +29,16 @@ public class TokenCounter implements File.Listener {
     onLineInserted(y, newLine);
   }
 
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    for (String line : removedLines) {
+      onLineRemoved(y, line);
+    }
+    for (String line : insertedLines) {
+      onLineInserted(y, line);
+    }
+  }
+
   public List<String> getCompletions(String partialToken) {
     return trie.getCompletions("", partialToken);
   }
@@ -1,163 +1,719 @@
 package com.id.file;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import com.id.util.Util;
+
+/**
+ * A radix trie from string keys to values. Each edge is labelled with a run
+ * of characters, so a chain of nodes with one child each is stored as a
+ * single node, and children are kept in arrays sorted by the first character
+ * of their labels. All traversals walk the query by index, without building
+ * strings along the way. Interrupting the thread running a fuzzy match makes
+ * it throw a CancellationException.
+ */
 public class Trie<T> {
-  private final List<T> endPoints = new ArrayList<T>();
+  private static final char[] NO_CHARS = new char[0];
+  // How many positions a fuzzy match expands between checks for cancellation.
+  private static final int CANCELLATION_CHECK_INTERVAL = 1 << 12;
 
-  private final Map<Character, Trie<T>> children = new HashMap<Character, Trie<T>>();
+  private static class Node<T> {
+    // The characters on the edge from the parent to this node.
+    private char[] label;
+    // firsts[i] is the first character of children[i].label, in order.
+    private char[] firsts = NO_CHARS;
+    private Node<T>[] children = null;
+    private List<T> endPoints = null;
 
-  private static class FuzzyResult implements Comparable<FuzzyResult> {
-    private final int score;
-    private final String text;
+    public Node(char[] label) {
+      this.label = label;
+    }
 
-    public FuzzyResult(int score, String text) {
-      this.score = score;
-      this.text = text;
+    public int childCount() {
+      return firsts.length;
     }
 
-    public String getText() {
-      return text;
+    public int findChild(char c) {
+      return Arrays.binarySearch(firsts, c);
     }
 
-    @Override
-    public int compareTo(FuzzyResult other) {
-      if (score < other.score) {
-        return -1;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void insertChild(int i, Node<T> child) {
+      char[] newFirsts = new char[firsts.length + 1];
+      Node<T>[] newChildren = new Node[firsts.length + 1];
+      System.arraycopy(firsts, 0, newFirsts, 0, i);
+      newFirsts[i] = child.label[0];
+      System.arraycopy(firsts, i, newFirsts, i + 1, firsts.length - i);
+      if (children != null) {
+        System.arraycopy(children, 0, newChildren, 0, i);
+        System.arraycopy(children, i, newChildren, i + 1, firsts.length - i);
       }
-      return score == other.score ? 0 : 1;
+      newChildren[i] = child;
+      firsts = newFirsts;
+      children = newChildren;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void removeChild(int i) {
+      if (firsts.length == 1) {
+        firsts = NO_CHARS;
+        children = null;
+        return;
+      }
+      char[] newFirsts = new char[firsts.length - 1];
+      Node<T>[] newChildren = new Node[firsts.length - 1];
+      System.arraycopy(firsts, 0, newFirsts, 0, i);
+      System.arraycopy(firsts, i + 1, newFirsts, i, firsts.length - i - 1);
+      System.arraycopy(children, 0, newChildren, 0, i);
+      System.arraycopy(children, i + 1, newChildren, i, firsts.length - i - 1);
+      firsts = newFirsts;
+      children = newChildren;
+    }
+
+    public boolean hasEndPoints() {
+      return endPoints != null && !endPoints.isEmpty();
+    }
+
+    public boolean isEmpty() {
+      return !hasEndPoints() && childCount() == 0;
+    }
+
+    /**
+     * Merges a node that has no end points and a single child with that
+     * child.
+     */
+    public void absorbOnlyChild() {
+      Node<T> child = children[0];
+      char[] merged = new char[label.length + child.label.length];
+      System.arraycopy(label, 0, merged, 0, label.length);
+      System.arraycopy(child.label, 0, merged, label.length, child.label.length);
+      label = merged;
+      firsts = child.firsts;
+      children = child.children;
+      endPoints = child.endPoints;
     }
   }
 
+  private final Node<T> root = new Node<T>(NO_CHARS);
+
   public Trie() {
   }
 
   public void add(String token, T t) {
-    if (token.isEmpty()) {
-      endPoints.add(t);
-    } else {
-      char next = token.charAt(0);
-      String substring = token.substring(1);
-      if (!children.containsKey(next)) {
-        children.put(next, new Trie<T>());
+    Node<T> node = root;
+    int i = 0;
+    while (i < token.length()) {
+      int childIndex = node.findChild(token.charAt(i));
+      if (childIndex < 0) {
+        Node<T> leaf = new Node<T>(token.substring(i).toCharArray());
+        leaf.endPoints = new ArrayList<T>(1);
+        leaf.endPoints.add(t);
+        node.insertChild(-childIndex - 1, leaf);
+        return;
       }
-      children.get(next).add(substring, t);
+      Node<T> child = node.children[childIndex];
+      int matched = matchLabel(child.label, token, i);
+      if (matched < child.label.length) {
+        // Split the edge where the token leaves it.
+        Node<T> middle = new Node<T>(Arrays.copyOf(child.label, matched));
+        child.label = Arrays.copyOfRange(child.label, matched, child.label.length);
+        middle.insertChild(0, child);
+        node.children[childIndex] = middle;
+        child = middle;
+      }
+      node = child;
+      i += matched;
+    }
+    if (node.endPoints == null) {
+      node.endPoints = new ArrayList<T>(1);
     }
+    node.endPoints.add(t);
   }
 
+  /**
+   * @return whether the trie is empty afterwards.
+   */
   public boolean remove(String token, T t) {
-    if (token.isEmpty()) {
-      endPoints.remove(t);
-    } else {
-      char next = token.charAt(0);
-      if (children.containsKey(next)) {
-        if (children.get(next).remove(token.substring(1), t)) {
-          children.remove(next);
-        }
+    List<Node<T>> path = new ArrayList<Node<T>>();
+    Node<T> node = root;
+    int i = 0;
+    while (i < token.length()) {
+      int childIndex = node.findChild(token.charAt(i));
+      if (childIndex < 0) {
+        return root.isEmpty();
+      }
+      Node<T> child = node.children[childIndex];
+      int matched = matchLabel(child.label, token, i);
+      if (matched < child.label.length) {
+        return root.isEmpty();
+      }
+      path.add(node);
+      node = child;
+      i += matched;
+    }
+    if (node.endPoints != null) {
+      node.endPoints.remove(t);
+      if (node.endPoints.isEmpty()) {
+        node.endPoints = null;
       }
     }
-    return endPoints.isEmpty() && children.isEmpty();
+    // Drop nodes that lead nowhere and merge the ones left with one child.
+    for (int j = path.size() - 1; j >= 0; j--) {
+      Node<T> parent = path.get(j);
+      if (node.isEmpty()) {
+        parent.removeChild(parent.findChild(node.label[0]));
+      } else if (!node.hasEndPoints() && node.childCount() == 1) {
+        node.absorbOnlyChild();
+      }
+      node = parent;
+    }
+    return root.isEmpty();
+  }
+
+  /**
+   * Returns the values added under exactly the token.
+   */
+  public List<T> getValues(String token) {
+    Node<T> node = root;
+    int i = 0;
+    while (i < token.length()) {
+      int childIndex = node.findChild(token.charAt(i));
+      if (childIndex < 0) {
+        return new ArrayList<T>();
+      }
+      Node<T> child = node.children[childIndex];
+      int matched = matchLabel(child.label, token, i);
+      if (matched < child.label.length) {
+        return new ArrayList<T>();
+      }
+      node = child;
+      i += matched;
+    }
+    if (node.endPoints == null) {
+      return new ArrayList<T>();
+    }
+    return new ArrayList<T>(node.endPoints);
+  }
+
+  /**
+   * Returns how many characters of the label match the token from position
+   * start.
+   */
+  private static int matchLabel(char[] label, String token, int start) {
+    int limit = Math.min(label.length, token.length() - start);
+    int i = 0;
+    while (i < limit && label[i] == token.charAt(start + i)) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Returns the node whose subtree holds the keys starting with the query,
+   * or null if there are none. If the query ends partway along an edge, the
+   * node at the end of that edge is returned.
+   */
+  private Node<T> find(String query) {
+    Node<T> node = root;
+    int i = 0;
+    while (i < query.length()) {
+      int childIndex = node.findChild(query.charAt(i));
+      if (childIndex < 0) {
+        return null;
+      }
+      Node<T> child = node.children[childIndex];
+      int matched = matchLabel(child.label, query, i);
+      if (matched < child.label.length && i + matched < query.length()) {
+        return null;
+      }
+      node = child;
+      i += matched;
+    }
+    return node;
   }
 
   public List<String> getCompletions(String prefix, String query) {
-    if (query.isEmpty()) {
-      List<String> result = new ArrayList<String>();
-      for (T endPoint : endPoints) {
-        result.add(endPoint.toString());
+    List<String> result = new ArrayList<String>();
+    Node<T> node = find(query);
+    if (node != null) {
+      addCompletions(node, result);
+    }
+    return result;
+  }
+
+  /**
+   * Adds the end points under the node, in key order.
+   */
+  private void addCompletions(Node<T> node, List<String> out) {
+    List<Node<T>> stack = new ArrayList<Node<T>>();
+    stack.add(node);
+    while (!stack.isEmpty()) {
+      Node<T> next = stack.remove(stack.size() - 1);
+      if (next.endPoints != null) {
+        for (T endPoint : next.endPoints) {
+          out.add(endPoint.toString());
+        }
       }
-      for (char c : children.keySet()) {
-        result.addAll(children.get(c).getCompletions(prefix + c, query));
+      for (int i = next.childCount() - 1; i >= 0; i--) {
+        stack.add(next.children[i]);
       }
-      return result;
     }
-    char queryHead = query.charAt(0);
-    String queryTail = query.substring(1);
-    if (children.containsKey(queryHead)) {
-      return children.get(queryHead).getCompletions(prefix + queryHead, queryTail);
+  }
+
+  /**
+   * Returns every key with its values, for checking the trie's contents.
+   */
+  public SortedMap<String, List<T>> getEntries() {
+    SortedMap<String, List<T>> result = new TreeMap<String, List<T>>();
+    List<Node<T>> stack = new ArrayList<Node<T>>();
+    List<String> keys = new ArrayList<String>();
+    stack.add(root);
+    keys.add("");
+    while (!stack.isEmpty()) {
+      Node<T> node = stack.remove(stack.size() - 1);
+      String key = keys.remove(keys.size() - 1);
+      if (node.hasEndPoints()) {
+        result.put(key, new ArrayList<T>(node.endPoints));
+      }
+      for (int i = 0; i < node.childCount(); i++) {
+        stack.add(node.children[i]);
+        keys.add(key + new String(node.children[i].label));
+      }
+    }
+    return result;
+  }
+
+  public int getNodeCount() {
+    int count = 0;
+    List<Node<T>> stack = new ArrayList<Node<T>>();
+    stack.add(root);
+    while (!stack.isEmpty()) {
+      Node<T> node = stack.remove(stack.size() - 1);
+      count++;
+      for (int i = 0; i < node.childCount(); i++) {
+        stack.add(node.children[i]);
+      }
     }
-    return new ArrayList<String>();
+    return count;
   }
 
+  /**
+   * Returns the prefix followed by the longest extension of the query that
+   * every key starting with the query shares. If no key starts with the
+   * query, returns the prefix followed by the part of the query that matched.
+   */
   public String getCompletion(String prefix, String query) {
-    if (query.isEmpty()) {
-      if (children.size() == 1) {
-        for (char c : children.keySet()) {
-          return children.get(c).getCompletion(prefix + c, query);
+    StringBuilder result = new StringBuilder(prefix);
+    Node<T> node = root;
+    int i = 0;
+    while (i < query.length()) {
+      int childIndex = node.findChild(query.charAt(i));
+      if (childIndex < 0) {
+        return result.toString();
+      }
+      Node<T> child = node.children[childIndex];
+      int matched = matchLabel(child.label, query, i);
+      result.append(child.label, 0, matched);
+      if (matched < child.label.length) {
+        if (i + matched < query.length()) {
+          return result.toString();
         }
+        // The query ends partway along the edge, which is the only way on.
+        result.append(child.label, matched, child.label.length - matched);
       }
-      return prefix;
+      node = child;
+      i += matched;
     }
-    char queryHead = query.charAt(0);
-    String queryTail = query.substring(1);
-    if (children.containsKey(queryHead)) {
-      return children.get(queryHead).getCompletion(prefix + queryHead, queryTail);
+    while (node.childCount() == 1) {
+      node = node.children[0];
+      result.append(node.label);
     }
-    return prefix;
+    return result.toString();
   }
 
   public List<String> doFuzzyMatch(boolean onBoundary, String prefix, String query) {
-    PriorityQueue<FuzzyResult> results = new PriorityQueue<FuzzyResult>();
-    doFuzzyMatch(results, 0, onBoundary, prefix, query);
-    List<String> stringResults = new ArrayList<String>();
-    Set<String> uniqueStrings = new HashSet<String>();
-    for (FuzzyResult result : results) {
-      if (uniqueStrings.add(result.getText())) {
-        stringResults.add(result.getText());
+    return doFuzzyMatch(onBoundary, query, Integer.MAX_VALUE);
+  }
+
+  /**
+   * A stack of positions in the search: offset characters along the edge into
+   * node, having matched the first queryIndex characters of the query.
+   * onBoundary is whether the next character directly follows a boundary.
+   */
+  private static class FuzzyStack<T> {
+    private Node<T>[] nodes;
+    private int[] offsets = new int[16];
+    private boolean[] onBoundary = new boolean[16];
+    private int[] queryIndexes = new int[16];
+    private int size = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public FuzzyStack() {
+      nodes = new Node[16];
+    }
+
+    public void push(Node<T> node, int offset, boolean boundary, int queryIndex) {
+      if (size == nodes.length) {
+        int capacity = 2 * size;
+        nodes = Arrays.copyOf(nodes, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        onBoundary = Arrays.copyOf(onBoundary, capacity);
+        queryIndexes = Arrays.copyOf(queryIndexes, capacity);
       }
+      nodes[size] = node;
+      offsets[size] = offset;
+      onBoundary[size] = boundary;
+      queryIndexes[size] = queryIndex;
+      size++;
     }
-    return stringResults;
   }
 
-  // boundariesPassed - how many word boundaries have been passed
-  // onBoundary - are we matching directly after a boundary
-  // prefix - characters passed
-  public void doFuzzyMatch(PriorityQueue<FuzzyResult> result,
-      int boundariesPassed, boolean onBoundary, String prefix, String query) {
-    if (query.isEmpty()) {
-      for (String completion : getCompletions(prefix, query)) {
-        result.add(new FuzzyResult(boundariesPassed * 20, completion));
+  /**
+   * Returns the keys fuzzily matching the query, best first, stopping after
+   * maxResults of them. A key scores worse for every boundary character it
+   * passes, and since that only grows along a path, the search goes best
+   * first: positions are expanded one score at a time, so the first time a
+   * key turns up is with its best score, and once maxResults keys are found
+   * nothing left can beat them. A position is only expanded the first time it
+   * is reached, which is when it is reached most cheaply.
+   */
+  public List<String> doFuzzyMatch(boolean onBoundary, String query, int maxResults) {
+    return getTexts(doScoredFuzzyMatch(onBoundary, query, maxResults));
+  }
+
+  /**
+   * Like {@link #doFuzzyMatch(boolean, String, int)}, but with the scores,
+   * for merging with matches from elsewhere.
+   */
+  public List<FuzzyMatch> doScoredFuzzyMatch(boolean onBoundary, String query,
+      int maxResults) {
+    List<FuzzyMatch> results = new ArrayList<FuzzyMatch>();
+    Set<String> seen = new HashSet<String>();
+    Map<Node<T>, BitSet> visited = new IdentityHashMap<Node<T>, BitSet>();
+    // The positions at the current score, and those one boundary worse.
+    FuzzyStack<T> current = new FuzzyStack<T>();
+    FuzzyStack<T> next = new FuzzyStack<T>();
+    current.push(root, 0, onBoundary, 0);
+    int score = 0;
+    int steps = 0;
+    while (results.size() < maxResults && (current.size > 0 || next.size > 0)) {
+      if (++steps % CANCELLATION_CHECK_INTERVAL == 0) {
+        Util.checkCancelled();
+      }
+      if (current.size == 0) {
+        FuzzyStack<T> swap = current;
+        current = next;
+        next = swap;
+        score += 20;
+      }
+      current.size--;
+      Node<T> node = current.nodes[current.size];
+      int offset = current.offsets[current.size];
+      boolean isOnBoundary = current.onBoundary[current.size];
+      int queryIndex = current.queryIndexes[current.size];
+      current.nodes[current.size] = null;
+
+      if (!markVisited(visited, node, offset, isOnBoundary, queryIndex)) {
+        continue;
+      }
+      if (queryIndex == query.length()) {
+        addCompletions(node, score, seen, results, maxResults);
+        continue;
+      }
+
+      char queryHead = query.charAt(queryIndex);
+      boolean isNextBoundary = isBoundary(queryHead);
+      if (offset < node.label.length) {
+        pushFuzzySteps(current, next, node, offset + 1, node.label[offset], isOnBoundary,
+            queryIndex, queryHead, isNextBoundary);
+        continue;
+      }
+      for (int i = node.childCount() - 1; i >= 0; i--) {
+        pushFuzzySteps(current, next, node.children[i], 1, node.firsts[i], isOnBoundary,
+            queryIndex, queryHead, isNextBoundary);
       }
-      return;
     }
+    return results;
+  }
 
-    char queryHead = query.charAt(0);
-    String queryTail = query.substring(1);
-    boolean isNextBoundary = isBoundary(queryHead);
+  /**
+   * A key found by a fuzzy match. Lower scores are better.
+   */
+  public static class FuzzyMatch implements Comparable<FuzzyMatch> {
+    private final String text;
+    private final int score;
+
+    public FuzzyMatch(String text, int score) {
+      this.text = text;
+      this.score = score;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    public int getScore() {
+      return score;
+    }
+
+    @Override
+    public int compareTo(FuzzyMatch other) {
+      if (score < other.score) {
+        return -1;
+      }
+      return score == other.score ? 0 : 1;
+    }
+  }
+
+  private static List<String> getTexts(List<FuzzyMatch> matches) {
+    List<String> result = new ArrayList<String>(matches.size());
+    for (FuzzyMatch match : matches) {
+      result.add(match.getText());
+    }
+    return result;
+  }
+
+  /**
+   * A position reached by a fuzzy match, with the best score it was reached
+   * with.
+   */
+  private static class FuzzyPosition<T> implements Comparable<FuzzyPosition<T>> {
+    private final Node<T> node;
+    private final int offset;
+    private final boolean onBoundary;
+    private final int score;
+
+    public FuzzyPosition(Node<T> node, int offset, boolean onBoundary, int score) {
+      this.node = node;
+      this.offset = offset;
+      this.onBoundary = onBoundary;
+      this.score = score;
+    }
+
+    @Override
+    public int compareTo(FuzzyPosition<T> other) {
+      if (score < other.score) {
+        return -1;
+      }
+      return score == other.score ? 0 : 1;
+    }
+  }
+
+  /**
+   * Where a fuzzy match has got to after some characters of a query: the
+   * positions that matched the last of them, best first. Extending a frontier
+   * by a character only searches below those positions, so a query typed a
+   * character at a time costs as much as the keys still matching rather than
+   * the whole trie. A frontier is only valid until the trie next changes.
+   */
+  public class FuzzyFrontier {
+    private final List<FuzzyPosition<T>> positions;
 
-    for (char c : children.keySet()) {
+    private FuzzyFrontier(List<FuzzyPosition<T>> positions) {
+      this.positions = positions;
+    }
+
+    public int size() {
+      return positions.size();
+    }
+
+    /**
+     * Returns the keys matching the query so far, best first, stopping after
+     * maxResults of them.
+     */
+    public List<String> getMatches(int maxResults) {
+      return getTexts(getScoredMatches(maxResults));
+    }
+
+    public List<FuzzyMatch> getScoredMatches(int maxResults) {
+      List<FuzzyMatch> results = new ArrayList<FuzzyMatch>();
+      Set<String> seen = new HashSet<String>();
+      for (int i = 0; i < positions.size() && results.size() < maxResults; i++) {
+        FuzzyPosition<T> position = positions.get(i);
+        addCompletions(position.node, position.score, seen, results, maxResults);
+      }
+      return results;
+    }
+
+    /**
+     * Returns the frontier for the query so far followed by c. This searches
+     * best first like {@link Trie#doFuzzyMatch(boolean, String, int)}, with
+     * the positions of this frontier as starting points.
+     */
+    public FuzzyFrontier extend(char c) {
+      boolean isNextBoundary = isBoundary(c);
+      Map<Node<T>, BitSet> visited = new IdentityHashMap<Node<T>, BitSet>();
+      List<FuzzyPosition<T>> reached = new ArrayList<FuzzyPosition<T>>();
+      FuzzyStack<T> current = new FuzzyStack<T>();
+      FuzzyStack<T> next = new FuzzyStack<T>();
+      int seed = 0;
+      int score = 0;
+      int steps = 0;
+      while (true) {
+        if (++steps % CANCELLATION_CHECK_INTERVAL == 0) {
+          Util.checkCancelled();
+        }
+        if (current.size == 0) {
+          if (next.size > 0) {
+            FuzzyStack<T> swap = current;
+            current = next;
+            next = swap;
+            score += 20;
+          } else if (seed < positions.size()) {
+            score = positions.get(seed).score;
+          } else {
+            break;
+          }
+        }
+        while (seed < positions.size() && positions.get(seed).score <= score) {
+          FuzzyPosition<T> position = positions.get(seed++);
+          current.push(position.node, position.offset, position.onBoundary, 0);
+        }
+        current.size--;
+        Node<T> node = current.nodes[current.size];
+        int offset = current.offsets[current.size];
+        boolean isOnBoundary = current.onBoundary[current.size];
+        current.nodes[current.size] = null;
+        if (!markVisited(visited, node, offset, isOnBoundary, 0)) {
+          continue;
+        }
+        if (offset < node.label.length) {
+          stepFrontier(current, next, reached, node, offset + 1, node.label[offset],
+              isOnBoundary, score, c, isNextBoundary);
+          continue;
+        }
+        for (int i = node.childCount() - 1; i >= 0; i--) {
+          stepFrontier(current, next, reached, node.children[i], 1, node.firsts[i],
+              isOnBoundary, score, c, isNextBoundary);
+        }
+      }
+      // Positions reached more than once keep their best score.
+      Collections.sort(reached);
+      List<FuzzyPosition<T>> unique = new ArrayList<FuzzyPosition<T>>();
+      visited.clear();
+      for (FuzzyPosition<T> position : reached) {
+        if (markVisited(visited, position.node, position.offset, position.onBoundary, 0)) {
+          unique.add(position);
+        }
+      }
+      return new FuzzyFrontier(unique);
+    }
+
+    private void stepFrontier(FuzzyStack<T> current, FuzzyStack<T> next,
+        List<FuzzyPosition<T>> reached, Node<T> node, int offset, char c,
+        boolean onBoundary, int score, char queryHead, boolean isNextBoundary) {
       boolean isBoundaryMatch = (onBoundary || isBoundary(c)) && isNextBoundary;
-      int boundaryCount = boundariesPassed + (isBoundary(c) ? 1 : 0);
-      Trie<T> child = children.get(c);
+      boolean nextOnBoundary = isBoundaryStart(c);
+      if (isBoundary(c)) {
+        next.push(node, offset, nextOnBoundary, 0);
+        score += 20;
+      } else {
+        current.push(node, offset, nextOnBoundary, 0);
+      }
       if (equal(c, queryHead, isBoundaryMatch)) {
-       child.doFuzzyMatch(result, boundaryCount, isBoundaryStart(c), prefix + c, queryTail);
+        reached.add(new FuzzyPosition<T>(node, offset, nextOnBoundary, score));
+      }
+    }
+  }
+
+  /**
+   * Returns the frontier of a fuzzy match for the empty query, to be
+   * extended a character at a time.
+   */
+  public FuzzyFrontier startFuzzyMatch(boolean onBoundary) {
+    List<FuzzyPosition<T>> positions = new ArrayList<FuzzyPosition<T>>();
+    positions.add(new FuzzyPosition<T>(root, 0, onBoundary, 0));
+    return new FuzzyFrontier(positions);
+  }
+
+  /**
+   * @return whether the position hadn't been visited before.
+   */
+  private static <T> boolean markVisited(Map<Node<T>, BitSet> visited, Node<T> node,
+      int offset, boolean onBoundary, int queryIndex) {
+    BitSet positions = visited.get(node);
+    if (positions == null) {
+      positions = new BitSet();
+      visited.put(node, positions);
+    }
+    int index = 2 * (queryIndex * (node.label.length + 1) + offset) + (onBoundary ? 1 : 0);
+    if (positions.get(index)) {
+      return false;
+    }
+    positions.set(index);
+    return true;
+  }
+
+  /**
+   * Adds the end points under the node that aren't in seen yet, in key order,
+   * until out holds max of them.
+   */
+  private void addCompletions(Node<T> node, int score, Set<String> seen,
+      List<FuzzyMatch> out, int max) {
+    List<Node<T>> stack = new ArrayList<Node<T>>();
+    stack.add(node);
+    while (!stack.isEmpty()) {
+      Node<T> next = stack.remove(stack.size() - 1);
+      if (next.endPoints != null) {
+        for (T endPoint : next.endPoints) {
+          String completion = endPoint.toString();
+          if (seen.add(completion)) {
+            out.add(new FuzzyMatch(completion, score));
+            if (out.size() >= max) {
+              return;
+            }
+          }
+        }
       }
-      child.doFuzzyMatch(result, boundaryCount, isBoundaryStart(c), prefix + c, query);
+      for (int i = next.childCount() - 1; i >= 0; i--) {
+        stack.add(next.children[i]);
+      }
+    }
+  }
+
+  /**
+   * Pushes the ways of stepping over the character c: matching the next
+   * character of the query against it, or skipping it. Stepping over a
+   * boundary costs a score, so those steps go on the next stack.
+   */
+  private void pushFuzzySteps(FuzzyStack<T> current, FuzzyStack<T> next, Node<T> node,
+      int offset, char c, boolean onBoundary, int queryIndex, char queryHead,
+      boolean isNextBoundary) {
+    boolean isBoundaryMatch = (onBoundary || isBoundary(c)) && isNextBoundary;
+    FuzzyStack<T> stack = isBoundary(c) ? next : current;
+    boolean nextOnBoundary = isBoundaryStart(c);
+    stack.push(node, offset, nextOnBoundary, queryIndex);
+    if (equal(c, queryHead, isBoundaryMatch)) {
+      stack.push(node, offset, nextOnBoundary, queryIndex + 1);
     }
-    return;
   }
 
-  private boolean isBoundaryStart(char c) {
+  static boolean isBoundaryStart(char c) {
     return c == '/' || c == '_';
   }
 
-  private boolean isBoundary(char c) {
+  static boolean isBoundary(char c) {
     return Character.isUpperCase(c);
   }
 
-  private boolean equal(char a, char b, boolean caseInsensitive) {
+  static boolean equal(char a, char b, boolean caseInsensitive) {
     if (caseInsensitive) {
       return equalI(a, b);
     }
     return a == b;
   }
 
-  private boolean equalI(char a, char b) {
+  private static boolean equalI(char a, char b) {
     return Character.toLowerCase(a) == Character.toLowerCase(b);
   }
 }
@@ -0,0 +1,347 @@
+package com.id.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Stack;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An append-only log of a file's undo history that outlives the editor.
+ *
+ * Every finished patch, undo, redo and save is appended as a record. Each save
+ * records a stamp of the saved contents, such as one from
+ * {@link #stamp(long, long)}; when the file is opened again and its stamp
+ * still matches the last save, the log is replayed to find which patches were
+ * on the undo and redo stacks. Replaying only reads the record
+ * headers from a memory mapping of the log, and patches are decoded when undo
+ * or redo first reaches them.
+ */
+public class UndoJournal {
+  /**
+   * The hash of a file with no lines. Hashes are 64-bit FNV-1a over the
+   * characters of each line followed by a line break.
+   */
+  public static final long EMPTY_HASH = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final int MAGIC = 0x49445531;
+  private static final int HEADER_SIZE = 4;
+  // Journals are rewritten when they are mostly dead records and at least this
+  // big.
+  private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+  private static final byte PATCH = 'P';
+  private static final byte UNDO = 'U';
+  private static final byte REDO = 'R';
+  private static final byte SAVE = 'S';
+
+  private final java.io.File journalFile;
+  private final Stack<Long> undoOffsets = new Stack<Long>();
+  private final Stack<Long> redoOffsets = new Stack<Long>();
+  private ByteBuffer history = null;
+  private DataOutputStream out;
+
+  /**
+   * Opens the journal for a file whose contents on disk have the given stamp.
+   * If the journal doesn't describe those contents, it is started afresh.
+   */
+  public static UndoJournal open(java.io.File journalFile, long contentHash)
+      throws IOException {
+    UndoJournal journal = new UndoJournal(journalFile);
+    journal.load(contentHash);
+    return journal;
+  }
+
+  private UndoJournal(java.io.File journalFile) {
+    this.journalFile = journalFile;
+  }
+
+  private void load(long contentHash) throws IOException {
+    long validLength = replay(contentHash);
+    if (validLength == -1) {
+      // Missing, corrupt or out of date; the file was changed elsewhere.
+      undoOffsets.clear();
+      redoOffsets.clear();
+      journalFile.getParentFile().mkdirs();
+      out = new DataOutputStream(new FileOutputStream(journalFile, false));
+      out.writeInt(MAGIC);
+      recordSave(contentHash);
+      return;
+    }
+    if (validLength >= MIN_COMPACTION_SIZE && 2 * getLiveLength() < validLength) {
+      compact(contentHash);
+      undoOffsets.clear();
+      redoOffsets.clear();
+      validLength = replay(contentHash);
+    }
+    // Anything after the last save was never written to the file.
+    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+    try {
+      file.setLength(validLength);
+    } finally {
+      file.close();
+    }
+    out = new DataOutputStream(new FileOutputStream(journalFile, true));
+  }
+
+  private long getLiveLength() {
+    long result = HEADER_SIZE;
+    for (long offset : undoOffsets) {
+      result += skipRecord((int) offset) - offset;
+    }
+    for (long offset : redoOffsets) {
+      result += skipRecord((int) offset) - offset;
+    }
+    return result;
+  }
+
+  /**
+   * Rewrites the journal with only the patches still on the stacks. The redo
+   * stack is rebuilt by recording its patches and then undoing them.
+   */
+  private void compact(long contentHash) throws IOException {
+    java.io.File compactedFile = new java.io.File(journalFile.getPath() + ".tmp");
+    DataOutputStream compacted = new DataOutputStream(new FileOutputStream(compactedFile));
+    try {
+      compacted.writeInt(MAGIC);
+      for (long offset : undoOffsets) {
+        copyRecord(offset, compacted);
+      }
+      for (int i = redoOffsets.size() - 1; i >= 0; i--) {
+        copyRecord(redoOffsets.get(i), compacted);
+      }
+      for (int i = 0; i < redoOffsets.size(); i++) {
+        compacted.writeByte(UNDO);
+      }
+      compacted.writeByte(SAVE);
+      compacted.writeLong(contentHash);
+    } finally {
+      compacted.close();
+    }
+    history = null;
+    if (!journalFile.delete() || !compactedFile.renameTo(journalFile)) {
+      throw new IOException("Couldn't replace " + journalFile);
+    }
+  }
+
+  private void copyRecord(long offset, DataOutputStream to) throws IOException {
+    ByteBuffer record = history.duplicate();
+    record.position((int) offset);
+    byte[] bytes = new byte[skipRecord((int) offset) - (int) offset];
+    record.get(bytes);
+    to.write(bytes);
+  }
+
+  /**
+   * Maps the journal and rebuilds the undo and redo stacks as they were at
+   * the last save.
+   *
+   * @return the length of the journal up to and including the last save, or
+   *     -1 if the journal can't be used for the given contents.
+   */
+  private long replay(long contentHash) throws IOException {
+    if (!journalFile.isFile() || journalFile.length() < HEADER_SIZE
+        || journalFile.length() > Integer.MAX_VALUE) {
+      return -1;
+    }
+    RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+    try {
+      history = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    } finally {
+      file.close();
+    }
+    if (history.getInt(0) != MAGIC) {
+      history = null;
+      return -1;
+    }
+    // Find the last complete save record.
+    long lastSaveEnd = -1;
+    long lastSaveHash = 0;
+    int position = HEADER_SIZE;
+    while (true) {
+      int next = skipRecord(position);
+      if (next == -1) {
+        break;
+      }
+      if (history.get(position) == SAVE) {
+        lastSaveEnd = next;
+        lastSaveHash = history.getLong(position + 1);
+      }
+      position = next;
+    }
+    if (lastSaveEnd == -1 || lastSaveHash != contentHash) {
+      history = null;
+      return -1;
+    }
+    position = HEADER_SIZE;
+    while (position < lastSaveEnd) {
+      switch (history.get(position)) {
+      case PATCH:
+        undoOffsets.push((long) position);
+        redoOffsets.clear();
+        break;
+      case UNDO:
+        if (undoOffsets.isEmpty()) {
+          history = null;
+          return -1;
+        }
+        redoOffsets.push(undoOffsets.pop());
+        break;
+      case REDO:
+        if (redoOffsets.isEmpty()) {
+          history = null;
+          return -1;
+        }
+        undoOffsets.push(redoOffsets.pop());
+        break;
+      }
+      position = skipRecord(position);
+    }
+    return lastSaveEnd;
+  }
+
+  /**
+   * Returns the position after the record at the given position, or -1 if
+   * there isn't a complete record there.
+   */
+  private int skipRecord(int position) {
+    int limit = history.limit();
+    if (position >= limit) {
+      return -1;
+    }
+    int next;
+    switch (history.get(position)) {
+    case PATCH:
+      if (position + 5 > limit) {
+        return -1;
+      }
+      int length = history.getInt(position + 1);
+      if (length < 0) {
+        return -1;
+      }
+      next = position + 5 + length;
+      break;
+    case UNDO:
+    case REDO:
+      next = position + 1;
+      break;
+    case SAVE:
+      next = position + 9;
+      break;
+    default:
+      return -1;
+    }
+    return next <= limit ? next : -1;
+  }
+
+  /**
+   * Offsets of the patches that were on the undo stack, most recent last. The
+   * caller takes patches off the stack as it reads them back in.
+   */
+  public Stack<Long> getUndoOffsets() {
+    return undoOffsets;
+  }
+
+  /**
+   * Offsets of the patches that were on the redo stack, next redo last.
+   */
+  public Stack<Long> getRedoOffsets() {
+    return redoOffsets;
+  }
+
+  public Patch readPatch(long offset) throws IOException {
+    ByteBuffer record = history.duplicate();
+    record.position((int) offset + 1);
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    DataInputStream in = new DataInputStream(
+        new InflaterInputStream(new ByteArrayInputStream(bytes)));
+    try {
+      return Patch.readFrom(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  public void recordPatch(Patch patch) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream patchOut = new DataOutputStream(new DeflaterOutputStream(bytes));
+    patch.writeTo(patchOut);
+    patchOut.close();
+    ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.size() + 5);
+    DataOutputStream recordOut = new DataOutputStream(record);
+    recordOut.writeByte(PATCH);
+    recordOut.writeInt(bytes.size());
+    bytes.writeTo(recordOut);
+    // Written in one go so a crash can't leave half a header behind.
+    out.write(record.toByteArray());
+    out.flush();
+  }
+
+  public void recordUndo() throws IOException {
+    out.writeByte(UNDO);
+    out.flush();
+  }
+
+  public void recordRedo() throws IOException {
+    out.writeByte(REDO);
+    out.flush();
+  }
+
+  public void recordSave(long contentHash) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream(9);
+    DataOutputStream recordOut = new DataOutputStream(record);
+    recordOut.writeByte(SAVE);
+    recordOut.writeLong(contentHash);
+    out.write(record.toByteArray());
+    out.flush();
+  }
+
+  public void close() {
+    try {
+      out.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public static long hashLine(long hash, String line) {
+    for (int i = 0; i < line.length(); i++) {
+      hash = (hash ^ line.charAt(i)) * FNV_PRIME;
+    }
+    return (hash ^ '\n') * FNV_PRIME;
+  }
+
+  /**
+   * Returns a stamp for a file with the given size and modification time,
+   * which is enough to notice the file being changed elsewhere without
+   * reading it.
+   */
+  public static long stamp(long length, long lastModified) {
+    long stamp = EMPTY_HASH;
+    for (int i = 0; i < 64; i += 8) {
+      stamp = (stamp ^ ((length >>> i) & 0xff)) * FNV_PRIME;
+    }
+    for (int i = 0; i < 64; i += 8) {
+      stamp = (stamp ^ ((lastModified >>> i) & 0xff)) * FNV_PRIME;
+    }
+    return stamp;
+  }
+
+  public static long hash(List<String> lines) {
+    long hash = EMPTY_HASH;
+    for (String line : lines) {
+      hash = hashLine(hash, line);
+    }
+    return hash;
+  }
+}
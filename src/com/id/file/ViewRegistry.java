@@ -0,0 +1,275 @@
+package com.id.file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The line ranges of the live {@link FileView}s of a file.
+ *
+ * Ranges are kept in a treap ordered by start line and augmented with the
+ * greatest end line in each subtree. An edit takes out only the views it can
+ * touch, which are found through the augmentation, and moves every view below
+ * it at once by tagging the root of their subtree with a pending shift. A
+ * view's range is worked out by adding up the shifts above it, and cached
+ * until the registry next changes.
+ */
+public class ViewRegistry {
+  private static final Random random = new Random();
+
+  public static class Entry {
+    private final ViewRegistry registry;
+    private final File.Listener view;
+    private final int priority;
+    private int start;
+    private int end;
+    // Applies to the descendants of this entry but not to the entry itself.
+    private int shift = 0;
+    private int maxEnd;
+    private Entry left = null;
+    private Entry right = null;
+    private Entry parent = null;
+    private int cachedGeneration = -1;
+    private int cachedShift;
+
+    private Entry(ViewRegistry registry, File.Listener view, int start, int end) {
+      this.registry = registry;
+      this.view = view;
+      this.priority = random.nextInt();
+      this.start = start;
+      this.end = end;
+      this.maxEnd = end;
+    }
+
+    public int getStart() {
+      return start + getPendingShift();
+    }
+
+    public int getEnd() {
+      return end + getPendingShift();
+    }
+
+    /**
+     * Sets the range of an entry that isn't in the registry, either because
+     * {@link ViewRegistry#beginEdit} took it out or because it was removed.
+     */
+    public void setRange(int start, int end) {
+      this.start = start;
+      this.end = end;
+      this.maxEnd = end;
+      cachedGeneration = -1;
+    }
+
+    private int getPendingShift() {
+      if (cachedGeneration != registry.generation) {
+        cachedShift = 0;
+        for (Entry ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+          cachedShift += ancestor.shift;
+        }
+        cachedGeneration = registry.generation;
+      }
+      return cachedShift;
+    }
+
+    public File.Listener getView() {
+      return view;
+    }
+  }
+
+  private Entry root = null;
+  private int generation = 0;
+  private int size = 0;
+
+  public Entry add(File.Listener view, int start, int end) {
+    Entry entry = new Entry(this, view, start, end);
+    insert(entry);
+    size++;
+    return entry;
+  }
+
+  public void remove(Entry entry) {
+    generation++;
+    // Settle the shifts above the entry so its subtree can be moved.
+    List<Entry> path = new ArrayList<Entry>();
+    for (Entry ancestor = entry.parent; ancestor != null; ancestor = ancestor.parent) {
+      path.add(ancestor);
+    }
+    for (int i = path.size() - 1; i >= 0; i--) {
+      push(path.get(i));
+    }
+    push(entry);
+    Entry replacement = merge(entry.left, entry.right);
+    Entry parent = entry.parent;
+    if (parent == null) {
+      root = replacement;
+      if (root != null) {
+        root.parent = null;
+      }
+    } else {
+      if (parent.left == entry) {
+        parent.left = replacement;
+      } else {
+        parent.right = replacement;
+      }
+      for (Entry ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+        update(ancestor);
+      }
+    }
+    detach(entry);
+    size--;
+  }
+
+  public void move(Entry entry, int start, int end) {
+    remove(entry);
+    entry.setRange(start, end);
+    insert(entry);
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Prepares for an edit at line y that removes removedCount lines and
+   * inserts insertedCount lines. Views below the edited lines are moved, and
+   * the views that may be affected otherwise are taken out and returned. They
+   * must be told about the edit and then handed back to {@link #endEdit}.
+   */
+  public List<Entry> beginEdit(int y, int removedCount, int insertedCount) {
+    generation++;
+    Entry[] parts = split(root, y + removedCount);
+    applyShift(parts[1], insertedCount - removedCount);
+    List<Entry> affected = new ArrayList<Entry>();
+    // Views that end just above the edit still grow if lines are added there.
+    Entry above = extract(parts[0], y - 1, affected);
+    root = merge(above, parts[1]);
+    if (root != null) {
+      root.parent = null;
+    }
+    for (Entry entry : affected) {
+      detach(entry);
+    }
+    return affected;
+  }
+
+  public void endEdit(List<Entry> entries) {
+    for (Entry entry : entries) {
+      insert(entry);
+    }
+  }
+
+  private void insert(Entry entry) {
+    generation++;
+    Entry[] parts = split(root, entry.start);
+    root = merge(merge(parts[0], entry), parts[1]);
+    root.parent = null;
+  }
+
+  private static void detach(Entry entry) {
+    entry.left = null;
+    entry.right = null;
+    entry.parent = null;
+    entry.shift = 0;
+    entry.maxEnd = entry.end;
+  }
+
+  /**
+   * Takes out the entries ending at or after minEnd.
+   */
+  private static Entry extract(Entry entry, int minEnd, List<Entry> out) {
+    if (entry == null || entry.maxEnd < minEnd) {
+      return entry;
+    }
+    push(entry);
+    Entry left = extract(entry.left, minEnd, out);
+    Entry right = extract(entry.right, minEnd, out);
+    if (entry.end >= minEnd) {
+      out.add(entry);
+      return merge(left, right);
+    }
+    entry.left = left;
+    entry.right = right;
+    update(entry);
+    return entry;
+  }
+
+  private static void applyShift(Entry entry, int delta) {
+    if (entry == null || delta == 0) {
+      return;
+    }
+    entry.start += delta;
+    entry.end += delta;
+    entry.maxEnd += delta;
+    entry.shift += delta;
+  }
+
+  private static void push(Entry entry) {
+    if (entry.shift != 0) {
+      applyShift(entry.left, entry.shift);
+      applyShift(entry.right, entry.shift);
+      entry.shift = 0;
+    }
+  }
+
+  private static void update(Entry entry) {
+    entry.maxEnd = entry.end;
+    if (entry.left != null) {
+      entry.left.parent = entry;
+      entry.maxEnd = Math.max(entry.maxEnd, entry.left.maxEnd);
+    }
+    if (entry.right != null) {
+      entry.right.parent = entry;
+      entry.maxEnd = Math.max(entry.maxEnd, entry.right.maxEnd);
+    }
+  }
+
+  /**
+   * Splits the tree into entries starting at or before line y and entries
+   * starting after it.
+   */
+  private static Entry[] split(Entry entry, int y) {
+    if (entry == null) {
+      return new Entry[] { null, null };
+    }
+    push(entry);
+    Entry[] result;
+    if (entry.start <= y) {
+      Entry[] parts = split(entry.right, y);
+      entry.right = parts[0];
+      update(entry);
+      result = new Entry[] { entry, parts[1] };
+    } else {
+      Entry[] parts = split(entry.left, y);
+      entry.left = parts[1];
+      update(entry);
+      result = new Entry[] { parts[0], entry };
+    }
+    if (result[0] != null) {
+      result[0].parent = null;
+    }
+    if (result[1] != null) {
+      result[1].parent = null;
+    }
+    return result;
+  }
+
+  private static Entry merge(Entry a, Entry b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    push(a);
+    push(b);
+    if (a.priority > b.priority) {
+      a.right = merge(a.right, b);
+      update(a);
+      return a;
+    }
+    b.left = merge(a, b.left);
+    update(b);
+    return b;
+  }
+}
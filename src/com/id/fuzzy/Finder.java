@@ -3,6 +3,10 @@ package com.id.fuzzy;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.id.editor.Editor;
 import com.id.editor.Minibuffer;
@@ -11,6 +15,7 @@ import com.id.events.KeyStrokeHandler;
 import com.id.events.KeyStrokeParser;
 import com.id.events.ShortcutTree;
 import com.id.file.File;
+import com.id.util.LatencyHistogram;
 
 public class Finder implements KeyStrokeHandler, Minibuffer.Listener {
   public interface Listener {
@@ -31,7 +36,15 @@ public class Finder implements KeyStrokeHandler, Minibuffer.Listener {
   private SelectionListener selectionListener;
   private int cursorIndex = 0;
   private FinderDriver driver = null;
-  private List<String> currentMatches = null;
+  private FinderDriver.Session session = null;
+  private List<String> currentMatches = new ArrayList<String>();
+  private int maxMatches = Integer.MAX_VALUE;
+  private ExecutorService matchExecutor = null;
+  private Executor uiExecutor = null;
+  private Future<?> pendingMatch = null;
+  // Bumped for every query, so that matches for older ones are dropped.
+  private int matchGeneration = 0;
+  private final LatencyHistogram latencies = new LatencyHistogram();
 
   public Finder(File file) {
     this.file = file;
@@ -65,14 +78,73 @@ public class Finder implements KeyStrokeHandler, Minibuffer.Listener {
 
   public void runFindAction(FinderDriver driver, SelectionListener listener) {
     this.driver = driver;
+    this.session = driver.startSession();
     this.selectionListener = listener;
     setVisible(true);
     updateMatches();
   }
 
+  /**
+   * Makes matching run on matchExecutor, which must run one task at a time,
+   * with the matches handed back on uiExecutor, along with any the session
+   * finds on the way. Each query cancels the matching for the one before it.
+   * Without executors matching happens synchronously.
+   */
+  public void setExecutors(ExecutorService matchExecutor, Executor uiExecutor) {
+    this.matchExecutor = matchExecutor;
+    this.uiExecutor = uiExecutor;
+  }
+
   private void updateMatches() {
-    currentMatches = getMatches();
-    fireMatchesChanged();
+    if (matchExecutor == null) {
+      long start = System.nanoTime();
+      currentMatches = session.getMatches(minibuffer.getText(), maxMatches);
+      latencies.record(minibuffer.getText().length(), System.nanoTime() - start);
+      fireMatchesChanged();
+      return;
+    }
+    if (pendingMatch != null) {
+      pendingMatch.cancel(true);
+    }
+    final int generation = ++matchGeneration;
+    final FinderDriver.Session matchSession = session;
+    final String query = minibuffer.getText();
+    final int max = maxMatches;
+    pendingMatch = matchExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.nanoTime();
+        try {
+          publishMatches(generation, matchSession.getMatches(query, max,
+              new FinderDriver.Session.Sink() {
+                @Override
+                public void onMatches(List<String> matches) {
+                  publishMatches(generation, matches);
+                }
+              }));
+          latencies.record(query.length(), System.nanoTime() - start);
+        } catch (CancellationException e) {
+          // A newer query has taken over.
+        }
+      }
+    });
+  }
+
+  private void publishMatches(final int generation, final List<String> matches) {
+    uiExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (generation != matchGeneration) {
+          return;
+        }
+        currentMatches = matches;
+        fireMatchesChanged();
+      }
+    });
+  }
+
+  public LatencyHistogram getLatencyHistogram() {
+    return latencies;
   }
 
   public void moveSelectionUp() {
@@ -101,7 +173,11 @@ public class Finder implements KeyStrokeHandler, Minibuffer.Listener {
       setVisible(false);
       return;
     }
-    fireItemSelected(currentMatches.get(cursorIndex));
+    String item = currentMatches.get(cursorIndex);
+    if (driver != null) {
+      driver.onItemSelected(item);
+    }
+    fireItemSelected(item);
     clearQuery();
     setVisible(false);
   }
@@ -114,8 +190,25 @@ public class Finder implements KeyStrokeHandler, Minibuffer.Listener {
     fireSetVisible();
   }
 
+  /**
+   * Returns the latest matches handed over, which may be for an earlier query
+   * while matching is running on another thread.
+   */
   public List<String> getMatches() {
-    return driver.getMatches(minibuffer.getText());
+    return currentMatches;
+  }
+
+  /**
+   * Limits the matches to as many as can be shown.
+   */
+  public void setMaxMatches(int maxMatches) {
+    if (this.maxMatches == maxMatches) {
+      return;
+    }
+    this.maxMatches = maxMatches;
+    if (visible && session != null) {
+      updateMatches();
+    }
   }
 
   public boolean contains(String filename) {
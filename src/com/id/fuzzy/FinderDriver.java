@@ -3,5 +3,42 @@ package com.id.fuzzy;
 import java.util.List;
 
 public interface FinderDriver {
-  List<String> getMatches(String query);
+  /**
+   * Answers a run of queries that mostly differ from the last by a character
+   * typed or deleted, reusing the work done for the earlier ones.
+   */
+  public interface Session {
+    /**
+     * Takes the best matches a session has found so far, while it's still
+     * searching.
+     */
+    public interface Sink {
+      void onMatches(List<String> matches);
+    }
+
+    /**
+     * Returns up to maxMatches matches for the query, best first.
+     */
+    List<String> getMatches(String query, int maxMatches);
+
+    /**
+     * Like {@link #getMatches(String, int)}, but sessions that search in
+     * parts may also hand the best matches found so far to sink as they go.
+     * The sink may be called from other threads, but never after this
+     * returns.
+     */
+    List<String> getMatches(String query, int maxMatches, Sink sink);
+  }
+
+  /**
+   * Returns up to maxMatches matches for the query, best first.
+   */
+  List<String> getMatches(String query, int maxMatches);
+
+  Session startSession();
+
+  /**
+   * Called when one of the driver's matches is picked.
+   */
+  void onItemSelected(String item);
 }
@@ -0,0 +1,203 @@
+package com.id.fuzzy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers how often and how recently items were picked. Every pick adds
+ * one to an item's frecency, which halves every {@link #HALF_LIFE_MILLIS}.
+ *
+ * With a log file, each pick appends the item's new frecency and the time
+ * to the log as a line, so reading it back keeps the last line for each
+ * item. Lines end with a tab, so one cut short by a crash can be told
+ * apart and is skipped. Once the log holds many more lines than items, it's rewritten with
+ * one line per item, forgetting those that have decayed away.
+ */
+public class FrecencyStore {
+  public static final long HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+  // Items whose frecency decays below this are dropped when compacting.
+  private static final double FORGOTTEN = 0.01;
+  // The log is compacted once it holds this many lines per item, plus a few.
+  private static final int LINES_PER_ITEM = 4;
+  private static final int SPARE_LINES = 64;
+  private static final String LINE_END = "\t";
+
+  private static class Entry {
+    public final double frecency;
+    public final long time;
+
+    public Entry(double frecency, long time) {
+      this.frecency = frecency;
+      this.time = time;
+    }
+
+    public double getFrecency(long now) {
+      return frecency * Math.pow(0.5, (double) Math.max(0, now - time) / HALF_LIFE_MILLIS);
+    }
+
+    public String toLine(String item) {
+      return time + " " + frecency + " " + item + LINE_END;
+    }
+  }
+
+  private final java.io.File log;
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private int logLineCount = 0;
+
+  /**
+   * Makes a store that isn't saved anywhere.
+   */
+  public FrecencyStore() {
+    this(null);
+  }
+
+  public FrecencyStore(java.io.File log) {
+    this.log = log;
+    if (log != null && log.exists()) {
+      readLog();
+    }
+  }
+
+  private void readLog() {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(log));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          logLineCount++;
+          if (!line.endsWith(LINE_END)) {
+            // Cut short by a crash.
+            continue;
+          }
+          line = line.substring(0, line.length() - LINE_END.length());
+          String[] parts = line.split(" ", 3);
+          if (parts.length < 3) {
+            continue;
+          }
+          try {
+            entries.put(parts[2],
+                new Entry(Double.parseDouble(parts[1]), Long.parseLong(parts[0])));
+          } catch (NumberFormatException e) {
+            continue;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void record(String item) {
+    record(item, System.currentTimeMillis());
+  }
+
+  public synchronized void record(String item, long now) {
+    Entry old = entries.get(item);
+    Entry entry = new Entry((old == null ? 0 : old.getFrecency(now)) + 1, now);
+    entries.put(item, entry);
+    if (log == null) {
+      return;
+    }
+    if (logLineCount + 1 > LINES_PER_ITEM * entries.size() + SPARE_LINES) {
+      compact(now);
+      return;
+    }
+    try {
+      boolean cutShort = isCutShort(log);
+      PrintWriter writer = new PrintWriter(new FileWriter(log, true));
+      if (cutShort) {
+        // Keeps the line from being glued onto the end of the one cut short.
+        writer.println();
+      }
+      writer.println(entry.toLine(item));
+      writer.close();
+      if (writer.checkError()) {
+        throw new IOException("Couldn't write to " + log);
+      }
+      logLineCount++;
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Returns whether the file ends part way through a line.
+   */
+  private static boolean isCutShort(java.io.File file) throws IOException {
+    if (file.length() == 0) {
+      return false;
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      in.seek(in.length() - 1);
+      return in.read() != '\n';
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Rewrites the log with a line for each item that's still remembered,
+   * replacing it only once it's written in full.
+   */
+  private void compact(long now) {
+    List<String> forgotten = new ArrayList<String>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (entry.getValue().getFrecency(now) < FORGOTTEN) {
+        forgotten.add(entry.getKey());
+      }
+    }
+    for (String item : forgotten) {
+      entries.remove(item);
+    }
+    java.io.File temp = new java.io.File(log.getPath() + ".tmp");
+    try {
+      PrintWriter writer = new PrintWriter(new FileWriter(temp));
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        writer.println(entry.getValue().toLine(entry.getKey()));
+      }
+      writer.close();
+      if (writer.checkError()) {
+        temp.delete();
+        throw new IOException("Couldn't write " + temp);
+      }
+      if (!temp.renameTo(log)) {
+        throw new IOException("Couldn't replace " + log);
+      }
+      logLineCount = entries.size();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public double getFrecency(String item) {
+    return getFrecency(item, System.currentTimeMillis());
+  }
+
+  public synchronized double getFrecency(String item, long now) {
+    Entry entry = entries.get(item);
+    return entry == null ? 0 : entry.getFrecency(now);
+  }
+
+  /**
+   * Returns every item remembered.
+   */
+  public synchronized List<String> getItems() {
+    return new ArrayList<String>(entries.keySet());
+  }
+
+  // For testing.
+  synchronized int getLogLineCount() {
+    return logLineCount;
+  }
+}
@@ -1,49 +1,460 @@
 package com.id.fuzzy;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
 
 import com.id.file.File;
+import com.id.file.FuzzyScorer;
+import com.id.file.MappedTrie;
 import com.id.file.Trie;
+import com.id.file.Trie.FuzzyMatch;
 
 /**
- * Implements the fuzzy file finder logic. Uses a {@link Trie} to build an index
- * on the filenames, which are sourced from a file. Changes to the file are
- * reflected in the index.
+ * Implements the fuzzy file finder logic. Uses a {@link ShardedFuzzyIndex} to
+ * build an index on the filenames, which are sourced from a file. Changes to
+ * the file are reflected in the index. Lines are indexed by their basenames,
+ * and the key each line went in under is remembered, so that removing or
+ * changing a line takes out exactly what adding it put in.
+ *
+ * A driver made by {@link #openSaved} starts out matching with an index saved
+ * in a {@link MappedTrie}, and only builds its own index, in the background,
+ * once the saved one turns out to be out of date.
+ *
+ * With a {@link FrecencyStore}, files picked before rank higher: a file's
+ * score improves by {@link #FRECENCY_BOOST} for every doubling of its
+ * frecency.
  */
 public class FuzzyFinderDriver implements FinderDriver, File.Listener {
-  private final Trie<String> trie = new Trie<String>();
+  public static final int FRECENCY_BOOST = 40;
 
-  public FuzzyFinderDriver(File file) {
-    for (int i = 0; i < file.getLineCount(); i++) {
-      onLineInserted(i, file.getLine(i));
+  private static class IndexedLine {
+    private final String key;
+    // How many times the line is in the file.
+    private int count = 0;
+
+    public IndexedLine(String key) {
+      this.key = key;
     }
+  }
+
+  private final File file;
+  // Null until built, when a mapped index is used instead.
+  private volatile ShardedFuzzyIndex index;
+  private volatile MappedTrie mappedIndex = null;
+  private Map<String, IndexedLine> indexedLines = new HashMap<String, IndexedLine>();
+  private Executor buildExecutor = null;
+  private Executor uiExecutor = null;
+  private boolean rebuilding = false;
+  // Counts the changes to the file while there's no index to apply them to.
+  private int missedChangeCount = 0;
+  private FrecencyStore frecency = null;
+
+  public FuzzyFinderDriver(File file) {
+    this(file, new ShardedFuzzyIndex());
+  }
+
+  public FuzzyFinderDriver(File file, ShardedFuzzyIndex index) {
+    this.file = file;
+    this.index = index;
+    addLines(file.getLineList());
     // TODO(koz): This is leaked.
     file.addListener(this);
   }
 
+  private FuzzyFinderDriver(File file, MappedTrie mappedIndex, Executor buildExecutor,
+      Executor uiExecutor) {
+    this.file = file;
+    this.index = null;
+    this.mappedIndex = mappedIndex;
+    this.buildExecutor = buildExecutor;
+    this.uiExecutor = uiExecutor;
+    file.addListener(this);
+  }
+
+  /**
+   * Returns a driver for the lines of file, which was read from source. If
+   * indexFile holds an index built from source as it is now, the driver
+   * matches with it straight away. Otherwise the index is built on
+   * buildExecutor, handed over on uiExecutor and saved to indexFile, and any
+   * older index in indexFile is used until then.
+   */
+  public static FuzzyFinderDriver openSaved(File file, final java.io.File source,
+      final java.io.File indexFile, Executor buildExecutor, Executor uiExecutor) {
+    final long sourceLength = source.length();
+    final long sourceModified = source.lastModified();
+    final long sourceHash = file.getContentHash();
+    MappedTrie saved = null;
+    if (indexFile.exists()) {
+      try {
+        saved = MappedTrie.open(indexFile);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file, saved, buildExecutor, uiExecutor);
+    if (saved == null || saved.getSourceLength() != sourceLength
+        || saved.getSourceModified() != sourceModified || saved.getSourceHash() != sourceHash) {
+      driver.rebuild(new IndexSaver() {
+        @Override
+        public void save(ShardedFuzzyIndex index) throws IOException {
+          MappedTrie.write(index.getEntries(), sourceLength, sourceModified, sourceHash,
+              indexFile);
+        }
+      });
+    }
+    return driver;
+  }
+
+  private interface IndexSaver {
+    void save(ShardedFuzzyIndex index) throws IOException;
+  }
+
+  /**
+   * Builds an index of the file as it is now in the background. If the file
+   * changes in the meantime, the index is thrown away and built again.
+   */
+  private void rebuild(final IndexSaver saver) {
+    rebuilding = true;
+    final int startChangeCount = missedChangeCount;
+    final List<String> lines = file.getLineList();
+    buildExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final FuzzyFinderDriver built = new FuzzyFinderDriver(new File(lines));
+        if (saver != null) {
+          try {
+            saver.save(built.index);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+        uiExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            rebuilding = false;
+            if (missedChangeCount != startChangeCount) {
+              rebuild(null);
+              return;
+            }
+            indexedLines = built.indexedLines;
+            index = built.index;
+            mappedIndex = null;
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * @return whether there's an index to apply changes to.
+   */
+  private boolean isIndexBuilt() {
+    if (index != null) {
+      return true;
+    }
+    missedChangeCount++;
+    if (!rebuilding) {
+      rebuild(null);
+    }
+    return false;
+  }
+
+  // For testing.
+  boolean isUsingMappedIndex() {
+    return index == null && mappedIndex != null;
+  }
+
+  public void setFrecencyStore(FrecencyStore frecency) {
+    this.frecency = frecency;
+  }
+
+  static int getBoost(double frecency) {
+    return (int) Math.round(FRECENCY_BOOST * Math.log(1 + frecency) / Math.log(2));
+  }
+
+  private interface ScoredMatcher {
+    /**
+     * Returns the best maxMatches matches, telling the listener, if there is
+     * one, about those found on the way.
+     */
+    List<FuzzyMatch> getMatches(int maxMatches, ShardedFuzzyIndex.ShardListener listener);
+  }
+
+  /**
+   * Returns whether the line is in the index under the key.
+   */
+  private boolean isIndexed(String key, String line) {
+    // The index is set before the mapped index is dropped, so one of them is
+    // there unless neither ever was.
+    MappedTrie mapped = mappedIndex;
+    ShardedFuzzyIndex current = index;
+    if (current != null) {
+      return current.contains(key, line);
+    }
+    return mapped != null && mapped.getValues(key).contains(line);
+  }
+
+  /**
+   * Returns the best maxMatches matches once the files picked before have
+   * been boosted. Boosting only makes scores better, so the best are among
+   * the boosted files and the best maxMatches plus as many again from
+   * matcher. If there is a sink, it's handed the best so far each time the
+   * matcher finds more.
+   */
+  private List<String> rankMatches(String query, final int maxMatches,
+      final Session.Sink sink, ScoredMatcher matcher) {
+    final List<FuzzyMatch> all = new ArrayList<FuzzyMatch>();
+    final Set<String> boosted = new HashSet<String>();
+    if (frecency != null) {
+      long now = System.currentTimeMillis();
+      for (String line : frecency.getItems()) {
+        String key = getIndexString(line);
+        int score = FuzzyScorer.score(key.toCharArray(), 0, key.length(), query, true);
+        if (score != FuzzyScorer.NO_MATCH && isIndexed(key, line)) {
+          all.add(new FuzzyMatch(line, score - getBoost(frecency.getFrecency(line, now))));
+          boosted.add(line);
+        }
+      }
+    }
+    int baseCount = maxMatches > Integer.MAX_VALUE - boosted.size()
+        ? Integer.MAX_VALUE : maxMatches + boosted.size();
+    ShardedFuzzyIndex.ShardListener listener = null;
+    if (sink != null) {
+      final List<FuzzyMatch> found = new ArrayList<FuzzyMatch>(all);
+      listener = new ShardedFuzzyIndex.ShardListener() {
+        @Override
+        public void onShardMatched(List<FuzzyMatch> matches) {
+          // Handed over under the lock, so that later batches come later.
+          synchronized (found) {
+            addUnboosted(found, matches, boosted);
+            sink.onMatches(getBest(found, maxMatches));
+          }
+        }
+      };
+    }
+    addUnboosted(all, matcher.getMatches(baseCount, listener), boosted);
+    return getBest(all, maxMatches);
+  }
+
+  private static void addUnboosted(List<FuzzyMatch> all, List<FuzzyMatch> matches,
+      Set<String> boosted) {
+    for (FuzzyMatch match : matches) {
+      if (!boosted.contains(match.getText())) {
+        all.add(match);
+      }
+    }
+  }
+
+  private static List<String> getBest(List<FuzzyMatch> all, int maxMatches) {
+    // The sort is stable, so boosted files win ties.
+    Collections.sort(all);
+    List<String> result = new ArrayList<String>();
+    for (int i = 0; i < all.size() && i < maxMatches; i++) {
+      result.add(all.get(i).getText());
+    }
+    return result;
+  }
+
   // FinderDriver.
   @Override
-  public List<String> getMatches(String query) {
-    return trie.doFuzzyMatch(true, "", query);
+  public List<String> getMatches(String query, int maxMatches) {
+    return getMatches(query, maxMatches, null);
+  }
+
+  private List<String> getMatches(final String query, int maxMatches, Session.Sink sink) {
+    return rankMatches(query, maxMatches, sink, new ScoredMatcher() {
+      @Override
+      public List<FuzzyMatch> getMatches(int maxMatches,
+          ShardedFuzzyIndex.ShardListener listener) {
+        MappedTrie mapped = mappedIndex;
+        ShardedFuzzyIndex current = index;
+        if (current != null) {
+          return current.getScoredMatches(query, maxMatches, listener);
+        }
+        if (mapped != null) {
+          return mapped.doScoredFuzzyMatch(true, query, maxMatches);
+        }
+        return new ArrayList<FuzzyMatch>();
+      }
+    });
+  }
+
+  @Override
+  public void onItemSelected(String item) {
+    if (frecency != null) {
+      frecency.record(item);
+    }
+  }
+
+  /**
+   * Queries go to the mapped index while there is one, and through an
+   * {@link IncrementalSession} on the driver's own index once it's built.
+   */
+  @Override
+  public Session startSession() {
+    return new Session() {
+      private ShardedFuzzyIndex sessionIndex = null;
+      private Session incremental = null;
+
+      @Override
+      public List<String> getMatches(String query, int maxMatches) {
+        return getMatches(query, maxMatches, null);
+      }
+
+      @Override
+      public List<String> getMatches(String query, int maxMatches, Sink sink) {
+        ShardedFuzzyIndex current = index;
+        if (current == null) {
+          return FuzzyFinderDriver.this.getMatches(query, maxMatches, sink);
+        }
+        if (current != sessionIndex) {
+          sessionIndex = current;
+          incremental = startIncrementalSession(current);
+        }
+        return incremental.getMatches(query, maxMatches, sink);
+      }
+    };
+  }
+
+  private Session startIncrementalSession(final ShardedFuzzyIndex index) {
+    return new IncrementalSession<List<Trie<String>.FuzzyFrontier>>() {
+      private int startVersion;
+
+      @Override
+      protected List<Trie<String>.FuzzyFrontier> start() {
+        startVersion = index.getVersion();
+        return index.startFuzzyMatch();
+      }
+
+      @Override
+      protected List<Trie<String>.FuzzyFrontier> refine(
+          List<Trie<String>.FuzzyFrontier> frontiers, String query) {
+        return index.extend(frontiers, query.charAt(query.length() - 1));
+      }
+
+      @Override
+      protected List<String> getMatches(final List<Trie<String>.FuzzyFrontier> frontiers,
+          String query, int maxMatches, Sink sink) {
+        return rankMatches(query, maxMatches, sink, new ScoredMatcher() {
+          @Override
+          public List<FuzzyMatch> getMatches(int maxMatches,
+              ShardedFuzzyIndex.ShardListener listener) {
+            return index.getScoredMatches(frontiers, maxMatches, listener);
+          }
+        });
+      }
+
+      @Override
+      protected boolean isStale() {
+        return startVersion != index.getVersion();
+      }
+    };
   }
 
   // File.Listener
   @Override
   public void onLineInserted(int y, String line) {
-    trie.add(getIndexString(line), line);
+    if (isIndexBuilt()) {
+      index.add(remember(line), line);
+    }
   }
 
   @Override
   public void onLineRemoved(int y, String line) {
-    trie.remove(getIndexString(line), line);
+    if (isIndexBuilt()) {
+      removeLine(line);
+    }
   }
 
   @Override
   public void onLineChanged(int y, String oldLine, String newLine) {
-    trie.remove(oldLine, oldLine);
-    trie.add(newLine, newLine);
+    if (isIndexBuilt()) {
+      removeLine(oldLine);
+      index.add(remember(newLine), newLine);
+    }
+  }
+
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    if (!isIndexBuilt()) {
+      return;
+    }
+    for (String line : removedLines) {
+      removeLine(line);
+    }
+    addLines(insertedLines);
+  }
+
+  private void addLines(List<String> lines) {
+    List<String> keys = new ArrayList<String>(lines.size());
+    for (String line : lines) {
+      keys.add(remember(line));
+    }
+    index.addAll(keys, lines);
+  }
+
+  /**
+   * Records another copy of the line and returns its key.
+   */
+  private String remember(String line) {
+    IndexedLine indexedLine = indexedLines.get(line);
+    if (indexedLine == null) {
+      indexedLine = new IndexedLine(getIndexString(line));
+      indexedLines.put(line, indexedLine);
+    }
+    indexedLine.count++;
+    return indexedLine.key;
+  }
+
+  private void removeLine(String line) {
+    IndexedLine indexedLine = indexedLines.get(line);
+    if (indexedLine == null) {
+      throw new IllegalStateException("Line was never indexed: " + line);
+    }
+    index.remove(indexedLine.key, line);
+    if (--indexedLine.count == 0) {
+      indexedLines.remove(line);
+    }
+  }
+
+  ShardedFuzzyIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Builds a fresh index from the lines of the file and returns how the
+   * maintained index differs from it, one description per key. Empty if the
+   * index is in step with the file.
+   */
+  public List<String> findIndexDifferences(File file) {
+    if (index == null) {
+      throw new IllegalStateException("The index hasn't been built");
+    }
+    FuzzyFinderDriver rebuilt = new FuzzyFinderDriver(new File(file.getLineList()),
+        new ShardedFuzzyIndex(index.getShardCount()));
+    SortedMap<String, List<String>> expected = rebuilt.index.getEntries();
+    SortedMap<String, List<String>> actual = index.getEntries();
+    Set<String> keys = new TreeSet<String>(expected.keySet());
+    keys.addAll(actual.keySet());
+    List<String> result = new ArrayList<String>();
+    for (String key : keys) {
+      List<String> expectedValues = expected.get(key);
+      List<String> actualValues = actual.get(key);
+      if (expectedValues == null || !expectedValues.equals(actualValues)) {
+        result.add(key + ": expected " + expectedValues + ", indexed " + actualValues);
+      }
+    }
+    return result;
   }
 
   private String getIndexString(String filename) {
@@ -0,0 +1,73 @@
+package com.id.fuzzy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.id.util.Util;
+
+/**
+ * A {@link FinderDriver.Session} for drivers whose matches for a query can be
+ * worked out from those for the query without its last character. It keeps
+ * a state for every prefix of the last query, so typing a character refines
+ * the last state and deleting one goes back to an earlier state. If the
+ * thread is interrupted, the states worked out so far are kept for the next
+ * query.
+ */
+abstract class IncrementalSession<S> implements FinderDriver.Session {
+  private final List<String> queries = new ArrayList<String>();
+  private final List<S> states = new ArrayList<S>();
+
+  /**
+   * Returns the state for the empty query.
+   */
+  protected abstract S start();
+
+  /**
+   * Returns the state for the query, given the state for the query without
+   * its last character.
+   */
+  protected abstract S refine(S state, String query);
+
+  /**
+   * Returns the matches for the query from its state. The sink is null if
+   * nobody wants the matches found on the way.
+   */
+  protected abstract List<String> getMatches(S state, String query, int maxMatches,
+      Sink sink);
+
+  /**
+   * Returns whether what is being matched has changed since {@link #start}
+   * was last called.
+   */
+  protected boolean isStale() {
+    return false;
+  }
+
+  @Override
+  public List<String> getMatches(String query, int maxMatches) {
+    return getMatches(query, maxMatches, null);
+  }
+
+  @Override
+  public List<String> getMatches(String query, int maxMatches, Sink sink) {
+    if (isStale()) {
+      queries.clear();
+      states.clear();
+    }
+    while (!queries.isEmpty() && !query.startsWith(queries.get(queries.size() - 1))) {
+      queries.remove(queries.size() - 1);
+      states.remove(states.size() - 1);
+    }
+    if (states.isEmpty()) {
+      queries.add("");
+      states.add(start());
+    }
+    for (int i = queries.size() - 1; i < query.length(); i++) {
+      Util.checkCancelled();
+      String refined = query.substring(0, i + 1);
+      states.add(refine(states.get(states.size() - 1), refined));
+      queries.add(refined);
+    }
+    return getMatches(states.get(states.size() - 1), query, maxMatches, sink);
+  }
+}
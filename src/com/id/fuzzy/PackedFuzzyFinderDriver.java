@@ -0,0 +1,198 @@
+package com.id.fuzzy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.id.file.File;
+import com.id.file.FuzzyScorer;
+import com.id.util.Util;
+
+/**
+ * Fuzzy matches whole lines with a {@link FuzzyScorer}, for short lists like
+ * revisions or old highlights that don't warrant a trie. The lines are copied
+ * into one char array when the driver is made, so it doesn't follow later
+ * changes to the file. Scoring a line allocates nothing; only the best
+ * maxMatches of them are kept, and only those become strings.
+ */
+public class PackedFuzzyFinderDriver implements FinderDriver {
+  // How many lines are scored between checks for cancellation.
+  private static final int CANCELLATION_CHECK_INTERVAL = 1 << 12;
+
+  private final char[] chars;
+  // Line i is chars[starts[i], starts[i + 1]).
+  private final int[] starts;
+
+  public PackedFuzzyFinderDriver(File file) {
+    List<String> lines = file.getLineList();
+    starts = new int[lines.size() + 1];
+    int length = 0;
+    for (int i = 0; i < lines.size(); i++) {
+      starts[i] = length;
+      length += lines.get(i).length();
+    }
+    starts[lines.size()] = length;
+    chars = new char[length];
+    for (int i = 0; i < lines.size(); i++) {
+      lines.get(i).getChars(0, lines.get(i).length(), chars, starts[i]);
+    }
+  }
+
+  public int getLineCount() {
+    return starts.length - 1;
+  }
+
+  private int score(int line, String query) {
+    return FuzzyScorer.score(chars, starts[line], starts[line + 1], query, true);
+  }
+
+  /**
+   * The best matches seen so far, as a heap with the worst on top. Matches
+   * with equal scores rank by line, so results come out in file order.
+   */
+  private static class TopMatches {
+    private final int[] scores;
+    private final int[] lines;
+    private int size = 0;
+
+    public TopMatches(int capacity) {
+      scores = new int[capacity];
+      lines = new int[capacity];
+    }
+
+    private boolean isWorse(int a, int b) {
+      return scores[a] > scores[b] || (scores[a] == scores[b] && lines[a] > lines[b]);
+    }
+
+    private void swap(int a, int b) {
+      int score = scores[a];
+      scores[a] = scores[b];
+      scores[b] = score;
+      int line = lines[a];
+      lines[a] = lines[b];
+      lines[b] = line;
+    }
+
+    public void offer(int score, int line) {
+      if (scores.length == 0) {
+        return;
+      }
+      if (size == scores.length) {
+        // Lines are offered in order, so a tie with the worst loses to it.
+        if (score >= scores[0]) {
+          return;
+        }
+        scores[0] = score;
+        lines[0] = line;
+        siftDown(0);
+        return;
+      }
+      scores[size] = score;
+      lines[size] = line;
+      int i = size++;
+      while (i > 0 && isWorse(i, (i - 1) / 2)) {
+        swap(i, (i - 1) / 2);
+        i = (i - 1) / 2;
+      }
+    }
+
+    private void siftDown(int i) {
+      while (true) {
+        int worst = i;
+        for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+          if (isWorse(child, worst)) {
+            worst = child;
+          }
+        }
+        if (worst == i) {
+          return;
+        }
+        swap(i, worst);
+        i = worst;
+      }
+    }
+
+    /**
+     * Empties the heap, returning its lines best first.
+     */
+    public int[] drain() {
+      int[] result = new int[size];
+      while (size > 0) {
+        result[size - 1] = lines[0];
+        swap(0, --size);
+        siftDown(0);
+      }
+      return result;
+    }
+  }
+
+  private List<String> getMatches(int[] candidates, int candidateCount, String query,
+      int maxMatches) {
+    TopMatches top = new TopMatches(Math.min(maxMatches, candidateCount));
+    for (int i = 0; i < candidateCount; i++) {
+      if (i % CANCELLATION_CHECK_INTERVAL == 0) {
+        Util.checkCancelled();
+      }
+      int line = candidates == null ? i : candidates[i];
+      int score = score(line, query);
+      if (score != FuzzyScorer.NO_MATCH) {
+        top.offer(score, line);
+      }
+    }
+    List<String> result = new ArrayList<String>();
+    for (int line : top.drain()) {
+      result.add(new String(chars, starts[line], starts[line + 1] - starts[line]));
+    }
+    return result;
+  }
+
+  // FinderDriver.
+  @Override
+  public List<String> getMatches(String query, int maxMatches) {
+    return getMatches(null, getLineCount(), query, maxMatches);
+  }
+
+  /**
+   * A line matching a query also matches every prefix of it, so each state
+   * holds the lines matching the query so far, and a longer query only scores
+   * those. The state for the empty query is null, for every line.
+   */
+  @Override
+  public Session startSession() {
+    return new IncrementalSession<int[]>() {
+      @Override
+      protected int[] start() {
+        return null;
+      }
+
+      @Override
+      protected int[] refine(int[] candidates, String query) {
+        int candidateCount = candidates == null ? getLineCount() : candidates.length;
+        int[] result = new int[candidateCount];
+        int size = 0;
+        for (int i = 0; i < candidateCount; i++) {
+          if (i % CANCELLATION_CHECK_INTERVAL == 0) {
+            Util.checkCancelled();
+          }
+          int line = candidates == null ? i : candidates[i];
+          if (score(line, query) != FuzzyScorer.NO_MATCH) {
+            result[size++] = line;
+          }
+        }
+        return Arrays.copyOf(result, size);
+      }
+
+      @Override
+      protected List<String> getMatches(int[] candidates, String query, int maxMatches,
+          Sink sink) {
+        int candidateCount = candidates == null ? getLineCount() : candidates.length;
+        return PackedFuzzyFinderDriver.this.getMatches(candidates, candidateCount, query,
+            maxMatches);
+      }
+    };
+  }
+
+  @Override
+  public void onItemSelected(String item) {
+  }
+}
@@ -0,0 +1,422 @@
+package com.id.fuzzy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.id.file.Trie;
+import com.id.file.Trie.FuzzyMatch;
+
+/**
+ * A fuzzy index split across several {@link Trie}s, so that building and
+ * matching can use every core. Each value lives in the shard picked by its
+ * hash, so changes go to one shard only, and a match asks every shard for its
+ * best results and merges them by score.
+ *
+ * Each shard is locked while it's used, so changes and matches may come from
+ * different threads. A change never waits for a match to finish: it's queued
+ * on its shard, and applied straight away if the shard is free or otherwise
+ * by whoever is using it once they're done. Anything that reads a shard
+ * applies its queued changes first. Interrupting a thread waiting for the
+ * shards makes it throw a CancellationException and cancels the shards' work.
+ */
+public class ShardedFuzzyIndex {
+  private static final ForkJoinPool pool = new ForkJoinPool();
+
+  /**
+   * Told each shard's best matches as soon as the shard has them, on the
+   * thread that matched it.
+   */
+  public interface ShardListener {
+    void onShardMatched(List<FuzzyMatch> matches);
+  }
+
+  private interface ShardFunction<R> {
+    R apply(int shard);
+  }
+
+  private static class Edit {
+    public final String key;
+    public final String value;
+    public final boolean isAdd;
+
+    public Edit(String key, String value, boolean isAdd) {
+      this.key = key;
+      this.value = value;
+      this.isAdd = isAdd;
+    }
+  }
+
+  private static class Shard {
+    public final Trie<String> trie = new Trie<String>();
+    public final ReentrantLock lock = new ReentrantLock();
+    // Changes waiting for the trie to be free.
+    public final Queue<Edit> pendingEdits = new ConcurrentLinkedQueue<Edit>();
+  }
+
+  private final List<Shard> shards = new ArrayList<Shard>();
+  // Bumped whenever a shard changes, which invalidates frontiers.
+  private final AtomicInteger version = new AtomicInteger();
+
+  public ShardedFuzzyIndex() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public ShardedFuzzyIndex(int shardCount) {
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new Shard());
+    }
+  }
+
+  public int getShardCount() {
+    return shards.size();
+  }
+
+  public int getVersion() {
+    return version.get();
+  }
+
+  private int getShard(String value) {
+    return (value.hashCode() & Integer.MAX_VALUE) % shards.size();
+  }
+
+  // For testing.
+  ReentrantLock getShardLock(String value) {
+    return shards.get(getShard(value)).lock;
+  }
+
+  /**
+   * Locks the shard for reading or writing, once its queued changes are in.
+   */
+  private static Trie<String> lock(Shard shard) {
+    shard.lock.lock();
+    applyPendingEdits(shard);
+    return shard.trie;
+  }
+
+  /**
+   * Unlocks the shard, then applies any changes queued while it was locked.
+   */
+  private static void unlock(Shard shard) {
+    shard.lock.unlock();
+    tryApplyPendingEdits(shard);
+  }
+
+  private static void applyPendingEdits(Shard shard) {
+    Edit edit;
+    while ((edit = shard.pendingEdits.poll()) != null) {
+      if (edit.isAdd) {
+        shard.trie.add(edit.key, edit.value);
+      } else {
+        shard.trie.remove(edit.key, edit.value);
+      }
+    }
+  }
+
+  /**
+   * Applies the shard's queued changes unless someone else is using it, in
+   * which case they do it when they unlock.
+   */
+  private static void tryApplyPendingEdits(Shard shard) {
+    while (!shard.pendingEdits.isEmpty() && shard.lock.tryLock()) {
+      try {
+        applyPendingEdits(shard);
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+  }
+
+  private void edit(Edit edit) {
+    Shard shard = shards.get(getShard(edit.value));
+    shard.pendingEdits.add(edit);
+    version.incrementAndGet();
+    tryApplyPendingEdits(shard);
+  }
+
+  public void add(String key, String value) {
+    edit(new Edit(key, value, true));
+  }
+
+  public void remove(String key, String value) {
+    edit(new Edit(key, value, false));
+  }
+
+  public boolean contains(String key, String value) {
+    Shard shard = shards.get(getShard(value));
+    Trie<String> trie = lock(shard);
+    try {
+      return trie.getValues(key).contains(value);
+    } finally {
+      unlock(shard);
+    }
+  }
+
+  /**
+   * Adds keys.get(i) mapping to values.get(i) for every i, filling the free
+   * shards in parallel. Like {@link #add}, this never waits for a shard in
+   * use; its part is left queued for whoever is using it.
+   */
+  public void addAll(List<String> keys, List<String> values) {
+    for (int i = 0; i < keys.size(); i++) {
+      Shard shard = shards.get(getShard(values.get(i)));
+      shard.pendingEdits.add(new Edit(keys.get(i), values.get(i), true));
+    }
+    version.incrementAndGet();
+    forEachShard(new ShardFunction<Void>() {
+      @Override
+      public Void apply(int shard) {
+        tryApplyPendingEdits(shards.get(shard));
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Returns every key with its values, sorted, for checking the index's
+   * contents.
+   */
+  public SortedMap<String, List<String>> getEntries() {
+    SortedMap<String, List<String>> result = new TreeMap<String, List<String>>();
+    for (Shard shard : shards) {
+      Trie<String> trie = lock(shard);
+      try {
+        for (Map.Entry<String, List<String>> entry : trie.getEntries().entrySet()) {
+          List<String> values = result.get(entry.getKey());
+          if (values == null) {
+            values = new ArrayList<String>();
+            result.put(entry.getKey(), values);
+          }
+          values.addAll(entry.getValue());
+        }
+      } finally {
+        unlock(shard);
+      }
+    }
+    for (List<String> values : result.values()) {
+      Collections.sort(values);
+    }
+    return result;
+  }
+
+  public int getNodeCount() {
+    int count = 0;
+    for (Shard shard : shards) {
+      Trie<String> trie = lock(shard);
+      try {
+        count += trie.getNodeCount();
+      } finally {
+        unlock(shard);
+      }
+    }
+    return count;
+  }
+
+  public List<String> getMatches(String query, int maxMatches) {
+    return getTexts(getScoredMatches(query, maxMatches));
+  }
+
+  public List<FuzzyMatch> getScoredMatches(String query, int maxMatches) {
+    return getScoredMatches(query, maxMatches, null);
+  }
+
+  /**
+   * Like {@link #getScoredMatches(String, int)}, also telling the listener,
+   * if there is one, each shard's matches as they come in.
+   */
+  public List<FuzzyMatch> getScoredMatches(final String query, final int maxMatches,
+      final ShardListener listener) {
+    return merge(forEachShard(new ShardFunction<List<FuzzyMatch>>() {
+      @Override
+      public List<FuzzyMatch> apply(int shard) {
+        List<FuzzyMatch> result;
+        Trie<String> trie = lock(shards.get(shard));
+        try {
+          result = trie.doScoredFuzzyMatch(true, query, maxMatches);
+        } finally {
+          unlock(shards.get(shard));
+        }
+        if (listener != null) {
+          listener.onShardMatched(result);
+        }
+        return result;
+      }
+    }), maxMatches);
+  }
+
+  /**
+   * Returns one frontier per shard for the empty query.
+   */
+  public List<Trie<String>.FuzzyFrontier> startFuzzyMatch() {
+    List<Trie<String>.FuzzyFrontier> result = new ArrayList<Trie<String>.FuzzyFrontier>();
+    for (Shard shard : shards) {
+      Trie<String> trie = lock(shard);
+      try {
+        result.add(trie.startFuzzyMatch(true));
+      } finally {
+        unlock(shard);
+      }
+    }
+    return result;
+  }
+
+  public List<Trie<String>.FuzzyFrontier> extend(
+      final List<Trie<String>.FuzzyFrontier> frontiers, final char c) {
+    return forEachShard(new ShardFunction<Trie<String>.FuzzyFrontier>() {
+      @Override
+      public Trie<String>.FuzzyFrontier apply(int shard) {
+        lock(shards.get(shard));
+        try {
+          return frontiers.get(shard).extend(c);
+        } finally {
+          unlock(shards.get(shard));
+        }
+      }
+    });
+  }
+
+  public List<String> getMatches(List<Trie<String>.FuzzyFrontier> frontiers,
+      int maxMatches) {
+    return getTexts(getScoredMatches(frontiers, maxMatches));
+  }
+
+  public List<FuzzyMatch> getScoredMatches(List<Trie<String>.FuzzyFrontier> frontiers,
+      int maxMatches) {
+    return getScoredMatches(frontiers, maxMatches, null);
+  }
+
+  public List<FuzzyMatch> getScoredMatches(final List<Trie<String>.FuzzyFrontier> frontiers,
+      final int maxMatches, final ShardListener listener) {
+    return merge(forEachShard(new ShardFunction<List<FuzzyMatch>>() {
+      @Override
+      public List<FuzzyMatch> apply(int shard) {
+        List<FuzzyMatch> result;
+        lock(shards.get(shard));
+        try {
+          result = frontiers.get(shard).getScoredMatches(maxMatches);
+        } finally {
+          unlock(shards.get(shard));
+        }
+        if (listener != null) {
+          listener.onShardMatched(result);
+        }
+        return result;
+      }
+    }), maxMatches);
+  }
+
+  /**
+   * Merges the shards' best matches, which are each sorted by score, keeping
+   * the best maxMatches overall.
+   */
+  private static List<FuzzyMatch> merge(List<List<FuzzyMatch>> shardMatches,
+      int maxMatches) {
+    List<FuzzyMatch> all = new ArrayList<FuzzyMatch>();
+    for (List<FuzzyMatch> matches : shardMatches) {
+      all.addAll(matches);
+    }
+    Collections.sort(all);
+    return new ArrayList<FuzzyMatch>(all.subList(0, Math.min(maxMatches, all.size())));
+  }
+
+  private static List<String> getTexts(List<FuzzyMatch> matches) {
+    List<String> result = new ArrayList<String>(matches.size());
+    for (FuzzyMatch match : matches) {
+      result.add(match.getText());
+    }
+    return result;
+  }
+
+  /**
+   * A shard's part of a parallel operation. Interrupting the thread that
+   * started the operation stops the parts by interrupting the pool threads
+   * running them, which is only done while they are running so that nothing
+   * else run by the pool sees it.
+   */
+  @SuppressWarnings("serial")
+  private static class ShardTask<R> extends RecursiveTask<R> {
+    private final ShardFunction<R> function;
+    private final int shard;
+    private Thread runner = null;
+    private boolean stopped = false;
+
+    public ShardTask(ShardFunction<R> function, int shard) {
+      this.function = function;
+      this.shard = shard;
+    }
+
+    @Override
+    protected R compute() {
+      synchronized (this) {
+        if (stopped) {
+          throw new CancellationException();
+        }
+        runner = Thread.currentThread();
+      }
+      try {
+        return function.apply(shard);
+      } finally {
+        synchronized (this) {
+          runner = null;
+          Thread.interrupted();
+        }
+      }
+    }
+
+    public synchronized void stop() {
+      stopped = true;
+      if (runner != null) {
+        runner.interrupt();
+      }
+    }
+  }
+
+  /**
+   * Runs the function for every shard on the pool and returns the results in
+   * shard order.
+   */
+  @SuppressWarnings("serial")
+  private <R> List<R> forEachShard(ShardFunction<R> function) {
+    final List<ShardTask<R>> tasks = new ArrayList<ShardTask<R>>();
+    for (int i = 0; i < shards.size(); i++) {
+      tasks.add(new ShardTask<R>(function, i));
+    }
+    ForkJoinTask<Void> all = pool.submit(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+    try {
+      all.get();
+    } catch (InterruptedException e) {
+      for (ShardTask<R> task : tasks) {
+        task.stop();
+      }
+      throw new CancellationException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    List<R> results = new ArrayList<R>();
+    for (ShardTask<R> task : tasks) {
+      results.add(task.join());
+    }
+    return results;
+  }
+}
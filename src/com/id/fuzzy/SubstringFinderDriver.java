@@ -6,20 +6,39 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.id.file.File;
+import com.id.util.Util;
 
+/**
+ * Finds the lines containing the query, or matching it if it's a regular
+ * expression. Plain queries are looked up in a {@link TrigramIndex} of the
+ * lines. The lines never change, so their matches come in the lines' order,
+ * except that the copies of a repeated line all come where the first one is.
+ */
 public class SubstringFinderDriver implements FinderDriver {
+  private static final String REGEX_CHARACTERS = "\\^$.|?*+()[]{}";
+  // How many lines are matched between checks for cancellation.
+  private static final int CANCELLATION_CHECK_INTERVAL = 1 << 12;
+
   private final File file;
+  private final TrigramIndex index;
 
-  public SubstringFinderDriver(File file) {
-    this.file = file;
+  public SubstringFinderDriver(List<String> lines) {
+    this.file = new File(lines);
+    this.index = new TrigramIndex(file.getLineList());
   }
 
   // FinderDriver.
   @Override
-  public List<String> getMatches(String query) {
+  public List<String> getMatches(String query, int maxMatches) {
+    if (isPlain(query)) {
+      return index.getMatches(query, maxMatches);
+    }
     List<String> result = new ArrayList<String>();
     Pattern pattern = Pattern.compile(".*" + query + ".*");
-    for (int i = 0; i < file.getLineCount(); i++) {
+    for (int i = 0; i < file.getLineCount() && result.size() < maxMatches; i++) {
+      if (i % CANCELLATION_CHECK_INTERVAL == 0) {
+        Util.checkCancelled();
+      }
       String candidate = file.getLine(i);
       Matcher matcher = pattern.matcher(candidate);
       if (matcher.matches()) {
@@ -28,4 +47,65 @@ public class SubstringFinderDriver implements FinderDriver {
     }
     return result;
   }
+
+  /**
+   * Lines containing a plain query also contain every prefix of it, so they
+   * are found among the lines that matched the query without its last
+   * character, once the index has narrowed them down to those containing its
+   * first trigram. Other queries are regular expressions, which can match
+   * more as they grow, and are matched against the whole file. Their state is
+   * null.
+   */
+  @Override
+  public Session startSession() {
+    return new IncrementalSession<List<String>>() {
+      @Override
+      protected List<String> start() {
+        return file.getLineList();
+      }
+
+      @Override
+      protected List<String> refine(List<String> candidates, String query) {
+        if (!isPlain(query)) {
+          return null;
+        }
+        if (query.length() == TrigramIndex.N) {
+          return index.getMatches(query, Integer.MAX_VALUE);
+        }
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < candidates.size(); i++) {
+          if (i % CANCELLATION_CHECK_INTERVAL == 0) {
+            Util.checkCancelled();
+          }
+          String candidate = candidates.get(i);
+          if (candidate.contains(query)) {
+            result.add(candidate);
+          }
+        }
+        return result;
+      }
+
+      @Override
+      protected List<String> getMatches(List<String> candidates, String query, int maxMatches,
+          Sink sink) {
+        if (candidates == null) {
+          return SubstringFinderDriver.this.getMatches(query, maxMatches);
+        }
+        return new ArrayList<String>(candidates.subList(0, Math.min(maxMatches, candidates.size())));
+      }
+    };
+  }
+
+  @Override
+  public void onItemSelected(String item) {
+  }
+
+  private static boolean isPlain(String query) {
+    for (int i = 0; i < query.length(); i++) {
+      if (REGEX_CHARACTERS.indexOf(query.charAt(i)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
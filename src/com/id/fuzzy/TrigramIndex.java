@@ -0,0 +1,239 @@
+package com.id.fuzzy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.id.file.File;
+import com.id.util.Util;
+
+/**
+ * An index of lines by the runs of {@link #N} characters they contain, for
+ * finding the lines that contain a string without looking at all of them.
+ * Only the lines containing every run in the query are checked.
+ *
+ * Each distinct line gets an id when it's first added, and matches come out
+ * in id order, not the file's. A line inserted or edited in the middle of a
+ * file comes after all the lines that were there before it, and all copies of
+ * a line come out together, where the first of them was added. The two orders
+ * only agree while lines are added at the end and none is repeated.
+ *
+ * Methods are synchronized, so the file may change on one thread while
+ * another looks for matches.
+ */
+public class TrigramIndex implements File.Listener {
+  public static final int N = 3;
+  // How many candidates are checked between checks for cancellation.
+  private static final int CANCELLATION_CHECK_INTERVAL = 1 << 12;
+
+  /**
+   * The ids of the lines containing a trigram, in increasing order.
+   */
+  private static class Posting {
+    private int[] ids = new int[2];
+    private int size = 0;
+
+    // New ids are always bigger than the ones already here.
+    public void add(int id) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = id;
+    }
+
+    public void remove(int id) {
+      int i = Arrays.binarySearch(ids, 0, size, id);
+      if (i < 0) {
+        throw new IllegalStateException("Line " + id + " isn't in the posting");
+      }
+      System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+      size--;
+    }
+
+    public boolean contains(int id) {
+      return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+  }
+
+  private static class IndexedLine {
+    public final int id;
+    public int count = 0;
+
+    public IndexedLine(int id) {
+      this.id = id;
+    }
+  }
+
+  private final Map<String, IndexedLine> indexedLines = new HashMap<String, IndexedLine>();
+  private final TreeMap<Integer, String> linesById = new TreeMap<Integer, String>();
+  private final Map<Long, Posting> postings = new HashMap<Long, Posting>();
+  private int nextId = 0;
+  private int version = 0;
+
+  public TrigramIndex(List<String> lines) {
+    for (String line : lines) {
+      add(line);
+    }
+  }
+
+  private static long getTrigram(String s, int i) {
+    return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+  }
+
+  private static Set<Long> getTrigrams(String s) {
+    Set<Long> result = new HashSet<Long>();
+    for (int i = 0; i + N <= s.length(); i++) {
+      result.add(getTrigram(s, i));
+    }
+    return result;
+  }
+
+  public synchronized void add(String line) {
+    version++;
+    IndexedLine indexedLine = indexedLines.get(line);
+    if (indexedLine != null) {
+      indexedLine.count++;
+      return;
+    }
+    indexedLine = new IndexedLine(nextId++);
+    indexedLine.count = 1;
+    indexedLines.put(line, indexedLine);
+    linesById.put(indexedLine.id, line);
+    for (Long trigram : getTrigrams(line)) {
+      Posting posting = postings.get(trigram);
+      if (posting == null) {
+        posting = new Posting();
+        postings.put(trigram, posting);
+      }
+      posting.add(indexedLine.id);
+    }
+  }
+
+  public synchronized void remove(String line) {
+    version++;
+    IndexedLine indexedLine = indexedLines.get(line);
+    if (indexedLine == null) {
+      throw new IllegalStateException("Removing a line that isn't indexed: " + line);
+    }
+    if (--indexedLine.count > 0) {
+      return;
+    }
+    indexedLines.remove(line);
+    linesById.remove(indexedLine.id);
+    for (Long trigram : getTrigrams(line)) {
+      Posting posting = postings.get(trigram);
+      posting.remove(indexedLine.id);
+      if (posting.size == 0) {
+        postings.remove(trigram);
+      }
+    }
+  }
+
+  /**
+   * Returns a number that changes whenever the lines do.
+   */
+  public synchronized int getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the first maxMatches lines containing the query in id order,
+   * repeating lines that were added more than once.
+   */
+  public synchronized List<String> getMatches(String query, int maxMatches) {
+    List<String> result = new ArrayList<String>();
+    if (query.length() < N) {
+      int checked = 0;
+      for (String line : linesById.values()) {
+        if (checked++ % CANCELLATION_CHECK_INTERVAL == 0) {
+          Util.checkCancelled();
+        }
+        if (line.contains(query) && addMatch(line, result, maxMatches)) {
+          break;
+        }
+      }
+      return result;
+    }
+    List<Posting> queryPostings = new ArrayList<Posting>();
+    for (Long trigram : getTrigrams(query)) {
+      Posting posting = postings.get(trigram);
+      if (posting == null) {
+        return result;
+      }
+      queryPostings.add(posting);
+    }
+    Collections.sort(queryPostings, new Comparator<Posting>() {
+      @Override
+      public int compare(Posting a, Posting b) {
+        return a.size - b.size;
+      }
+    });
+    // Walk the shortest posting, keeping the ids that are in all the others.
+    Posting shortest = queryPostings.get(0);
+    candidates: for (int i = 0; i < shortest.size; i++) {
+      if (i % CANCELLATION_CHECK_INTERVAL == 0) {
+        Util.checkCancelled();
+      }
+      int id = shortest.ids[i];
+      for (int j = 1; j < queryPostings.size(); j++) {
+        if (!queryPostings.get(j).contains(id)) {
+          continue candidates;
+        }
+      }
+      // Having all the trigrams doesn't mean having them in the right order.
+      String line = linesById.get(id);
+      if (line.contains(query) && addMatch(line, result, maxMatches)) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds the line as many times as it was added to the index, stopping at
+   * maxMatches.
+   *
+   * @return whether the result is full.
+   */
+  private boolean addMatch(String line, List<String> result, int maxMatches) {
+    int count = indexedLines.get(line).count;
+    for (int i = 0; i < count && result.size() < maxMatches; i++) {
+      result.add(line);
+    }
+    return result.size() >= maxMatches;
+  }
+
+  // File.Listener.
+  @Override
+  public void onLineInserted(int y, String line) {
+    add(line);
+  }
+
+  @Override
+  public void onLineRemoved(int y, String line) {
+    remove(line);
+  }
+
+  @Override
+  public void onLineChanged(int y, String oldLine, String newLine) {
+    remove(oldLine);
+    add(newLine);
+  }
+
+  @Override
+  public void onLinesReplaced(int y, List<String> removedLines, List<String> insertedLines) {
+    for (String line : removedLines) {
+      remove(line);
+    }
+    for (String line : insertedLines) {
+      add(line);
+    }
+  }
+}
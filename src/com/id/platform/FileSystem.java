@@ -1,5 +1,7 @@
 package com.id.platform;
 
+import java.io.IOException;
+
 import com.id.file.File;
 
 public interface FileSystem {
@@ -7,8 +9,27 @@ public interface FileSystem {
   boolean isDirectory(String path);
   boolean isExistent(String path);
   File getFile(String path);
+
+  /**
+   * Like {@link #getFile}, but may return before the file has been read. Such
+   * a file fills in as it is read and can't be edited until
+   * {@link File#isLoading()} is false.
+   */
+  File getFileAsync(String path);
   File getFileOrNewFile(String path);
   String[] getSubdirectories(String path);
-  void save(File file);
+
+  /**
+   * Writes the file's lines to its path, leaving what was there untouched if
+   * they can't all be written.
+   */
+  void save(File file) throws IOException;
   void save(String filename, String... contents);
+
+  /**
+   * Returns a number that changes whenever the contents at path do, cheaply
+   * enough to check on every open and save. Undo journals match it against
+   * the last save.
+   */
+  long getContentStamp(String path);
 }
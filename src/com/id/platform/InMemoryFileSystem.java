@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import com.id.file.File;
+import com.id.file.UndoJournal;
 
 class Node {
   private final String name;
@@ -102,6 +103,11 @@ public class InMemoryFileSystem implements FileSystem {
     return file;
   }
 
+  @Override
+  public File getFileAsync(String path) {
+    return getFile(path);
+  }
+
   @Override
   public File getFileOrNewFile(String path) {
     File file = getFile(path);
@@ -153,4 +159,13 @@ public class InMemoryFileSystem implements FileSystem {
   public void save(String filename, String... contents) {
     insertFile(filename, contents);
   }
+
+  @Override
+  public long getContentStamp(String path) {
+    Node node = getNode(path);
+    if (node == null || !node.isFile()) {
+      return UndoJournal.EMPTY_HASH;
+    }
+    return UndoJournal.hash(node.getContents());
+  }
 }
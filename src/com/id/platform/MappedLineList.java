@@ -0,0 +1,208 @@
+package com.id.platform;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * A read-only list of the lines of a file on disk, backed by a memory mapping.
+ * Opening it makes one sequential pass over the bytes to record where each
+ * line starts; lines are only decoded when they are asked for.
+ *
+ * Line breaks are recognised the same way as {@link java.io.BufferedReader}
+ * does, so the charset must encode '\n' and '\r' as single bytes.
+ *
+ * The mapping reads the file as it is on disk, so the file must not be
+ * written to while the list is in use unless the list is detached from it
+ * first.
+ */
+public class MappedLineList extends AbstractList<String> {
+  private static final int SEGMENT_SIZE = 1 << 30;
+  private static final int SCAN_CHUNK_SIZE = 1 << 16;
+
+  private final java.io.File file;
+  // Replaced, not changed, when the list is detached, so readers on other
+  // threads see either mapping whole.
+  private volatile MappedByteBuffer[] segments;
+  private final long length;
+  private final Charset charset;
+  // lineStarts[i] is the offset of line i; lineStarts[lineCount] is the end of
+  // the file.
+  private long[] lineStarts;
+  private int lineCount;
+
+  public MappedLineList(java.io.File file, Charset charset) throws IOException {
+    this.file = file;
+    this.charset = charset;
+    this.length = file.length();
+    this.segments = map(file, length);
+    indexLines();
+  }
+
+  private static MappedByteBuffer[] map(java.io.File file, long length) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      if (channel.size() != length) {
+        throw new IOException(file + " changed while it was being mapped");
+      }
+      int segmentCount = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      MappedByteBuffer[] result = new MappedByteBuffer[segmentCount];
+      for (int i = 0; i < segmentCount; i++) {
+        long position = (long) i * SEGMENT_SIZE;
+        long size = Math.min(SEGMENT_SIZE, length - position);
+        result[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+      }
+      return result;
+    } finally {
+      // The mappings stay valid after the channel is closed.
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Moves the lines onto a private copy of the file, so that the file can be
+   * overwritten without them changing. Copies the whole file, next to it.
+   */
+  public void detach() throws IOException {
+    java.io.File copy = java.io.File.createTempFile(
+        ".id-" + file.getName(), ".mapped", file.getAbsoluteFile().getParentFile());
+    try {
+      FileOutputStream out = new FileOutputStream(copy);
+      try {
+        FileChannel channel = out.getChannel();
+        for (MappedByteBuffer segment : segments) {
+          ByteBuffer bytes = segment.duplicate();
+          while (bytes.hasRemaining()) {
+            channel.write(bytes);
+          }
+        }
+      } finally {
+        out.close();
+      }
+      segments = map(copy, length);
+    } finally {
+      // The mapping outlives the copy's name where the platform allows it.
+      if (!copy.delete()) {
+        copy.deleteOnExit();
+      }
+    }
+  }
+
+  private void indexLines() {
+    lineStarts = new long[(int) Math.min(1 << 20, length / 64 + 16)];
+    lineCount = 0;
+    if (length == 0) {
+      lineStarts[0] = 0;
+      return;
+    }
+    addLineStart(0);
+    byte[] chunk = new byte[SCAN_CHUNK_SIZE];
+    boolean pendingCarriageReturn = false;
+    for (int i = 0; i < segments.length; i++) {
+      ByteBuffer segment = segments[i].duplicate();
+      long segmentStart = (long) i * SEGMENT_SIZE;
+      while (segment.hasRemaining()) {
+        long chunkStart = segmentStart + segment.position();
+        int chunkLength = Math.min(chunk.length, segment.remaining());
+        segment.get(chunk, 0, chunkLength);
+        if (pendingCarriageReturn && chunkLength > 0) {
+          pendingCarriageReturn = false;
+          if (chunk[0] != '\n') {
+            // A lone '\r' ends the line before this byte.
+            addLineStart(chunkStart);
+          }
+        }
+        for (int j = 0; j < chunkLength; j++) {
+          byte b = chunk[j];
+          if (b > '\r') {
+            continue;
+          }
+          if (b == '\n') {
+            addLineStart(chunkStart + j + 1);
+          } else if (b == '\r') {
+            if (j + 1 == chunkLength) {
+              pendingCarriageReturn = true;
+            } else if (chunk[j + 1] != '\n') {
+              addLineStart(chunkStart + j + 1);
+            }
+          }
+        }
+      }
+    }
+    if (pendingCarriageReturn) {
+      addLineStart(length);
+    }
+    // A trailing line break doesn't start another line.
+    if (lineStarts[lineCount - 1] == length) {
+      lineCount--;
+    }
+    ensureCapacity(lineCount + 1);
+    lineStarts[lineCount] = length;
+  }
+
+  private void addLineStart(long offset) {
+    if (lineCount == lineStarts.length) {
+      ensureCapacity(lineCount + 1);
+    }
+    lineStarts[lineCount++] = offset;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > lineStarts.length) {
+      lineStarts = Arrays.copyOf(lineStarts, Math.max(capacity, lineStarts.length * 2));
+    }
+  }
+
+  @Override
+  public String get(int y) {
+    if (y < 0 || y >= lineCount) {
+      throw new IndexOutOfBoundsException("Line " + y + ", size " + lineCount);
+    }
+    long start = lineStarts[y];
+    long end = lineStarts[y + 1];
+    if (end > start && byteAt(end - 1) == '\n') {
+      end--;
+    }
+    if (end > start && byteAt(end - 1) == '\r') {
+      end--;
+    }
+    return new String(readBytes(start, (int) (end - start)), charset);
+  }
+
+  @Override
+  public int size() {
+    return lineCount;
+  }
+
+  /**
+   * The size of the mapped file in bytes.
+   */
+  public long getByteLength() {
+    return length;
+  }
+
+  private byte byteAt(long offset) {
+    return segments[(int) (offset / SEGMENT_SIZE)].get((int) (offset % SEGMENT_SIZE));
+  }
+
+  private byte[] readBytes(long offset, int count) {
+    byte[] result = new byte[count];
+    int copied = 0;
+    while (copied < count) {
+      long position = offset + copied;
+      ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+      segment.position((int) (position % SEGMENT_SIZE));
+      int n = Math.min(count - copied, segment.remaining());
+      segment.get(result, copied, n);
+      copied += n;
+    }
+    return result;
+  }
+}
@@ -1,16 +1,78 @@
 package com.id.platform;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
 
 import com.id.file.File;
+import com.id.file.UndoJournal;
 import com.id.util.StringUtils;
 
 public class RealFileSystem implements FileSystem {
+  /**
+   * Files at least this big are memory-mapped rather than read into memory.
+   */
+  public static final long DEFAULT_MAPPING_THRESHOLD = 16 * 1024 * 1024;
+  private static final int SAVE_BUFFER_SIZE = 64 * 1024;
+  // How much of the start of a file is looked at to find its line breaks.
+  private static final int LINE_SEPARATOR_PROBE_SIZE = 8 * 1024;
+  // Background loads hand over a screenful of lines first, then chunks that
+  // double in size up to the maximum.
+  private static final int FIRST_LOAD_CHUNK_SIZE = 128;
+  private static final int MAX_LOAD_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * What a file looked like on disk just after it was loaded or saved, which
+   * tells whether it can be appended to rather than rewritten.
+   */
+  private static class SavedState {
+    private final long length;
+    private final long lastModified;
+    private final int lineCount;
+    private final String lineSeparator;
+
+    public SavedState(java.io.File file, int lineCount, String lineSeparator) {
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+      this.lineCount = lineCount;
+      this.lineSeparator = lineSeparator;
+    }
+
+    public boolean isUnchanged(java.io.File file) {
+      return file.length() == length && file.lastModified() == lastModified;
+    }
+  }
+
   private final java.io.File workingDirectory;
+  private long mappingThreshold = DEFAULT_MAPPING_THRESHOLD;
+  private java.io.File undoJournalDirectory = null;
+  private Charset charset = Charset.defaultCharset();
+  private final ByteBuffer saveBuffer = ByteBuffer.allocateDirect(SAVE_BUFFER_SIZE);
+  private final Map<String, SavedState> savedStates = new HashMap<String, SavedState>();
+  // The mappings that files read through one are backed by.
+  private final Map<File, MappedLineList> mappings = new WeakHashMap<File, MappedLineList>();
+  private Executor loadExecutor = null;
+  private Executor uiExecutor = null;
 
   public RealFileSystem(java.io.File workingDirectory) {
     this.workingDirectory = workingDirectory;
@@ -44,7 +106,91 @@ public class RealFileSystem implements FileSystem {
     if (!isExistent("./" + path)) {
       return null;
     }
-    return loadFile(path);
+    File file = loadFile(path);
+    if (file != null) {
+      attachUndoJournal(file);
+    }
+    return file;
+  }
+
+  /**
+   * Reads files opened with {@link #getFileAsync} on the load executor,
+   * handing their lines over to the UI executor in chunks. Without executors
+   * files are read before getFileAsync returns.
+   */
+  public void setLoadExecutors(Executor loadExecutor, Executor uiExecutor) {
+    this.loadExecutor = loadExecutor;
+    this.uiExecutor = uiExecutor;
+  }
+
+  @Override
+  public File getFileAsync(final String path) {
+    // Mapped files are opened without reading them anyway.
+    if (loadExecutor == null || !isFile(path) || file(path).length() >= mappingThreshold) {
+      return getFile(path);
+    }
+    final File file = File.createLoadingFile(StringUtils.normalizePath(path));
+    loadExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        loadInBackground(path, file);
+      }
+    });
+    return file;
+  }
+
+  private void loadInBackground(final String path, final File file) {
+    try {
+      BufferedReader bufferedReader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(file(path)), charset));
+      try {
+        int chunkSize = FIRST_LOAD_CHUNK_SIZE;
+        List<String> chunk = new ArrayList<String>(chunkSize);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+          chunk.add(line);
+          if (chunk.size() == chunkSize) {
+            handOver(file, chunk);
+            chunkSize = Math.min(2 * chunkSize, MAX_LOAD_CHUNK_SIZE);
+            chunk = new ArrayList<String>(chunkSize);
+          }
+        }
+        handOver(file, chunk);
+      } finally {
+        bufferedReader.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      uiExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          // What was read can't be edited or saved over the original.
+          file.failLoading();
+        }
+      });
+      return;
+    }
+    uiExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          recordLineSeparator(path, file);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        file.finishLoading();
+        attachUndoJournal(file);
+      }
+    });
+  }
+
+  private void handOver(final File file, final List<String> lines) {
+    uiExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        file.appendLoadedLines(lines);
+      }
+    });
   }
 
   @Override
@@ -53,7 +199,9 @@ public class RealFileSystem implements FileSystem {
     if (file != null) {
       return file;
     }
-    return File.createNewFile(path);
+    file = File.createNewFile(path);
+    attachUndoJournal(file);
+    return file;
   }
 
   @Override
@@ -64,12 +212,63 @@ public class RealFileSystem implements FileSystem {
     return file(path).list();
   }
 
+  /**
+   * Sets the size in bytes from which files are opened through a read-only
+   * memory mapping. Their lines are decoded as they are displayed, and only
+   * lines that get edited are copied into memory.
+   */
+  public void setMappingThreshold(long mappingThreshold) {
+    this.mappingThreshold = mappingThreshold;
+  }
+
+  /**
+   * Sets the encoding files are read and written in. Defaults to the platform
+   * charset.
+   */
+  public void setCharset(Charset charset) {
+    this.charset = charset;
+  }
+
+  /**
+   * Keeps undo history for files in the given directory, so it survives the
+   * editor being restarted. History is only kept in memory when this is null.
+   */
+  public void setUndoJournalDirectory(java.io.File undoJournalDirectory) {
+    this.undoJournalDirectory = undoJournalDirectory;
+  }
+
+  private void attachUndoJournal(File file) {
+    if (undoJournalDirectory == null) {
+      return;
+    }
+    String path = file(file.getFilename()).getAbsolutePath();
+    String journalName = Long.toHexString(UndoJournal.hash(Arrays.asList(path))) + ".undo";
+    try {
+      file.setUndoJournal(UndoJournal.open(new java.io.File(undoJournalDirectory, journalName),
+          getContentStamp(file.getFilename())));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   private File loadFile(String filename) {
     File file;
     try {
-      FileReader fileReader = new FileReader(file(filename));
-      BufferedReader bufferedReader = new BufferedReader(fileReader);
-      file = File.loadFrom(StringUtils.normalizePath(filename), bufferedReader);
+      if (file(filename).length() >= mappingThreshold) {
+        MappedLineList mapping = new MappedLineList(file(filename), charset);
+        file = new File(mapping);
+        file.setFilename(StringUtils.normalizePath(filename));
+        mappings.put(file, mapping);
+      } else {
+        BufferedReader bufferedReader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(file(filename)), charset));
+        try {
+          file = File.loadFrom(StringUtils.normalizePath(filename), bufferedReader);
+        } finally {
+          bufferedReader.close();
+        }
+      }
+      recordLineSeparator(filename, file);
     } catch (IOException e) {
       e.printStackTrace();
       return null;
@@ -77,26 +276,293 @@ public class RealFileSystem implements FileSystem {
     return file;
   }
 
+  /**
+   * Gives the file the line break used on disk, and remembers its state if it
+   * can be appended to as it is.
+   */
+  private void recordLineSeparator(String filename, File file) throws IOException {
+    java.io.File target = file(filename);
+    RandomAccessFile in = new RandomAccessFile(target, "r");
+    try {
+      byte[] head = new byte[(int) Math.min(LINE_SEPARATOR_PROBE_SIZE, in.length())];
+      in.readFully(head);
+      for (int i = 0; i < head.length; i++) {
+        if (head[i] == '\n') {
+          break;
+        }
+        if (head[i] == '\r') {
+          file.setLineSeparator(i + 1 < head.length && head[i + 1] != '\n' ? "\r" : "\r\n");
+          break;
+        }
+      }
+      String separator = file.getLineSeparator();
+      if (in.length() >= separator.length()) {
+        byte[] tail = new byte[separator.length()];
+        in.seek(in.length() - tail.length);
+        in.readFully(tail);
+        if (new String(tail, "US-ASCII").equals(separator)) {
+          savedStates.put(target.getAbsolutePath(),
+              new SavedState(target, file.getLineCount(), separator));
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
   @Override
-  public void save(File file) {
+  public void save(File file) throws IOException {
     if (file.getFilename() == null) {
       throw new IllegalArgumentException("Can't save a file that doesn't have a name");
     }
-    save(file.getFilename(), file.getLines());
+    write(file(file.getFilename()), file, file.getLineSeparator());
+  }
+
+  /**
+   * Stamps files by their size and modification time, so nothing is read.
+   */
+  @Override
+  public long getContentStamp(String path) {
+    java.io.File target = file(path);
+    return UndoJournal.stamp(target.length(), target.lastModified());
   }
 
   @Override
   public void save(String filename, String... contents) {
     try {
-      FileWriter fileWriter = new FileWriter(file(filename));
-      BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-      for (String line : contents) {
-        bufferedWriter.write(line + "\n");
-      }
-      bufferedWriter.flush();
-      bufferedWriter.close();
+      write(file(filename), new File(contents), "\n");
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
+
+  /**
+   * Writes the file to a temporary file next to the target and renames it
+   * over the target, so the target is never left half written. A symlink is
+   * followed, so the file it points at is the one replaced, and the
+   * replacement gets the old file's owner, group and permissions. A file
+   * with other hard links, or whose owner can't be given to a new file, is
+   * written in place instead, since replacing it would cut it off from its
+   * other names or change who owns it.
+   *
+   * New files are written in place too.
+   *
+   * If the file has only been appended to since it was last loaded or saved,
+   * the old contents are copied across by the channel rather than encoded
+   * again, or just left alone when writing in place.
+   */
+  private void write(java.io.File target, File file, String separator) throws IOException {
+    java.io.File destination = target.getAbsoluteFile();
+    if (Files.isSymbolicLink(destination.toPath())) {
+      if (!destination.exists()) {
+        // A dangling link: writing through it creates the file it names.
+        writeInPlace(target, destination, file, separator);
+        return;
+      }
+      destination = destination.toPath().toRealPath().toFile();
+    }
+    // A new file has nothing to protect, and gets the usual permissions.
+    if (!destination.exists() || isHardLinked(destination)) {
+      writeInPlace(target, destination, file, separator);
+      return;
+    }
+    java.io.File temp = java.io.File.createTempFile(
+        ".id-" + destination.getName(), ".save", destination.getParentFile());
+    boolean written = false;
+    try {
+      if (!copyAttributes(destination, temp)) {
+        temp.delete();
+        writeInPlace(target, destination, file, separator);
+        return;
+      }
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        FileChannel channel = out.getChannel();
+        int start = copyUnchangedLines(target, file, separator, channel);
+        writeLines(channel, file.getLineIterator(start), separator);
+        channel.force(false);
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(destination)) {
+        // Some platforms won't rename over an existing file.
+        if (!destination.delete() || !temp.renameTo(destination)) {
+          throw new IOException("Couldn't replace " + destination);
+        }
+      }
+      written = true;
+    } finally {
+      if (!written) {
+        temp.delete();
+        savedStates.remove(target.getAbsolutePath());
+      }
+    }
+    savedStates.put(target.getAbsolutePath(),
+        new SavedState(target, file.getLineCount(), separator));
+  }
+
+  /**
+   * Writes the file over the destination's contents, appending to it if
+   * only new lines were added at the end. A file read through a mapping is
+   * detached from it first, since the mapping may be of the destination.
+   */
+  private void writeInPlace(java.io.File target, java.io.File destination, File file,
+      String separator) throws IOException {
+    int start = getAppendableLineCount(target, file, separator);
+    MappedLineList mapping = mappings.get(file);
+    if (mapping != null && start == 0 && destination.exists()) {
+      // Truncating the file would pull its lines out from under the mapping.
+      mapping.detach();
+      mappings.remove(file);
+    }
+    boolean written = false;
+    try {
+      FileOutputStream out = new FileOutputStream(destination, start > 0);
+      try {
+        FileChannel channel = out.getChannel();
+        writeLines(channel, file.getLineIterator(start), separator);
+        channel.force(false);
+      } finally {
+        out.close();
+      }
+      written = true;
+    } finally {
+      if (!written) {
+        savedStates.remove(target.getAbsolutePath());
+      }
+    }
+    savedStates.put(target.getAbsolutePath(),
+        new SavedState(target, file.getLineCount(), separator));
+  }
+
+  private static boolean isHardLinked(java.io.File file) {
+    try {
+      return ((Integer) Files.getAttribute(file.toPath(), "unix:nlink")) > 1;
+    } catch (UnsupportedOperationException e) {
+      return false;
+    } catch (IllegalArgumentException e) {
+      // Not a unix file system, which leaves nothing to tell.
+      return false;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Gives the copy the file's owner, group and permissions.
+   *
+   * @return whether they could all be given.
+   */
+  private static boolean copyAttributes(java.io.File file, java.io.File copy) {
+    PosixFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file.toPath(), PosixFileAttributes.class);
+    } catch (UnsupportedOperationException e) {
+      // Only the executable bit means anything here.
+      copy.setExecutable(file.canExecute());
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+    try {
+      PosixFileAttributeView view =
+          Files.getFileAttributeView(copy.toPath(), PosixFileAttributeView.class);
+      PosixFileAttributes copied = view.readAttributes();
+      if (!copied.owner().equals(attributes.owner())) {
+        view.setOwner(attributes.owner());
+      }
+      if (!copied.group().equals(attributes.group())) {
+        view.setGroup(attributes.group());
+      }
+      view.setPermissions(attributes.permissions());
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the number of lines at the start of the file that are on disk
+   * as they were last loaded or saved, if nothing but lines after them has
+   * changed since, and 0 otherwise.
+   */
+  private int getAppendableLineCount(java.io.File target, File file, String separator) {
+    SavedState state = savedStates.get(target.getAbsolutePath());
+    if (state == null || state.lineCount == 0 || !state.lineSeparator.equals(separator)
+        || file.getAppendOnlyStart() != state.lineCount || !state.isUnchanged(target)) {
+      return 0;
+    }
+    return state.lineCount;
+  }
+
+  /**
+   * Copies the bytes of the lines that haven't changed since the last save
+   * from the target into the channel, if there are any.
+   *
+   * @return the number of lines copied.
+   */
+  private int copyUnchangedLines(java.io.File target, File file, String separator,
+      FileChannel channel) throws IOException {
+    int lineCount = getAppendableLineCount(target, file, separator);
+    if (lineCount == 0) {
+      return 0;
+    }
+    long length = savedStates.get(target.getAbsolutePath()).length;
+    FileInputStream in = new FileInputStream(target);
+    try {
+      FileChannel source = in.getChannel();
+      long position = 0;
+      while (position < length) {
+        position += source.transferTo(position, length - position, channel);
+      }
+    } finally {
+      in.close();
+    }
+    return lineCount;
+  }
+
+  /**
+   * Encodes the lines straight into the reused save buffer, draining it into
+   * the channel whenever it fills up.
+   */
+  private void writeLines(FileChannel channel, Iterator<String> lines, String separator)
+      throws IOException {
+    CharsetEncoder encoder = charset.newEncoder();
+    CharBuffer separatorChars = CharBuffer.wrap(separator);
+    saveBuffer.clear();
+    while (lines.hasNext()) {
+      encode(encoder, CharBuffer.wrap(lines.next()), channel, false);
+      separatorChars.rewind();
+      encode(encoder, separatorChars, channel, false);
+    }
+    encode(encoder, CharBuffer.allocate(0), channel, true);
+    while (encoder.flush(saveBuffer).isOverflow()) {
+      drain(channel);
+    }
+    drain(channel);
+  }
+
+  private void encode(CharsetEncoder encoder, CharBuffer chars, FileChannel channel,
+      boolean endOfInput) throws IOException {
+    while (true) {
+      CoderResult result = encoder.encode(chars, saveBuffer, endOfInput);
+      if (result.isUnderflow()) {
+        return;
+      }
+      if (result.isOverflow()) {
+        drain(channel);
+      } else {
+        // Unencodable text fails the save and leaves the target alone.
+        result.throwException();
+      }
+    }
+  }
+
+  private void drain(FileChannel channel) throws IOException {
+    saveBuffer.flip();
+    while (saveBuffer.hasRemaining()) {
+      channel.write(saveBuffer);
+    }
+    saveBuffer.clear();
+  }
 }
@@ -1,6 +1,8 @@
 package com.id.ui.app;
 
 import java.awt.Dimension;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.util.List;
 
 import javax.swing.JPanel;
@@ -13,13 +15,21 @@ public class FinderPanel extends JPanel implements Finder.Listener {
   private final TextPanel textPanel;
   private final ItemListPanel itemList = new ItemListPanel();
 
-  public FinderPanel(Finder finder) {
+  public FinderPanel(final Finder finder) {
     textPanel = new TextPanel(finder.getQueryEditor());
     FinderLayout fuzzyFinderLayout = new FinderLayout();
     setLayout(fuzzyFinderLayout);
     add(textPanel, FinderLayout.MINIBUFFER);
     add(itemList, FinderLayout.ITEMLIST);
     finder.addListener(this);
+    itemList.addComponentListener(new ComponentAdapter() {
+      @Override
+      public void componentResized(ComponentEvent e) {
+        if (itemList.getHeight() > 0) {
+          finder.setMaxMatches(itemList.getVisibleItemCount());
+        }
+      }
+    });
   }
 
   @Override
@@ -30,6 +30,13 @@ public class ItemListPanel extends LinewisePanel {
     }
   }
 
+  /**
+   * Returns how many items fit in the panel's current height.
+   */
+  public int getVisibleItemCount() {
+    return getHeight() / getFontHeightPx() + 1;
+  }
+
   @Override
   public Dimension getPreferredSize() {
     return new Dimension(preferredWidth, getFontHeightPx() * items.size());
@@ -7,12 +7,15 @@ import java.awt.Graphics;
 import com.id.app.App;
 import com.id.editor.Editor;
 import com.id.editor.Point;
+import com.id.editor.Spans;
 import com.id.ui.Constants;
 import com.id.ui.app.LinewisePanel;
 
 @SuppressWarnings("serial")
 public class TextPanel extends LinewisePanel {
   private final Editor editor;
+  // Reused for every line painted.
+  private final Spans spans = new Spans();
 
   public TextPanel(Editor editor) {
     this.editor = editor;
@@ -22,6 +25,11 @@ public class TextPanel extends LinewisePanel {
         updateSize();
         invalidate();
       }
+
+      @Override
+      public void onHighlightChanged() {
+        repaint();
+      }
     });
     updateSize();
   }
@@ -68,13 +76,23 @@ public class TextPanel extends LinewisePanel {
             g.fillRect(0, y, 80 * getFontWidthPx(), getFontHeightPx());
           }
         }
-        // Draw background.
-        RectFiller rectFiller = new RectFiller(g, 0, y,
-            getFontWidthPx(), getFontHeightPx());
-        for (int j = 0; j < line.length(); j++) {
-          rectFiller.nextColor(getBgColor(it.getY(), j));
+        // Draw background. Highlights go over the selection.
+        if (editor.isInVisual()) {
+          RectFiller rectFiller = new RectFiller(g, 0, y,
+              getFontWidthPx(), getFontHeightPx());
+          for (int j = 0; j < line.length(); j++) {
+            rectFiller.nextColor(
+                editor.isInVisual(it.getY(), j) ? Constants.VISUAL_COLOR : null);
+          }
+          rectFiller.done();
+        }
+        spans.clear();
+        editor.getHighlightSpans(it.getY(), spans);
+        g.setColor(Constants.HIGHLIGHT_COLOR);
+        for (int i = 0; i < spans.size(); i++) {
+          g.fillRect(spans.getStart(i) * getFontWidthPx(), y,
+              (spans.getEnd(i) - spans.getStart(i)) * getFontWidthPx(), getFontHeightPx());
         }
-        rectFiller.done();
 
         // Draw text.
         g.setColor(Constants.TEXT_COLOR);
@@ -123,19 +141,6 @@ public class TextPanel extends LinewisePanel {
     return Character.isWhitespace(line.charAt(line.length() - 1));
   }
 
-  private Color getBgColor(int y, int x) {
-    if (editor.isSearchHighlight(y, x)) {
-      return Constants.HIGHLIGHT_COLOR;
-    }
-    if (editor.isHighlight(y, x)) {
-      return Constants.HIGHLIGHT_COLOR;
-    }
-    if (editor.isInVisual(y, x)) {
-      return Constants.VISUAL_COLOR;
-    }
-    return null;
-  }
-
   public int getTopLineVisible() {
     return getVisibleRect().y / getFontHeightPx();
   }
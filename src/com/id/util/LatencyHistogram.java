@@ -0,0 +1,75 @@
+package com.id.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts how long something takes, split by a small key such as the length
+ * of a query. Times go into buckets whose bounds are powers of two
+ * milliseconds. Safe to use from several threads.
+ */
+public class LatencyHistogram {
+  private static final int BUCKET_COUNT = 16;
+
+  // counts.get(key)[i] is how many times were under 2^i ms, and at least
+  // 2^(i-1) ms for i > 0.
+  private final List<long[]> counts = new ArrayList<long[]>();
+
+  public synchronized void record(int key, long nanos) {
+    while (counts.size() <= key) {
+      counts.add(new long[BUCKET_COUNT]);
+    }
+    counts.get(key)[getBucket(nanos)]++;
+  }
+
+  public synchronized long getCount(int key) {
+    long total = 0;
+    if (key < counts.size()) {
+      for (long count : counts.get(key)) {
+        total += count;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns a bound in milliseconds that the given fraction of the times for
+   * the key were under, or 0 if there are none.
+   */
+  public synchronized long getPercentileMillis(int key, double fraction) {
+    long total = getCount(key);
+    if (total == 0) {
+      return 0;
+    }
+    long[] buckets = counts.get(key);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += buckets[i];
+      if (seen >= fraction * total) {
+        return 1L << i;
+      }
+    }
+    return 1L << (BUCKET_COUNT - 1);
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder result = new StringBuilder();
+    for (int key = 0; key < counts.size(); key++) {
+      long count = getCount(key);
+      if (count == 0) {
+        continue;
+      }
+      result.append(key).append(": ").append(count)
+          .append(" p50<").append(getPercentileMillis(key, 0.5))
+          .append("ms p90<").append(getPercentileMillis(key, 0.9))
+          .append("ms max<").append(getPercentileMillis(key, 1)).append("ms\n");
+    }
+    return result.toString();
+  }
+
+  private static int getBucket(long nanos) {
+    long millis = nanos / 1000000;
+    return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(millis));
+  }
+}
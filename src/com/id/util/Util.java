@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import com.id.platform.FileSystem;
 
@@ -84,4 +85,14 @@ public class Util {
     }
     return line.substring(from, to);
   }
+
+  /**
+   * Throws if the current thread has been interrupted, which is how work
+   * running on an executor is cancelled.
+   */
+  public static void checkCancelled() {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new CancellationException();
+    }
+  }
 }
@@ -3,8 +3,15 @@ package com.id.editor;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import org.junit.Test;
 
 import com.id.file.File;
@@ -70,6 +77,240 @@ public class CachingHighlightTest {
     assertEquals(0, highlight.getMatchCount());
   }
 
+  private static class CountingLines implements CachingHighlight.Lines {
+    private final CachingHighlight.Lines lines;
+    public int linesRead = 0;
+
+    public CountingLines(File file) {
+      this.lines = CachingHighlight.linesOf(file);
+    }
+
+    @Override
+    public int getLineCount() {
+      return lines.getLineCount();
+    }
+
+    @Override
+    public String getLine(int y) {
+      linesRead++;
+      return lines.getLine(y);
+    }
+
+    @Override
+    public Iterator<String> getSnapshot(int y) {
+      return lines.getSnapshot(y);
+    }
+  }
+
+  private static class QueuedExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    public void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private static File makeFile(int lineCount) {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < lineCount; i++) {
+      lines.add(i % 10 == 0 ? "a dog" : "a cat");
+    }
+    return new File(lines);
+  }
+
+  @Test
+  public void lazyHighlightsOnlyMatchLinesAskedAbout() {
+    File file = makeFile(1000);
+    CountingLines lines = new CountingLines(file);
+    CachingHighlight highlight = new CachingHighlight(Patterns.wholeWord("dog"), lines);
+    file.addListener(highlight);
+    assertTrue(highlight.isHighlighted(10, 2));
+    assertFalse(highlight.isHighlighted(11, 2));
+    assertPointEquals(20, 2, highlight.getNextMatch(11, 0));
+    assertPointEquals(10, 2, highlight.getPreviousMatch(11, 0));
+    assertTrue(highlight.hasMatches());
+    assertEquals(11, lines.linesRead);
+    assertTrue(highlight.isHighlighted(10, 2));
+    assertEquals(11, lines.linesRead);
+
+    file.changeLine(10, "no dogs here");
+    assertFalse(highlight.isHighlighted(10, 2));
+    assertEquals(12, lines.linesRead);
+    assertEquals(99, highlight.getMatchCount());
+    assertEquals(1001, lines.linesRead);
+  }
+
+  @Test
+  public void lazyHighlightsCountInTheBackground() {
+    File file = makeFile(100);
+    CachingHighlight highlight = new CachingHighlight(Patterns.wholeWord("dog"),
+        CachingHighlight.linesOf(file));
+    file.addListener(highlight);
+    QueuedExecutor executor = new QueuedExecutor();
+    highlight.setExecutors(executor, executor);
+    final List<Integer> counts = new ArrayList<Integer>();
+    highlight.addListener(new CachingHighlight.Listener() {
+      @Override
+      public void onMatchesCounted() {
+        counts.add(counts.size());
+      }
+    });
+    assertTrue(highlight.isHighlighted(0, 2));
+    assertEquals(1, highlight.getMatchCount());
+    // Matching that started before an edit is done again.
+    file.insertLine(0, "dog");
+    executor.runAll();
+    assertEquals(1, counts.size());
+    assertEquals(11, highlight.getMatchCount());
+    assertTrue(highlight.isHighlighted(0, 0));
+    assertTrue(executor.tasks.isEmpty());
+  }
+
+  @Test
+  public void chunksShowUpAsTheyAreMatched() {
+    File file = makeFile(2 * CachingHighlight.CHUNK_SIZE + 10);
+    CachingHighlight highlight = new CachingHighlight(Patterns.wholeWord("dog"),
+        CachingHighlight.linesOf(file));
+    file.addListener(highlight);
+    QueuedExecutor workExecutor = new QueuedExecutor();
+    QueuedExecutor uiExecutor = new QueuedExecutor();
+    highlight.setExecutors(workExecutor, uiExecutor);
+    final List<Integer> counts = new ArrayList<Integer>();
+    highlight.addListener(new CachingHighlight.Listener() {
+      @Override
+      public void onMatchesCounted() {
+        counts.add(counts.size());
+      }
+    });
+    assertEquals(0, highlight.getMatchCount());
+    assertEquals(3, workExecutor.tasks.size());
+    workExecutor.tasks.remove(0).run();
+    uiExecutor.runAll();
+    assertEquals(1, counts.size());
+    assertEquals(410, highlight.getMatchCount());
+    workExecutor.runAll();
+    uiExecutor.runAll();
+    assertEquals(3, counts.size());
+    assertEquals(821, highlight.getMatchCount());
+    assertTrue(workExecutor.tasks.isEmpty());
+  }
+
+  @Test
+  public void cancelledHighlightsStopMatchingInTheBackground() {
+    File file = makeFile(100);
+    CachingHighlight highlight = new CachingHighlight(Patterns.wholeWord("dog"),
+        CachingHighlight.linesOf(file));
+    file.addListener(highlight);
+    QueuedExecutor workExecutor = new QueuedExecutor();
+    QueuedExecutor uiExecutor = new QueuedExecutor();
+    highlight.setExecutors(workExecutor, uiExecutor);
+    assertEquals(0, highlight.getMatchCount());
+    highlight.cancel();
+    workExecutor.runAll();
+    uiExecutor.runAll();
+    assertEquals(0, highlight.getMatchCount());
+    assertTrue(workExecutor.tasks.isEmpty());
+    // Lines are still matched when they're asked about.
+    assertTrue(highlight.isHighlighted(10, 2));
+  }
+
+  @Test
+  public void lazyHighlightsFollowBulkEdits() {
+    File file = new File("dog", "cat", "dog", "cat");
+    CachingHighlight highlight = new CachingHighlight(Patterns.wholeWord("dog"),
+        CachingHighlight.linesOf(file));
+    file.addListener(highlight);
+    assertEquals(2, highlight.getMatchCount());
+    List<String> inserted = new ArrayList<String>();
+    inserted.add("dog dog");
+    file.replaceLines(1, 2, inserted);
+    assertEquals(3, highlight.getMatchCount());
+    assertPointEquals(1, 4, highlight.getNextMatch(1, 0));
+    assertPointEquals(1, 0, highlight.getNextMatch(0, 0));
+    assertNull(highlight.getNextMatch(1, 4));
+  }
+
+  @Test
+  public void candidatesLimitTheLinesMatched() {
+    File file = makeFile(100);
+    CountingLines lines = new CountingLines(file);
+    CachingHighlight highlight = new CachingHighlight(Patterns.partWord("a"), lines,
+        new int[] {0, 10, 20});
+    file.addListener(highlight);
+    assertEquals(3, highlight.getMatchCount());
+    assertEquals(3, lines.linesRead);
+    assertFalse(highlight.isHighlighted(1, 0));
+    assertTrue(highlight.isHighlighted(10, 0));
+    file.changeLine(5, "a dog");
+    assertTrue(highlight.isHighlighted(5, 0));
+    assertTrue(Arrays.equals(new int[] {0, 5, 10, 20}, highlight.getPossibleMatchLines()));
+  }
+
+  @Test
+  public void onlyCandidatesAreTracked() {
+    File file = makeFile(1000);
+    CachingHighlight highlight = new CachingHighlight(Patterns.partWord("dog"),
+        CachingHighlight.linesOf(file), new int[] {10, 20, 30});
+    file.addListener(highlight);
+    assertEquals(3, highlight.getTrackedLineCount());
+    file.insertLine(0, "cat");
+    file.removeLine(500);
+    file.changeLine(15, "cat");
+    assertEquals(5, highlight.getTrackedLineCount());
+    assertTrue(highlight.isHighlighted(11, 2));
+    assertFalse(highlight.isHighlighted(15, 0));
+    assertPointEquals(21, 2, highlight.getNextMatch(11, 2));
+    assertPointEquals(11, 2, highlight.getPreviousMatch(21, 0));
+    assertEquals(3, highlight.getMatchCount());
+    assertTrue(Arrays.equals(new int[] {11, 21, 31}, highlight.getPossibleMatchLines()));
+  }
+
+  @Test
+  public void possibleMatchLinesIncludeUnreadLines() {
+    File file = new File("dog", "cat", "dog");
+    CachingHighlight highlight = new CachingHighlight(Patterns.partWord("dog"),
+        CachingHighlight.linesOf(file));
+    assertTrue(Arrays.equals(new int[] {0, 1, 2}, highlight.getPossibleMatchLines()));
+    assertEquals(2, highlight.getMatchCount());
+    assertTrue(Arrays.equals(new int[] {0, 2}, highlight.getPossibleMatchLines()));
+  }
+
+  @Test
+  public void linesFullOfMatches() {
+    CachingHighlight highlight = new CachingHighlight(Patterns.partWord("ab"),
+        Arrays.asList("ab ab  abab", "", "xab"));
+    assertTrue(highlight.isHighlighted(0, 0));
+    assertTrue(highlight.isHighlighted(0, 1));
+    assertFalse(highlight.isHighlighted(0, 2));
+    assertFalse(highlight.isHighlighted(0, 6));
+    assertTrue(highlight.isHighlighted(0, 10));
+    assertFalse(highlight.isHighlighted(0, 11));
+    assertPointEquals(0, 3, highlight.getNextMatch(0, 0));
+    assertPointEquals(0, 9, highlight.getNextMatch(0, 7));
+    assertPointEquals(2, 1, highlight.getNextMatch(0, 9));
+    assertPointEquals(0, 7, highlight.getPreviousMatch(0, 9));
+    assertPointEquals(0, 0, highlight.getPreviousMatch(0, 1));
+    assertPointEquals(0, 9, highlight.getPreviousMatch(2, 1));
+    assertEquals(5, highlight.getMatchCount());
+
+    Spans spans = new Spans();
+    highlight.getSpans(0, spans);
+    highlight.getSpans(1, spans);
+    highlight.getSpans(2, spans);
+    assertEquals(5, spans.size());
+    assertEquals(7, spans.getStart(2));
+    assertEquals(9, spans.getEnd(2));
+    assertEquals(1, spans.getStart(4));
+    assertEquals(3, spans.getEnd(4));
+  }
+
   private void assertPointEquals(int y, int x, Point point) {
     assertNotNull(point);
     assertEquals(y, point.getY());
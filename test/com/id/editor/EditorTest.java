@@ -9,9 +9,13 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import com.id.app.HighlightState;
+import com.id.events.KeyStroke;
 import com.id.file.File;
 import com.id.file.FileView;
 import com.id.file.ModifiedListener;
@@ -281,4 +285,22 @@ public class EditorTest extends EditorTestBase {
     Editor.Iterator it = editor.getIterator(2);
     assertEquals("hijk", it.getLine());
   }
+
+  @Test
+  public void loadingFilesAreReadOnly() {
+    file = File.createLoadingFile("a");
+    fileView = new FileView(file);
+    editor = new Editor(fileView, new HighlightState(), new Register(),
+        new Editor.EmptyEditorEnvironment(), new SharedEditorSettings());
+    file.appendLoadedLines(Arrays.asList("abc", "def"));
+    assertCursorPosition(0, 0);
+    for (KeyStroke keyStroke : KeyStroke.fromString("jx")) {
+      assertTrue(editor.handleKeyStroke(keyStroke));
+    }
+    assertFileContents("abc", "def");
+    assertCursorPosition(1, 0);
+    file.finishLoading();
+    editor.handleKeyStroke(KeyStroke.fromChar('x'));
+    assertFileContents("abc", "ef");
+  }
 }
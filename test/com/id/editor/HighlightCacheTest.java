@@ -0,0 +1,99 @@
+package com.id.editor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.id.app.HighlightPattern;
+import com.id.file.File;
+import com.id.file.FileView;
+
+public class HighlightCacheTest {
+  private static final CachingHighlight.Listener NO_LISTENER = new CachingHighlight.Listener() {
+    @Override
+    public void onMatchesCounted() {
+    }
+  };
+
+  private HighlightCache cache;
+  private File file;
+
+  @Before
+  public void setup() {
+    cache = new HighlightCache();
+    file = new File("a dog", "cat", "dog", "x", "dog");
+  }
+
+  @Test
+  public void viewsOfAFileShareItsHighlight() {
+    Highlight whole = cache.getHighlight(new FileView(file), Patterns.wholeWord("dog"),
+        NO_LISTENER);
+    Highlight snippet = cache.getHighlight(new FileView(file, 1, 3), Patterns.wholeWord("dog"),
+        NO_LISTENER);
+    assertEquals(1, cache.getHighlightCount());
+    assertEquals(3, whole.getMatchCount());
+    assertEquals(1, snippet.getMatchCount());
+    assertTrue(snippet.isHighlighted(1, 0));
+    assertFalse(snippet.isHighlighted(0, 0));
+    assertEquals(new Point(1, 0), snippet.getNextMatch(0, 0));
+    assertNull(snippet.getNextMatch(1, 0));
+    assertNull(snippet.getPreviousMatch(1, 0));
+    assertEquals(new Point(2, 0), whole.getNextMatch(0, 2));
+  }
+
+  @Test
+  public void viewsFollowEditsToTheFile() {
+    FileView view = new FileView(file, 1, 3);
+    Highlight snippet = cache.getHighlight(view, Patterns.wholeWord("dog"), NO_LISTENER);
+    file.insertLine(0, "dog");
+    assertTrue(snippet.isHighlighted(1, 0));
+    view.changeLine(0, "dog");
+    assertEquals(2, snippet.getMatchCount());
+    assertTrue(snippet.hasMatches());
+  }
+
+  @Test
+  public void differentPatternsAndFilesAreSeparate() {
+    cache.getHighlight(new FileView(file), Patterns.wholeWord("dog"), NO_LISTENER);
+    cache.getHighlight(new FileView(file), Patterns.partWord("dog"), NO_LISTENER);
+    cache.getHighlight(new FileView(new File("dog")), Patterns.wholeWord("dog"), NO_LISTENER);
+    cache.getHighlight(new FileView(file), Patterns.wholeWord("dog"), NO_LISTENER);
+    assertEquals(3, cache.getHighlightCount());
+  }
+
+  @Test
+  public void onlyTheMostRecentIdleHighlightsAreKept() {
+    Highlight shown = cache.getHighlight(new FileView(file), Patterns.wholeWord("cat"),
+        NO_LISTENER);
+    for (int i = 0; i < HighlightCache.IDLE_CAPACITY + 5; i++) {
+      HighlightPattern pattern = Patterns.wholeWord("word" + i);
+      cache.getHighlight(new FileView(file), pattern, NO_LISTENER).cancel();
+    }
+    assertEquals(HighlightCache.IDLE_CAPACITY + 1, cache.getHighlightCount());
+    // The highlight still shown is never dropped.
+    assertEquals(1, shown.getMatchCount());
+    Highlight again = cache.getHighlight(new FileView(file), Patterns.wholeWord("cat"),
+        NO_LISTENER);
+    assertEquals(HighlightCache.IDLE_CAPACITY + 1, cache.getHighlightCount());
+    again.cancel();
+    shown.cancel();
+    assertEquals(HighlightCache.IDLE_CAPACITY, cache.getHighlightCount());
+  }
+
+  @Test
+  public void closedFilesKeepNoIdleHighlights() {
+    FileView view = new FileView(file);
+    File other = new File("dog");
+    cache.getHighlight(new FileView(other), Patterns.wholeWord("dog"), NO_LISTENER).cancel();
+    cache.getHighlight(view, Patterns.wholeWord("cat"), NO_LISTENER).cancel();
+    Highlight shown = cache.getHighlight(view, Patterns.wholeWord("dog"), NO_LISTENER);
+    assertEquals(3, cache.getHighlightCount());
+    view.close();
+    shown.cancel();
+    assertEquals(1, cache.getHighlightCount());
+  }
+}
@@ -1,8 +1,12 @@
 package com.id.editor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import org.junit.Before;
@@ -10,6 +14,7 @@ import org.junit.Test;
 
 import com.id.editor.Search.Listener;
 import com.id.events.KeyStroke;
+import com.id.file.File;
 import com.id.test.EditorTestBase;
 
 public class SearchTest extends EditorTestBase {
@@ -111,6 +116,38 @@ public class SearchTest extends EditorTestBase {
     verify(listener).onSearchCancelled();
   }
 
+  @Test
+  public void deletingACharacterGoesBackToTheShorterQuery() {
+    setFileContents("cat", "dog", "cart");
+    typeString("cat");
+    assertEquals(1, search.getOccurrences());
+    type(KeyStroke.backspace());
+    assertEquals(2, search.getOccurrences());
+    type(KeyStroke.backspace());
+    typeString("art");
+    assertEquals(1, search.getOccurrences());
+  }
+
+  @Test
+  public void longerQueriesSeeEditsToSkippedLines() {
+    setFileContents("cat", "dog");
+    typeString("c");
+    fileView.changeLine(1, "cart");
+    typeString("ar");
+    assertEquals(1, search.getOccurrences());
+  }
+
+  @Test
+  public void closingStopsTheHighlightsFollowingTheFile() {
+    setFileContents("cat");
+    File spiedFile = spy(file);
+    search = new Search(minibuffer, spiedFile, new Point(0, 0), listener);
+    typeString("ca");
+    search.close();
+    verify(spiedFile, times(2)).removeListener(any(File.Listener.class));
+    assertFalse(search.isHighlight(0, 0));
+  }
+
   @Override
   protected void type(KeyStroke keyStroke) {
     search.handleKeyStroke(keyStroke);
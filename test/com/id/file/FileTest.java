@@ -3,17 +3,22 @@ package com.id.file;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Arrays;
 
 import org.junit.Test;
 
 import com.id.editor.Point;
+import com.id.platform.FileSystem;
 import com.id.platform.InMemoryFileSystem;
 
 public class FileTest {
@@ -83,7 +88,7 @@ public class FileTest {
   }
 
   @Test
-  public void saveFiresModifiedChangedEvent() {
+  public void saveFiresModifiedChangedEvent() throws IOException {
     File file = new File("a");
     file.setFilename("<temp>");
 
@@ -97,6 +102,28 @@ public class FileTest {
     assertFalse(file.isModified());
   }
 
+  @Test
+  public void failedSavesLeaveTheFileModified() throws IOException {
+    File file = new File("a");
+    file.setFilename("<temp>");
+    file.startPatchAt(0, 0);
+    file.insertLine(0, "hi");
+    file.breakPatch();
+    ModifiedListener listener = mock(ModifiedListener.class);
+    file.addModifiedListener(listener);
+    FileSystem fileSystem = mock(FileSystem.class);
+    doThrow(new IOException()).when(fileSystem).save(file);
+    try {
+      file.save(fileSystem);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    verify(listener, never()).onModifiedStateChanged();
+    assertTrue(file.isModified());
+    assertEquals(-1, file.getAppendOnlyStart());
+  }
+
   @Test
   public void undoLineInsertLine() {
     File file = new File();
@@ -135,4 +162,109 @@ public class FileTest {
     }
     return true;
   }
+
+  @Test
+  public void replaceLinesFiresOnce() {
+    File file = new File("a", "b", "c");
+    File.Listener listener = mock(File.Listener.class);
+    file.addListener(listener);
+    file.replaceLines(1, 2, Arrays.asList("x", "y", "z"));
+    verify(listener).onLinesReplaced(1, Arrays.asList("b", "c"), Arrays.asList("x", "y", "z"));
+    assertEquals(Arrays.asList("a", "x", "y", "z"), file.getLineList());
+  }
+
+  @Test
+  public void undoReplaceLines() {
+    File file = new File("a", "b", "c");
+    file.startPatchAt(new Point(0, 0));
+    file.replaceLines(1, 2, Arrays.asList("x", "y", "z"));
+    file.breakPatch();
+    assertEquals(Tombstone.Status.MODIFIED, file.getStatus(1));
+    assertEquals(Tombstone.Status.NEW, file.getStatus(3));
+    file.undo();
+    assertEquals(Arrays.asList("a", "b", "c"), file.getLineList());
+    assertTrue(file.isMarkersClear());
+    file.redo();
+    assertEquals(Arrays.asList("a", "x", "y", "z"), file.getLineList());
+  }
+
+  @Test
+  public void loadedLinesArriveAsOriginalLines() {
+    File file = File.createLoadingFile("a");
+    File.Listener listener = mock(File.Listener.class);
+    file.addListener(listener);
+    FileView view = new FileView(file);
+    final boolean[] loaded = { false };
+    file.whenLoaded(new Runnable() {
+      @Override
+      public void run() {
+        loaded[0] = true;
+      }
+    });
+    file.appendLoadedLines(Arrays.asList("a", "b"));
+    file.appendLoadedLines(Arrays.asList("c"));
+    verify(listener).onLinesReplaced(2, Arrays.<String>asList(), Arrays.asList("c"));
+    assertEquals(3, view.getLineCount());
+    assertTrue(file.isMarkersClear());
+    assertFalse(file.isModified());
+    assertFalse(file.hasUndo());
+    assertFalse(loaded[0]);
+    try {
+      file.changeLine(0, "x");
+      fail();
+    } catch (File.LoadingException e) {
+      // Expected.
+    }
+    file.finishLoading();
+    assertTrue(loaded[0]);
+    assertEquals(3, file.getAppendOnlyStart());
+    file.changeLine(0, "x");
+    assertEquals(Arrays.asList("x", "b", "c"), file.getLineList());
+  }
+
+  @Test
+  public void loadingFilesCantBeSaved() throws IOException {
+    File file = File.createLoadingFile("a");
+    file.appendLoadedLines(Arrays.asList("a", "b"));
+    FileSystem fileSystem = mock(FileSystem.class);
+    try {
+      file.save(fileSystem);
+      fail();
+    } catch (File.LoadingException e) {
+      // Expected.
+    }
+    verify(fileSystem, never()).save(file);
+  }
+
+  @Test
+  public void filesThatFailToLoadStayReadOnly() throws IOException {
+    File file = File.createLoadingFile("a");
+    final boolean[] loaded = { false };
+    file.whenLoaded(new Runnable() {
+      @Override
+      public void run() {
+        loaded[0] = true;
+      }
+    });
+    file.appendLoadedLines(Arrays.asList("a", "b"));
+    file.failLoading();
+    assertFalse(file.isLoading());
+    assertTrue(file.isLoadFailed());
+    assertFalse(loaded[0]);
+    FileSystem fileSystem = mock(FileSystem.class);
+    try {
+      file.save(fileSystem);
+      fail();
+    } catch (File.LoadingException e) {
+      // Expected.
+    }
+    try {
+      file.changeLine(0, "x");
+      fail();
+    } catch (File.LoadingException e) {
+      // Expected.
+    }
+    verify(fileSystem, never()).save(file);
+    assertEquals(Arrays.asList("a", "b"), file.getLineList());
+  }
 }
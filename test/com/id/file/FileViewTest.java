@@ -5,6 +5,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
@@ -235,6 +237,49 @@ public class FileViewTest extends EditorTestBase {
     assertEquals(0, fileView.getStart());
   }
 
+  @Test
+  public void replacedLinesMoveViewLikeSingleLineEdits() {
+    String[] lines = { "a", "b", "c", "d", "e", "f", "g", "h" };
+    for (int y = 0; y <= lines.length; y++) {
+      for (int removeCount = 0; y + removeCount <= lines.length; removeCount++) {
+        for (int insertCount = 0; insertCount <= 3; insertCount++) {
+          List<String> newLines = new ArrayList<String>();
+          for (int i = 0; i < insertCount; i++) {
+            newLines.add("new" + i);
+          }
+          File batched = new File(lines);
+          FileView batchedView = new FileView(batched, 2, 5);
+          batched.replaceLines(y, removeCount, newLines);
+
+          File single = new File(lines);
+          FileView singleView = new FileView(single, 2, 5);
+          int changed = Math.min(removeCount, insertCount);
+          for (int i = 0; i < changed; i++) {
+            single.changeLine(y + i, newLines.get(i));
+          }
+          for (int i = changed; i < removeCount; i++) {
+            single.removeLine(y + changed);
+          }
+          for (int i = insertCount - 1; i >= changed; i--) {
+            single.insertLine(y + changed, newLines.get(i));
+          }
+
+          assertEquals(singleView.getRange(), batchedView.getRange());
+          assertEquals(singleView.getLineList(), batchedView.getLineList());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void replacedLinesAreForwardedRelativeToView() {
+    setupWith(2, 4, "a", "b", "c", "d", "e", "f");
+    fileView.addListener(listener);
+    file.replaceLines(1, 2, Arrays.asList("x"));
+    verify(listener).onLinesReplaced(0, Arrays.asList("c"), Arrays.<String>asList());
+    assertEquals(new Range(2, 3), fileView.getRange());
+  }
+
   private void setupWith(int start, int end, String... lines) {
     file = new File(lines);
     fileView = new FileView(file, start, end);
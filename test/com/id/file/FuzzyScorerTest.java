@@ -0,0 +1,54 @@
+package com.id.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FuzzyScorerTest {
+  private static int score(String candidate, String query) {
+    return FuzzyScorer.score(candidate.toCharArray(), 0, candidate.length(), query, true);
+  }
+
+  @Test
+  public void scoresBoundariesPassed() {
+    assertEquals(0, score("foo_bar", "fb"));
+    assertEquals(0, score("foo_bar", "FB"));
+    assertEquals(20, score("FooBar", "F"));
+    assertEquals(40, score("FooBar", "FB"));
+    assertEquals(40, score("FooBar", "Fa"));
+    assertEquals(FuzzyScorer.NO_MATCH, score("FooBar", "fb"));
+    assertEquals(0, score("anything", ""));
+  }
+
+  @Test
+  public void scoresInsideALargerArray() {
+    char[] chars = "xxFooBaryy".toCharArray();
+    assertEquals(40, FuzzyScorer.score(chars, 2, 8, "FB", true));
+    assertEquals(FuzzyScorer.NO_MATCH, FuzzyScorer.score(chars, 2, 8, "FBy", true));
+  }
+
+  @Test
+  public void scoresLikeTheTrie() {
+    Random random = new Random(7);
+    for (int i = 0; i < 2000; i++) {
+      String candidate = randomString(random, 1 + random.nextInt(10));
+      String query = randomString(random, random.nextInt(4));
+      Trie<String> trie = new Trie<String>();
+      trie.add(candidate, candidate);
+      List<Trie.FuzzyMatch> matches = trie.doScoredFuzzyMatch(true, query, 1);
+      int expected = matches.isEmpty() ? FuzzyScorer.NO_MATCH : matches.get(0).getScore();
+      assertEquals(candidate + " " + query, expected, score(candidate, query));
+    }
+  }
+
+  private static String randomString(Random random, int length) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      result.append("aAbB_/".charAt(random.nextInt(6)));
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,74 @@
+package com.id.file;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.perf4j.StopWatch;
+
+/**
+ * Measures the heap taken by a {@link Graveyard} for a large file with a few
+ * scattered edits. Run with the number of lines as the only argument.
+ */
+public class GraveyardHeapBenchmark {
+  private static final int EDITS = 1000;
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public static void main(String[] args) {
+    final int lineCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    // The lines themselves aren't counted, only the bookkeeping.
+    List<String> lines = new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return "line";
+      }
+
+      @Override
+      public int size() {
+        return lineCount;
+      }
+    };
+    List<Graveyard> keepAlive = new ArrayList<Graveyard>();
+    long before = usedMemory();
+    StopWatch stopWatch = new StopWatch("load");
+    Graveyard graveyard = new Graveyard(lines);
+    stopWatch.stop();
+    keepAlive.add(graveyard);
+    long loaded = usedMemory();
+
+    Random random = new Random(0);
+    StopWatch editWatch = new StopWatch("edit");
+    for (int i = 0; i < EDITS; i++) {
+      int y = random.nextInt(graveyard.size() - 1);
+      switch (i % 3) {
+      case 0:
+        graveyard.onLineChanged(y, "line", "changed");
+        break;
+      case 1:
+        graveyard.onLineRemoved(y, graveyard.getStatus(y) == Tombstone.Status.NORMAL
+            ? "line" : graveyard.getTombstone(y).getCurrent());
+        break;
+      case 2:
+        graveyard.onLineInserted(y, "new");
+        break;
+      }
+    }
+    editWatch.stop();
+    long edited = usedMemory();
+
+    System.out.println(lineCount + " lines");
+    System.out.println("untouched: " + (loaded - before) / 1024 + "KB, "
+        + stopWatch.getElapsedTime() + "ms to load");
+    System.out.println("after " + EDITS + " edits: " + (edited - before) / 1024 + "KB, "
+        + editWatch.getElapsedTime() + "ms to edit");
+    System.out.println(keepAlive.size());
+  }
+}
@@ -67,4 +67,18 @@ public class GraveyardTest {
     graveyard.onLineInserted(0, "abc");
     assertTrue(graveyard.getGrave(-1).isEmpty());
   }
+
+  @Test
+  public void physicalLinesCountGraves() {
+    Graveyard graveyard = new Graveyard(Arrays.asList("a", "b", "c", "d", "e"));
+    graveyard.onLineRemoved(2, "c");
+    graveyard.onLineRemoved(2, "d");
+    assertEquals(5, graveyard.getPhysicalLineCount());
+    assertEquals(1, graveyard.getPhysicalLine(1));
+    assertEquals(4, graveyard.getPhysicalLine(2));
+    assertEquals(1, graveyard.getLogicalLine(3));
+    assertEquals(2, graveyard.getLogicalLine(4));
+    graveyard.onLineInserted(2, "d");
+    assertEquals(3, graveyard.getPhysicalLine(2));
+  }
 }
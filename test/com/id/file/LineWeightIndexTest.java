@@ -0,0 +1,91 @@
+package com.id.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LineWeightIndexTest {
+  @Test
+  public void startsWithUnitWeights() {
+    LineWeightIndex index = new LineWeightIndex(5);
+    assertEquals(5, index.getTotalWeight());
+    assertEquals(3, index.getWeightBefore(3));
+    assertEquals(3, index.findLine(3));
+    assertEquals(5, index.findLine(5));
+  }
+
+  @Test
+  public void heavyLines() {
+    LineWeightIndex index = new LineWeightIndex(4);
+    index.setWeight(1, 3);
+    assertEquals(6, index.getTotalWeight());
+    assertEquals(1, index.getWeightBefore(1));
+    assertEquals(4, index.getWeightBefore(2));
+    assertEquals(1, index.findLine(1));
+    assertEquals(1, index.findLine(3));
+    assertEquals(2, index.findLine(4));
+  }
+
+  @Test
+  public void equalWeightsAreJoined() {
+    LineWeightIndex index = new LineWeightIndex(100);
+    index.setWeight(10, 3);
+    index.setWeight(11, 3);
+    assertEquals(3, index.getRunCount());
+    index.setWeight(10, 2, 1);
+    assertEquals(1, index.getRunCount());
+    index.setWeight(50, 4);
+    index.remove(50, 1);
+    index.insert(50, 5);
+    assertEquals(1, index.getRunCount());
+    assertEquals(104, index.getTotalWeight());
+  }
+
+  @Test
+  public void matchesListOfWeights() {
+    Random random = new Random(1);
+    LineWeightIndex index = new LineWeightIndex(20);
+    List<Integer> weights = new ArrayList<Integer>();
+    for (int i = 0; i < 20; i++) {
+      weights.add(1);
+    }
+    for (int step = 0; step < 2000; step++) {
+      int y = random.nextInt(weights.size() + 1);
+      switch (random.nextInt(3)) {
+      case 0:
+        int count = random.nextInt(3);
+        index.insert(y, count);
+        for (int i = 0; i < count; i++) {
+          weights.add(y, 1);
+        }
+        break;
+      case 1:
+        int removeCount = Math.min(random.nextInt(3), weights.size() - y);
+        index.remove(y, removeCount);
+        weights.subList(y, y + removeCount).clear();
+        break;
+      case 2:
+        if (y < weights.size()) {
+          int weight = 1 + random.nextInt(4);
+          index.setWeight(y, weight);
+          weights.set(y, weight);
+        }
+        break;
+      }
+      assertEquals(weights.size(), index.size());
+      int total = 0;
+      for (int i = 0; i < weights.size(); i++) {
+        assertEquals(total, index.getWeightBefore(i));
+        for (int w = 0; w < weights.get(i); w++) {
+          assertEquals(i, index.findLine(total + w));
+        }
+        total += weights.get(i);
+      }
+      assertEquals(total, index.getTotalWeight());
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.id.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class MappedTrieTest {
+  private static MappedTrie writeAndOpen(Trie<String> trie) throws IOException {
+    java.io.File file = java.io.File.createTempFile("trie", ".index");
+    file.deleteOnExit();
+    MappedTrie.write(trie.getEntries(), 12, 34, 56, file);
+    return MappedTrie.open(file);
+  }
+
+  private static Set<String> describe(List<Trie.FuzzyMatch> matches) {
+    Set<String> result = new HashSet<String>();
+    for (Trie.FuzzyMatch match : matches) {
+      result.add(match.getText() + ":" + match.getScore());
+    }
+    return result;
+  }
+
+  private static List<Integer> scores(List<Trie.FuzzyMatch> matches) {
+    List<Integer> result = new ArrayList<Integer>();
+    for (Trie.FuzzyMatch match : matches) {
+      result.add(match.getScore());
+    }
+    return result;
+  }
+
+  @Test
+  public void remembersTheSource() throws IOException {
+    MappedTrie mapped = writeAndOpen(new Trie<String>());
+    assertEquals(12, mapped.getSourceLength());
+    assertEquals(34, mapped.getSourceModified());
+    assertEquals(56, mapped.getSourceHash());
+    assertEquals(0, mapped.doScoredFuzzyMatch(true, "a", 10).size());
+  }
+
+  @Test
+  public void matchesLikeTheTrie() throws IOException {
+    Trie<String> trie = new Trie<String>();
+    trie.add("FooBar.java", "src/FooBar.java");
+    trie.add("FooBar.java", "test/FooBar.java");
+    trie.add("foo_bar.py", "foo_bar.py");
+    trie.add("FooBaz.java", "FooBaz.java");
+    trie.add("Bar.java", "Bar.java");
+    MappedTrie mapped = writeAndOpen(trie);
+    for (String query : Arrays.asList("", "FB", "fb", "Bar", "oo", "java", "x")) {
+      assertEquals(query, describe(trie.doScoredFuzzyMatch(true, query, 100)),
+          describe(mapped.doScoredFuzzyMatch(true, query, 100)));
+    }
+  }
+
+  @Test
+  public void matchesLikeTheTrieOnRandomKeys() throws IOException {
+    Random random = new Random(3);
+    Trie<String> trie = new Trie<String>();
+    for (int i = 0; i < 500; i++) {
+      StringBuilder key = new StringBuilder();
+      for (int j = random.nextInt(12); j >= 0; j--) {
+        key.append("aAbB_/c".charAt(random.nextInt(7)));
+      }
+      trie.add(key.toString(), "value" + i);
+    }
+    MappedTrie mapped = writeAndOpen(trie);
+    for (String query : Arrays.asList("ab", "AB", "abc", "bb", "ca")) {
+      assertEquals(query, describe(trie.doScoredFuzzyMatch(true, query, 1000)),
+          describe(mapped.doScoredFuzzyMatch(true, query, 1000)));
+      assertEquals(query, scores(trie.doScoredFuzzyMatch(true, query, 20)),
+          scores(mapped.doScoredFuzzyMatch(true, query, 20)));
+    }
+  }
+
+  @Test
+  public void rejectsOtherFiles() throws IOException {
+    java.io.File file = java.io.File.createTempFile("trie", ".index");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("not an index at all, just some text".getBytes("UTF-8"));
+    out.close();
+    try {
+      MappedTrie.open(file);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+}
@@ -1,10 +1,13 @@
 package com.id.file;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.verify;
 
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -62,4 +65,58 @@ public class PatchworkTest {
     patchwork.setModified();
     assertTrue(patchwork.isModified());
   }
+
+  private void type(File file, int y, String text) {
+    file.startPatchAt(new Point(y, 0));
+    for (int i = 0; i < text.length(); i++) {
+      file.insertText(y, i, text.substring(i, i + 1));
+    }
+    file.breakPatch();
+  }
+
+  @Test
+  public void compactedPatchesUndo() {
+    File file = new File("a line of text");
+    type(file, 0, "abc");
+    long compactedSize = file.getUndoMemoryUsage();
+    assertEquals("abca line of text", file.getLine(0));
+    file.undo();
+    assertEquals("a line of text", file.getLine(0));
+    file.redo();
+    assertEquals("abca line of text", file.getLine(0));
+    assertEquals(compactedSize, file.getUndoMemoryUsage());
+  }
+
+  @Test
+  public void spilledPatchesUndo() {
+    File file = new File("", "", "");
+    file.setUndoMemoryBudget(0);
+    type(file, 0, "first");
+    type(file, 1, "second");
+    type(file, 2, "third");
+    assertTrue(file.getSpilledUndoSize() > 0);
+    file.undo();
+    file.undo();
+    file.undo();
+    assertEquals(Arrays.asList("", "", ""), file.getLineList());
+    assertFalse(file.hasUndo());
+    file.redo();
+    file.redo();
+    file.redo();
+    assertEquals(Arrays.asList("first", "second", "third"), file.getLineList());
+  }
+
+  @Test
+  public void spilledPatchesKeepSavedState() {
+    File file = new File("");
+    file.setUndoMemoryBudget(0);
+    type(file, 0, "a");
+    type(file, 0, "b");
+    file.undo();
+    assertTrue(file.isModified());
+    file.redo();
+    file.undo();
+    file.undo();
+    assertFalse(file.isModified());
+  }
 }
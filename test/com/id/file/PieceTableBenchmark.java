@@ -0,0 +1,135 @@
+package com.id.file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.perf4j.StopWatch;
+
+/**
+ * Compares {@link PieceTable} against the {@link ArrayList} that used to back
+ * {@link File}. Run with the number of lines as the only argument.
+ */
+public class PieceTableBenchmark {
+  private static final int EDITS = 10000;
+
+  private interface Lines {
+    void insert(int y, String line);
+    void remove(int y);
+    void set(int y, String line);
+    String get(int y);
+    int size();
+  }
+
+  private static class ListLines implements Lines {
+    private final List<String> lines;
+
+    public ListLines(List<String> lines) {
+      this.lines = new ArrayList<String>(lines);
+    }
+
+    @Override
+    public void insert(int y, String line) {
+      lines.add(y, line);
+    }
+
+    @Override
+    public void remove(int y) {
+      lines.remove(y);
+    }
+
+    @Override
+    public void set(int y, String line) {
+      lines.set(y, line);
+    }
+
+    @Override
+    public String get(int y) {
+      return lines.get(y);
+    }
+
+    @Override
+    public int size() {
+      return lines.size();
+    }
+  }
+
+  private static class TableLines implements Lines {
+    private final PieceTable table;
+
+    public TableLines(List<String> lines) {
+      this.table = new PieceTable(lines);
+    }
+
+    @Override
+    public void insert(int y, String line) {
+      table.insert(y, line);
+    }
+
+    @Override
+    public void remove(int y) {
+      table.remove(y);
+    }
+
+    @Override
+    public void set(int y, String line) {
+      table.set(y, line);
+    }
+
+    @Override
+    public String get(int y) {
+      return table.get(y);
+    }
+
+    @Override
+    public int size() {
+      return table.size();
+    }
+  }
+
+  public static void main(String[] args) {
+    int lineCount = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+    List<String> lines = new ArrayList<String>(lineCount);
+    for (int i = 0; i < lineCount; i++) {
+      lines.add("line number " + i + " of the generated file");
+    }
+    System.out.println(lineCount + " lines, " + EDITS + " edits per run");
+    // Warm up both implementations before measuring.
+    run("warmup", new ListLines(lines));
+    run("warmup", new TableLines(lines));
+    run("ArrayList", new ListLines(lines));
+    run("PieceTable", new TableLines(lines));
+  }
+
+  private static void run(String name, Lines lines) {
+    Random random = new Random(0);
+    StopWatch top = new StopWatch();
+    for (int i = 0; i < EDITS; i++) {
+      lines.insert(0, "inserted");
+      lines.remove(0);
+    }
+    top.stop();
+
+    StopWatch scattered = new StopWatch();
+    for (int i = 0; i < EDITS; i++) {
+      int y = random.nextInt(lines.size());
+      lines.insert(y, "inserted");
+      lines.set(random.nextInt(lines.size()), "changed");
+      lines.remove(random.nextInt(lines.size()));
+    }
+    scattered.stop();
+
+    StopWatch reads = new StopWatch();
+    int length = 0;
+    for (int i = 0; i < EDITS * 10; i++) {
+      length += lines.get(random.nextInt(lines.size())).length();
+    }
+    reads.stop();
+
+    if (!name.equals("warmup")) {
+      System.out.println(String.format("%-10s top: %5dms  scattered: %5dms  reads: %5dms (%d)",
+          name, top.getElapsedTime(), scattered.getElapsedTime(),
+          reads.getElapsedTime(), length));
+    }
+  }
+}
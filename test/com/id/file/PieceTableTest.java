@@ -0,0 +1,128 @@
+package com.id.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PieceTableTest {
+  @Test
+  public void originalLinesAreServedInPlace() {
+    List<String> original = Arrays.asList("a", "b", "c");
+    PieceTable table = new PieceTable(original);
+    assertEquals(3, table.size());
+    assertEquals("b", table.get(1));
+    assertEquals(1, table.getPieceCount());
+  }
+
+  @Test
+  public void editsSplitPieces() {
+    PieceTable table = new PieceTable(Arrays.asList("a", "b", "c"));
+    table.insert(1, "x");
+    assertEquals(Arrays.asList("a", "x", "b", "c"), table.toList());
+    assertEquals("b", table.remove(2));
+    assertEquals("x", table.set(1, "y"));
+    assertEquals(Arrays.asList("a", "y", "c"), table.toList());
+  }
+
+  @Test
+  public void consecutiveInsertsShareAPiece() {
+    PieceTable table = new PieceTable();
+    for (int i = 0; i < 100; i++) {
+      table.insert(i, "line" + i);
+    }
+    assertEquals(1, table.getPieceCount());
+    assertEquals("line42", table.get(42));
+  }
+
+  @Test
+  public void replacedLinesAreLetGoOf() {
+    PieceTable table = new PieceTable(Arrays.asList("a", "b", "c"));
+    for (int i = 0; i < 1000; i++) {
+      table.set(1, "b" + i);
+      table.insert(3, "x" + i);
+      table.remove(3);
+    }
+    assertEquals(Arrays.asList("a", "b999", "c"), table.toList());
+    assertEquals(4, table.getBufferedLineCount());
+  }
+
+  @Test
+  public void snapshotIsUnaffectedByEdits() {
+    PieceTable table = new PieceTable(Arrays.asList("a", "b"));
+    PieceTable snapshot = table.snapshot();
+    table.remove(0);
+    table.insert(0, "c");
+    assertEquals(Arrays.asList("a", "b"), snapshot.toList());
+    assertEquals(Arrays.asList("c", "b"), table.toList());
+  }
+
+  @Test
+  public void copyRange() {
+    PieceTable table = new PieceTable(Arrays.asList("a", "b", "c", "d"));
+    table.insert(2, "x");
+    List<String> result = new ArrayList<String>();
+    table.copyRange(1, 3, result);
+    assertEquals(Arrays.asList("b", "x", "c"), result);
+  }
+
+  @Test
+  public void matchesListUnderRandomEdits() {
+    Random random = new Random(42);
+    List<String> expected = new ArrayList<String>();
+    List<String> original = new ArrayList<String>();
+    for (int i = 0; i < 50; i++) {
+      original.add("o" + i);
+      expected.add("o" + i);
+    }
+    PieceTable table = new PieceTable(original);
+    for (int i = 0; i < 2000; i++) {
+      int op = random.nextInt(3);
+      if (op == 0 || expected.isEmpty()) {
+        int y = random.nextInt(expected.size() + 1);
+        expected.add(y, "n" + i);
+        table.insert(y, "n" + i);
+      } else if (op == 1) {
+        int y = random.nextInt(expected.size());
+        assertEquals(expected.remove(y), table.remove(y));
+      } else {
+        int y = random.nextInt(expected.size());
+        assertEquals(expected.set(y, "c" + i), table.set(y, "c" + i));
+      }
+      assertEquals(expected.size(), table.size());
+    }
+    assertEquals(expected, table.toList());
+    assertTrue(table.getPieceCount() <= expected.size());
+  }
+
+  @Test
+  public void iteratorWalksPiecesFromAnyLine() {
+    PieceTable table = new PieceTable(Arrays.asList("a", "b", "c", "d"));
+    table.insert(2, "x");
+    table.set(0, "y");
+    table.remove(4);
+    List<String> expected = table.toList();
+    for (int start = 0; start <= expected.size(); start++) {
+      List<String> lines = new ArrayList<String>();
+      for (Iterator<String> i = table.iterator(start); i.hasNext();) {
+        lines.add(i.next());
+      }
+      assertEquals(expected.subList(start, expected.size()), lines);
+    }
+  }
+
+  @Test
+  public void iteratorIsUnaffectedByEdits() {
+    PieceTable table = new PieceTable(Arrays.asList("a", "b"));
+    Iterator<String> i = table.iterator(0);
+    table.remove(0);
+    assertEquals("a", i.next());
+    assertEquals("b", i.next());
+  }
+}
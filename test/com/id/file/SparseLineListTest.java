@@ -0,0 +1,79 @@
+package com.id.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SparseLineListTest {
+  @Test
+  public void startsEmpty() {
+    SparseLineList<String> list = new SparseLineList<String>(3);
+    assertEquals(3, list.size());
+    assertEquals(null, list.get(1));
+    assertEquals(Arrays.<String>asList(), list.getValues());
+  }
+
+  @Test
+  public void setAndClear() {
+    SparseLineList<String> list = new SparseLineList<String>(5);
+    list.set(1, "a");
+    list.set(3, "b");
+    assertEquals(Arrays.asList(null, "a", null, "b", null), list.getRange(0, 5));
+    list.clear(0, 2);
+    assertEquals(Arrays.asList("b"), list.getValues());
+  }
+
+  @Test
+  public void clearedRunsAreJoined() {
+    SparseLineList<String> list = new SparseLineList<String>(100);
+    list.set(10, "a");
+    list.set(20, "b");
+    list.set(30, "c");
+    assertEquals(7, list.getRunCount());
+    list.set(20, null);
+    assertEquals(5, list.getRunCount());
+    list.clear(0, 50);
+    assertEquals(1, list.getRunCount());
+    list.insert(50, Arrays.asList(null, "d", null));
+    list.remove(51);
+    assertEquals(1, list.getRunCount());
+    assertEquals(102, list.size());
+  }
+
+  @Test
+  public void matchesArrayList() {
+    Random random = new Random(1);
+    SparseLineList<String> list = new SparseLineList<String>(10);
+    List<String> expected = new ArrayList<String>(Collections.<String>nCopies(10, null));
+    for (int step = 0; step < 2000; step++) {
+      int y = random.nextInt(expected.size() + 1);
+      switch (random.nextInt(4)) {
+      case 0:
+        List<String> values = Arrays.asList(null, "i" + step, null);
+        list.insert(y, values);
+        expected.addAll(y, values);
+        break;
+      case 1:
+        int count = Math.min(random.nextInt(3), expected.size() - y);
+        list.remove(y, count);
+        expected.subList(y, y + count).clear();
+        break;
+      case 2:
+      case 3:
+        if (y < expected.size()) {
+          String value = random.nextBoolean() ? null : "s" + step;
+          list.set(y, value);
+          expected.set(y, value);
+        }
+        break;
+      }
+      assertEquals(expected, list.getRange(0, list.size()));
+    }
+  }
+}
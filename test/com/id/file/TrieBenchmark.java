@@ -0,0 +1,99 @@
+package com.id.file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.perf4j.StopWatch;
+
+/**
+ * Measures the heap taken and time spent by a {@link Trie} indexing a list of
+ * source paths like a large .files list. Run with the number of paths as the
+ * only argument.
+ */
+public class TrieBenchmark {
+  private static final String[] DIRECTORIES = {
+    "chrome", "browser", "content", "renderer", "ui", "views", "base", "net",
+    "third_party", "webkit", "common", "test", "gpu", "media", "extensions",
+  };
+  private static final String[] EXTENSIONS = { ".cc", ".h", ".java", ".py" };
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public static String makePath(Random random) {
+    StringBuilder path = new StringBuilder();
+    int depth = 2 + random.nextInt(4);
+    for (int i = 0; i < depth; i++) {
+      path.append(DIRECTORIES[random.nextInt(DIRECTORIES.length)]).append('/');
+    }
+    int words = 1 + random.nextInt(3);
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        path.append('_');
+      }
+      for (int j = 3 + random.nextInt(6); j > 0; j--) {
+        path.append((char) ('a' + random.nextInt(26)));
+      }
+    }
+    return path.append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]).toString();
+  }
+
+  public static void main(String[] args) {
+    int pathCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    Random random = new Random(0);
+    List<String> paths = new ArrayList<String>(pathCount);
+    for (int i = 0; i < pathCount; i++) {
+      paths.add(makePath(random));
+    }
+    long before = usedMemory();
+    StopWatch buildWatch = new StopWatch("build");
+    Trie<String> trie = new Trie<String>();
+    for (String path : paths) {
+      trie.add(path, path);
+    }
+    buildWatch.stop();
+    long built = usedMemory();
+
+    StopWatch completeWatch = new StopWatch("complete");
+    int completions = 0;
+    for (int i = 0; i < 100; i++) {
+      String path = paths.get(random.nextInt(pathCount));
+      completions += trie.getCompletions("", path.substring(0, path.length() / 2)).size();
+    }
+    completeWatch.stop();
+
+    StopWatch fuzzyWatch = new StopWatch("fuzzy");
+    int fuzzyMatches = trie.doFuzzyMatch(true, "", "chrbrvi").size();
+    fuzzyWatch.stop();
+
+    StopWatch topWatch = new StopWatch("fuzzy top 50");
+    int topMatches = trie.doFuzzyMatch(true, "chrbrvi", 50).size();
+    topWatch.stop();
+
+    StopWatch typedWatch = new StopWatch("fuzzy typed");
+    Trie<String>.FuzzyFrontier frontier = trie.startFuzzyMatch(true);
+    StringBuilder steps = new StringBuilder();
+    for (char c : "chrbrvi".toCharArray()) {
+      StopWatch stepWatch = new StopWatch();
+      frontier = frontier.extend(c);
+      frontier.getMatches(50);
+      steps.append(" ").append(stepWatch.getElapsedTime()).append("ms");
+    }
+    typedWatch.stop();
+
+    System.out.println(pathCount + " paths");
+    System.out.println("index: " + (built - before) / 1024 + "KB");
+    System.out.println(buildWatch);
+    System.out.println(completeWatch + " (" + completions + " completions)");
+    System.out.println(fuzzyWatch + " (" + fuzzyMatches + " matches)");
+    System.out.println(topWatch + " (" + topMatches + " matches)");
+    System.out.println(typedWatch + " (per character:" + steps + ")");
+    System.out.println(trie.getCompletions("", "").size() + " keys");
+  }
+}
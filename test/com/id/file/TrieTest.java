@@ -1,9 +1,15 @@
 package com.id.file;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -56,4 +62,114 @@ public class TrieTest {
     assertEquals(1, matches.size());
     assertEquals(phr_cc, matches.get(0));
   }
+
+  @Test
+  public void completionsFollowSplitEdges() {
+    Trie<String> trie = new Trie<String>();
+    trie.add("abcd", "abcd");
+    trie.add("abxy", "abxy");
+    trie.add("ab", "ab");
+    assertEquals(Arrays.asList("ab", "abcd", "abxy"), trie.getCompletions("", "a"));
+    assertEquals(Arrays.asList("abcd"), trie.getCompletions("", "abc"));
+    assertTrue(trie.getCompletions("", "abd").isEmpty());
+    assertEquals("ab", trie.getCompletion("", "a"));
+    assertEquals("abcd", trie.getCompletion("", "abc"));
+    assertEquals("ab", trie.getCompletion("", "abz"));
+    assertFalse(trie.remove("abxy", "abxy"));
+    assertEquals("abcd", trie.getCompletion("", "a"));
+    trie.remove("ab", "ab");
+    assertTrue(trie.remove("abcd", "abcd"));
+  }
+
+  @Test
+  public void matchesListOfKeys() {
+    Random random = new Random(3);
+    Trie<String> trie = new Trie<String>();
+    List<String> keys = new ArrayList<String>();
+    for (int i = 0; i < 3000; i++) {
+      StringBuilder key = new StringBuilder();
+      for (int j = random.nextInt(6); j > 0; j--) {
+        key.append((char) ('a' + random.nextInt(3)));
+      }
+      if (random.nextInt(3) == 0 && !keys.isEmpty()) {
+        String removed = keys.remove(random.nextInt(keys.size()));
+        trie.remove(removed, removed);
+      } else {
+        keys.add(key.toString());
+        trie.add(key.toString(), key.toString());
+      }
+      String query = key.substring(0, key.length() / 2);
+      List<String> expected = new ArrayList<String>();
+      for (String k : keys) {
+        if (k.startsWith(query)) {
+          expected.add(k);
+        }
+      }
+      Collections.sort(expected);
+      assertEquals(expected, trie.getCompletions("", query));
+    }
+  }
+
+  @Test
+  public void fuzzyMatchesComeBestFirst() {
+    Trie<String> trie = new Trie<String>();
+    for (String key : Arrays.asList("XYZab", "Xab", "ab")) {
+      trie.add(key, key);
+    }
+    assertEquals(Arrays.asList("ab", "Xab", "XYZab"), trie.doFuzzyMatch(true, "", "ab"));
+    assertEquals(Arrays.asList("ab", "Xab"), trie.doFuzzyMatch(true, "ab", 2));
+  }
+
+  @Test
+  public void boundedFuzzyMatchesArePrefixes() {
+    Random random = new Random(5);
+    Trie<String> trie = new Trie<String>();
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder key = new StringBuilder();
+      for (int j = 1 + random.nextInt(8); j > 0; j--) {
+        key.append("abAB_".charAt(random.nextInt(5)));
+      }
+      trie.add(key.toString(), key.toString());
+    }
+    for (String query : Arrays.asList("a", "ab", "AB", "aBa", "b_a")) {
+      List<String> all = trie.doFuzzyMatch(true, "", query);
+      for (int max : new int[] { 0, 1, 10, 100, all.size() + 1 }) {
+        assertEquals(all.subList(0, Math.min(max, all.size())),
+            trie.doFuzzyMatch(true, query, max));
+      }
+    }
+  }
+
+  @Test
+  public void frontiersMatchLikeWholeQueries() {
+    Random random = new Random(7);
+    Trie<String> trie = new Trie<String>();
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder key = new StringBuilder();
+      for (int j = 1 + random.nextInt(8); j > 0; j--) {
+        key.append("abAB_".charAt(random.nextInt(5)));
+      }
+      trie.add(key.toString(), key.toString());
+    }
+    for (String query : Arrays.asList("a", "ab", "AB", "aBa", "b_a", "BBBBBBBBB")) {
+      Trie<String>.FuzzyFrontier frontier = trie.startFuzzyMatch(true);
+      for (int i = 0; i < query.length(); i++) {
+        frontier = frontier.extend(query.charAt(i));
+      }
+      List<String> all = frontier.getMatches(Integer.MAX_VALUE);
+      assertEquals(new HashSet<String>(trie.doFuzzyMatch(true, "", query)),
+          new HashSet<String>(all));
+      assertEquals(all.subList(0, Math.min(10, all.size())), frontier.getMatches(10));
+    }
+  }
+
+  @Test
+  public void frontiersComeBestFirst() {
+    Trie<String> trie = new Trie<String>();
+    for (String key : Arrays.asList("XYZab", "Xab", "ab")) {
+      trie.add(key, key);
+    }
+    Trie<String>.FuzzyFrontier frontier = trie.startFuzzyMatch(true).extend('a').extend('b');
+    assertEquals(Arrays.asList("ab", "Xab", "XYZab"), frontier.getMatches(3));
+  }
 }
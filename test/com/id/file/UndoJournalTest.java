@@ -0,0 +1,97 @@
+package com.id.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.id.editor.Point;
+import com.id.platform.InMemoryFileSystem;
+
+public class UndoJournalTest {
+  private java.io.File journalFile;
+  private InMemoryFileSystem fileSystem;
+
+  @Before
+  public void setup() throws IOException {
+    journalFile = java.io.File.createTempFile("journal", ".undo");
+    journalFile.delete();
+    journalFile.deleteOnExit();
+    fileSystem = new InMemoryFileSystem();
+  }
+
+  private File open(String... lines) throws IOException {
+    File file = new File(lines);
+    file.setFilename("a");
+    file.setUndoJournal(UndoJournal.open(journalFile, file.getContentHash()));
+    return file;
+  }
+
+  private void change(File file, int y, String line) {
+    file.startPatchAt(new Point(y, 0));
+    file.changeLine(y, line);
+    file.breakPatch();
+  }
+
+  @Test
+  public void historySurvivesReopening() throws IOException {
+    File file = open("a");
+    change(file, 0, "b");
+    change(file, 0, "c");
+    file.save(fileSystem);
+
+    File reopened = open("c");
+    assertFalse(reopened.isModified());
+    assertTrue(reopened.hasUndo());
+    reopened.undo();
+    assertEquals("b", reopened.getLine(0));
+    reopened.undo();
+    assertEquals("a", reopened.getLine(0));
+    assertFalse(reopened.hasUndo());
+    reopened.redo();
+    reopened.redo();
+    assertEquals("c", reopened.getLine(0));
+    assertFalse(reopened.isModified());
+  }
+
+  @Test
+  public void redoSurvivesReopening() throws IOException {
+    File file = open("a");
+    change(file, 0, "b");
+    file.undo();
+    file.save(fileSystem);
+
+    File reopened = open("a");
+    assertFalse(reopened.hasUndo());
+    reopened.redo();
+    assertEquals("b", reopened.getLine(0));
+  }
+
+  @Test
+  public void unsavedChangesAreDropped() throws IOException {
+    File file = open("a");
+    change(file, 0, "b");
+    file.save(fileSystem);
+    change(file, 0, "c");
+
+    File reopened = open("b");
+    reopened.undo();
+    assertEquals("a", reopened.getLine(0));
+  }
+
+  @Test
+  public void historyIsDroppedWhenFileChangedElsewhere() throws IOException {
+    File file = open("a");
+    change(file, 0, "b");
+    file.save(fileSystem);
+
+    File reopened = open("something else");
+    assertFalse(reopened.hasUndo());
+    assertEquals(Arrays.asList("something else"), reopened.getLineList());
+  }
+}
@@ -0,0 +1,105 @@
+package com.id.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ViewRegistryTest {
+  @Test
+  public void onlyOverlappingViewsAreTold() {
+    File file = new File("a", "b", "c", "d", "e", "f");
+    File.Listener top = mock(File.Listener.class);
+    File.Listener bottom = mock(File.Listener.class);
+    file.registerView(top, 0, 1);
+    file.registerView(bottom, 4, 5);
+    file.changeLine(5, "x");
+    verify(top, never()).onLineChanged(anyInt(), anyString(), anyString());
+    verify(bottom).onLineChanged(5, "f", "x");
+  }
+
+  @Test
+  public void viewsBelowAnEditMove() {
+    File file = new File("a", "b", "c", "d", "e", "f");
+    ViewRegistry.Entry entry = file.registerView(mock(File.Listener.class), 3, 4);
+    file.removeLines(0, 2);
+    assertEquals(1, entry.getStart());
+    assertEquals(2, entry.getEnd());
+    file.insertLine(0, "z");
+    assertEquals(2, entry.getStart());
+    assertEquals(3, entry.getEnd());
+  }
+
+  @Test
+  public void closedViewsLeaveTheFile() {
+    File file = new File("a", "b", "c");
+    FileView view = new FileView(file, 0, 1);
+    assertEquals(1, file.getViewCount());
+    view.close();
+    view.close();
+    assertEquals(0, file.getViewCount());
+    file.insertLine(0, "z");
+    assertEquals(new Range(0, 1), view.getRange());
+  }
+
+  @Test
+  public void matchesShiftingEveryView() {
+    Random random = new Random(1);
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      lines.add("line " + i);
+    }
+    File file = new File(lines);
+    List<FileView> views = new ArrayList<FileView>();
+    List<int[]> expected = new ArrayList<int[]>();
+    for (int i = 0; i < 30; i++) {
+      int start = random.nextInt(100);
+      int end = Math.min(99, start + random.nextInt(10));
+      views.add(new FileView(file, start, end));
+      expected.add(new int[] { start, end });
+    }
+    for (int i = 0; i < 2000; i++) {
+      if (random.nextBoolean() || file.getLineCount() < 10) {
+        int y = random.nextInt(file.getLineCount() + 1);
+        file.insertLine(y, "new " + i);
+        for (int[] range : expected) {
+          if (y < range[0]) {
+            range[0]++;
+            range[1]++;
+          } else if (y <= range[1] + 1) {
+            range[1]++;
+          }
+        }
+      } else {
+        int y = random.nextInt(file.getLineCount());
+        file.removeLine(y);
+        for (int[] range : expected) {
+          if (y < range[0]) {
+            range[0]--;
+            range[1]--;
+          } else if (y <= range[1]) {
+            range[1]--;
+          }
+        }
+      }
+      if (i % 100 == 0) {
+        int closed = random.nextInt(views.size());
+        views.remove(closed).close();
+        expected.remove(closed);
+      }
+      for (int j = 0; j < views.size(); j++) {
+        assertEquals(new Range(expected.get(j)[0], expected.get(j)[1]),
+            views.get(j).getRange());
+      }
+    }
+    assertEquals(views.size(), file.getViewCount());
+  }
+}
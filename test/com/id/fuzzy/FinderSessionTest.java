@@ -0,0 +1,51 @@
+package com.id.fuzzy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.id.file.File;
+
+public class FinderSessionTest {
+  @Test
+  public void fuzzySessionsFollowTypingAndDeleting() {
+    File file = new File("src/FooBar.java", "src/FooBaz.java", "src/Quux.java");
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file);
+    FinderDriver.Session session = driver.startSession();
+    for (String query : Arrays.asList("F", "FB", "FBr", "FB", "F", "Q", "Qx", "")) {
+      assertEquals(query, driver.getMatches(query, 10), session.getMatches(query, 10));
+    }
+  }
+
+  @Test
+  public void fuzzySessionsSeeChanges() {
+    File file = new File("src/FooBar.java");
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file);
+    FinderDriver.Session session = driver.startSession();
+    assertTrue(session.getMatches("Q", 10).isEmpty());
+    file.insertLine(1, "src/Quux.java");
+    assertEquals(Arrays.asList("src/Quux.java"), session.getMatches("Q", 10));
+  }
+
+  @Test
+  public void substringSessionsNarrow() {
+    SubstringFinderDriver driver = new SubstringFinderDriver(
+        Arrays.asList("abc", "abd", "xbc", "a.c"));
+    FinderDriver.Session session = driver.startSession();
+    assertEquals(Arrays.asList("abc", "abd"), session.getMatches("ab", 10));
+    assertEquals(Arrays.asList("abc"), session.getMatches("abc", 10));
+    assertEquals(Arrays.asList("abc", "abd"), session.getMatches("ab", 10));
+    assertEquals(Arrays.asList("abc", "a.c"), session.getMatches("a.c", 10));
+    assertEquals(Arrays.asList("abc", "abd", "a.c"), session.getMatches("a.c|abd", 10));
+    assertEquals(Arrays.asList("abc"), session.getMatches("bc", 1));
+  }
+
+  @Test
+  public void substringDriversOverFixedLines() {
+    SubstringFinderDriver driver = new SubstringFinderDriver(Arrays.asList("abc", "xbc"));
+    assertEquals(Arrays.asList("abc", "xbc"), driver.getMatches("bc", 10));
+  }
+}
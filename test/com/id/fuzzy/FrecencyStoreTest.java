@@ -0,0 +1,81 @@
+package com.id.fuzzy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FrecencyStoreTest {
+  private static final long DAY = 24 * 60 * 60 * 1000;
+
+  private static java.io.File makeLog() throws IOException {
+    java.io.File log = java.io.File.createTempFile("frecency", "");
+    log.delete();
+    log.deleteOnExit();
+    return log;
+  }
+
+  @Test
+  public void picksDecay() {
+    FrecencyStore store = new FrecencyStore();
+    store.record("a", 0);
+    store.record("a", 0);
+    assertEquals(2, store.getFrecency("a", 0), 1e-9);
+    assertEquals(1, store.getFrecency("a", FrecencyStore.HALF_LIFE_MILLIS), 1e-9);
+    store.record("a", FrecencyStore.HALF_LIFE_MILLIS);
+    assertEquals(2, store.getFrecency("a", FrecencyStore.HALF_LIFE_MILLIS), 1e-9);
+    assertEquals(0, store.getFrecency("b", 0), 0);
+  }
+
+  @Test
+  public void logIsReadBack() throws IOException {
+    java.io.File log = makeLog();
+    FrecencyStore store = new FrecencyStore(log);
+    store.record("src/a b.java", DAY);
+    store.record("src/a b.java", DAY);
+    store.record("c", 2 * DAY);
+    FileWriter writer = new FileWriter(log, true);
+    writer.write("12");
+    writer.close();
+    FrecencyStore reread = new FrecencyStore(log);
+    assertEquals(store.getFrecency("src/a b.java", 3 * DAY),
+        reread.getFrecency("src/a b.java", 3 * DAY), 1e-9);
+    assertEquals(store.getFrecency("c", 3 * DAY), reread.getFrecency("c", 3 * DAY), 1e-9);
+    assertEquals(2, reread.getItems().size());
+  }
+
+  @Test
+  public void linesCutShortAreSkipped() throws IOException {
+    java.io.File log = makeLog();
+    FrecencyStore store = new FrecencyStore(log);
+    store.record("a", DAY);
+    FileWriter writer = new FileWriter(log, true);
+    writer.write(DAY + " 1.0 src/cut");
+    writer.close();
+    store.record("b", DAY);
+    FrecencyStore reread = new FrecencyStore(log);
+    assertEquals(1, reread.getFrecency("a", DAY), 1e-9);
+    assertEquals(1, reread.getFrecency("b", DAY), 1e-9);
+    assertEquals(2, reread.getItems().size());
+  }
+
+  @Test
+  public void logIsCompacted() throws IOException {
+    java.io.File log = makeLog();
+    FrecencyStore store = new FrecencyStore(log);
+    store.record("old", 0);
+    for (int i = 0; i < 1000; i++) {
+      store.record("new", 100 * FrecencyStore.HALF_LIFE_MILLIS + i);
+    }
+    assertTrue(store.getLogLineCount() < 100);
+    assertEquals(Arrays.asList("new"), store.getItems());
+    FrecencyStore reread = new FrecencyStore(log);
+    assertEquals(Arrays.asList("new"), reread.getItems());
+    long now = 100 * FrecencyStore.HALF_LIFE_MILLIS + 1000;
+    assertEquals(store.getFrecency("new", now), reread.getFrecency("new", now), 1e-6);
+  }
+}
@@ -0,0 +1,140 @@
+package com.id.fuzzy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import com.id.file.File;
+
+public class FuzzyFinderDriverTest {
+  @Test
+  public void changedLinesLeaveNothingBehind() {
+    File file = new File("src/a/Foo.java", "src/b/Bar.java");
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file);
+    file.changeLine(0, "src/a/Baz.java");
+    assertTrue(driver.getMatches("Foo", 10).isEmpty());
+    assertEquals(Arrays.asList("src/a/Baz.java"), driver.getMatches("Baz", 10));
+    assertTrue(driver.findIndexDifferences(file).isEmpty());
+  }
+
+  @Test
+  public void indexKeepsUpWithRandomEdits() {
+    Random random = new Random(13);
+    File file = new File();
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file);
+    for (int i = 0; i < 2000; i++) {
+      FuzzyIndexChecker.applyRandomEdit(random, file);
+    }
+    assertEquals("[]", driver.findIndexDifferences(file).toString());
+  }
+
+  @Test
+  public void pickedFilesRankHigher() {
+    File file = new File("src/FooBar.java", "src/FooBaz.java", "test/FooBaz.java");
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file);
+    FrecencyStore frecency = new FrecencyStore();
+    driver.setFrecencyStore(frecency);
+    assertEquals("src/FooBar.java", driver.getMatches("FB", 10).get(0));
+    driver.onItemSelected("test/FooBaz.java");
+    assertEquals(Arrays.asList("test/FooBaz.java", "src/FooBar.java", "src/FooBaz.java"),
+        driver.getMatches("FB", 10));
+    assertEquals(Arrays.asList("test/FooBaz.java"), driver.getMatches("", 1));
+    assertEquals(Arrays.asList("test/FooBaz.java", "src/FooBar.java"),
+        driver.startSession().getMatches("FB", 2));
+    assertEquals(Arrays.asList("src/FooBar.java"), driver.getMatches("FBr", 10));
+
+    file.removeLine(2);
+    assertEquals(Arrays.asList("src/FooBar.java", "src/FooBaz.java"),
+        driver.getMatches("FB", 10));
+  }
+
+  private static class QueuedExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    public void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private final QueuedExecutor executor = new QueuedExecutor();
+
+  private FuzzyFinderDriver openSaved(File file, java.io.File source, java.io.File index) {
+    return FuzzyFinderDriver.openSaved(file, source, index, executor, executor);
+  }
+
+  private static java.io.File makeSource() throws IOException {
+    java.io.File source = java.io.File.createTempFile("files", "");
+    source.deleteOnExit();
+    return source;
+  }
+
+  private static java.io.File makeIndex() throws IOException {
+    java.io.File index = java.io.File.createTempFile("files", ".index");
+    index.delete();
+    index.deleteOnExit();
+    return index;
+  }
+
+  @Test
+  public void savedIndexIsUsedUntilTheSourceChanges() throws IOException {
+    java.io.File source = makeSource();
+    java.io.File index = makeIndex();
+    File file = new File("src/a/Foo.java", "src/b/Bar.java");
+    FuzzyFinderDriver driver = openSaved(file, source, index);
+    assertTrue(driver.getMatches("Foo", 10).isEmpty());
+    executor.runAll();
+    assertTrue(index.exists());
+    assertFalse(driver.isUsingMappedIndex());
+    assertEquals(Arrays.asList("src/a/Foo.java"), driver.getMatches("Foo", 10));
+
+    driver = openSaved(new File("src/a/Foo.java", "src/b/Bar.java"), source, index);
+    assertTrue(driver.isUsingMappedIndex());
+    assertEquals(Arrays.asList("src/b/Bar.java"), driver.getMatches("Bar", 10));
+    assertEquals(Arrays.asList("src/b/Bar.java"),
+        driver.startSession().getMatches("Bar", 10));
+    executor.runAll();
+    assertTrue(driver.isUsingMappedIndex());
+
+    driver = openSaved(new File("src/a/Foo.java", "src/c/Baz.java"), source, index);
+    assertTrue(driver.isUsingMappedIndex());
+    executor.runAll();
+    assertFalse(driver.isUsingMappedIndex());
+    assertEquals(Arrays.asList("src/c/Baz.java"), driver.getMatches("Baz", 10));
+  }
+
+  @Test
+  public void editsToAMappedIndexRebuildIt() throws IOException {
+    java.io.File source = makeSource();
+    java.io.File index = makeIndex();
+    openSaved(new File("src/a/Foo.java"), source, index);
+    executor.runAll();
+
+    File file = new File("src/a/Foo.java");
+    FuzzyFinderDriver driver = openSaved(file, source, index);
+    FinderDriver.Session session = driver.startSession();
+    file.insertLine(1, "src/b/Bar.java");
+    assertTrue(driver.isUsingMappedIndex());
+    file.changeLine(0, "src/a/Qux.java");
+    executor.runAll();
+    assertFalse(driver.isUsingMappedIndex());
+    assertEquals(Arrays.asList("src/b/Bar.java"), session.getMatches("Bar", 10));
+    assertTrue(session.getMatches("Foo", 10).isEmpty());
+    assertTrue(driver.findIndexDifferences(file).isEmpty());
+  }
+}
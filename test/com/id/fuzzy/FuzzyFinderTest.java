@@ -7,7 +7,15 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -48,6 +56,135 @@ public class FuzzyFinderTest {
     assertEquals(1, fuzzyFinder.getMatches().size());
   }
 
+  @Test
+  public void matchesAreLimited() {
+    fuzzyFinder.setQuery("chrome");
+    fuzzyFinder.setMaxMatches(1);
+    assertEquals(1, fuzzyFinder.getMatches().size());
+  }
+
+  @Test
+  public void picksAreRemembered() {
+    File file = new File("src/browser/ui/chrome.h", "src/browser/ui/chrome.cc");
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file);
+    FrecencyStore frecency = new FrecencyStore();
+    driver.setFrecencyStore(frecency);
+    fuzzyFinder.runFindAction(driver, selectionListener);
+    fuzzyFinder.setQuery("chrome");
+    assertEquals("src/browser/ui/chrome.cc", fuzzyFinder.getMatches().get(0));
+    fuzzyFinder.moveSelectionDown();
+    fuzzyFinder.selectCurrentItem();
+    verify(selectionListener).onItemSelected("src/browser/ui/chrome.h");
+    assertTrue(frecency.getFrecency("src/browser/ui/chrome.h") > 0);
+    fuzzyFinder.runFindAction(driver, selectionListener);
+    fuzzyFinder.setQuery("chrome");
+    assertEquals("src/browser/ui/chrome.h", fuzzyFinder.getMatches().get(0));
+  }
+
+  @Test
+  public void matchesArriveAsShardsFinish() throws InterruptedException {
+    String[] filenames = new String[40];
+    for (int i = 0; i < filenames.length; i++) {
+      filenames[i] = "x" + i;
+    }
+    File file = new File(filenames);
+    fuzzyFinder = new Finder(file);
+    fuzzyFinder.runFindAction(new FuzzyFinderDriver(file, new ShardedFuzzyIndex(4)),
+        selectionListener);
+    ExecutorService matchExecutor = Executors.newSingleThreadExecutor();
+    List<Runnable> uiTasks = new ArrayList<Runnable>();
+    fuzzyFinder.setExecutors(matchExecutor, queueExecutor(uiTasks));
+    final List<Integer> matchCounts = new ArrayList<Integer>();
+    fuzzyFinder.addListener(new Finder.Listener() {
+      @Override
+      public void onMatchesChanged(List<String> items) {
+        matchCounts.add(items.size());
+      }
+
+      @Override
+      public void onSetVisible(boolean visible) {
+      }
+
+      @Override
+      public void onSelectionChanged(int selectedIndex) {
+      }
+    });
+    fuzzyFinder.handleKeyStroke(KeyStroke.fromChar('x'));
+    matchExecutor.shutdown();
+    matchExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    for (Runnable task : uiTasks) {
+      task.run();
+    }
+    // One batch per shard, then all of them.
+    assertEquals(5, matchCounts.size());
+    assertTrue(matchCounts.get(0) < 40);
+    assertEquals(40, (int) matchCounts.get(4));
+    assertEquals(40, fuzzyFinder.getMatches().size());
+    assertEquals(1, fuzzyFinder.getLatencyHistogram().getCount(1));
+  }
+
+  @Test
+  public void newerQueriesCancelOlderOnes() throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    FinderDriver driver = new FinderDriver() {
+      @Override
+      public List<String> getMatches(String query, int maxMatches) {
+        return Arrays.asList(query);
+      }
+
+      @Override
+      public Session startSession() {
+        return new Session() {
+          @Override
+          public List<String> getMatches(String query, int maxMatches) {
+            return getMatches(query, maxMatches, null);
+          }
+
+          @Override
+          public List<String> getMatches(String query, int maxMatches, Sink sink) {
+            if (query.equals("s")) {
+              started.countDown();
+              try {
+                new CountDownLatch(1).await();
+              } catch (InterruptedException e) {
+                throw new CancellationException();
+              }
+            }
+            return Arrays.asList(query);
+          }
+        };
+      }
+
+      @Override
+      public void onItemSelected(String item) {
+      }
+    };
+    fuzzyFinder.runFindAction(driver, selectionListener);
+    ExecutorService matchExecutor = Executors.newSingleThreadExecutor();
+    List<Runnable> uiTasks = new ArrayList<Runnable>();
+    fuzzyFinder.setExecutors(matchExecutor, queueExecutor(uiTasks));
+    fuzzyFinder.setQuery("s");
+    started.await();
+    fuzzyFinder.setQuery("fast");
+    matchExecutor.shutdown();
+    matchExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    for (Runnable task : uiTasks) {
+      task.run();
+    }
+    assertEquals(Arrays.asList("fast"), fuzzyFinder.getMatches());
+    assertEquals(0, fuzzyFinder.getLatencyHistogram().getCount(1));
+    assertEquals(1, fuzzyFinder.getLatencyHistogram().getCount(4));
+  }
+
+  private static Executor queueExecutor(final List<Runnable> tasks) {
+    return new Executor() {
+      @Override
+      public synchronized void execute(Runnable command) {
+        tasks.add(command);
+      }
+    };
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void sendsQueryChanged() {
@@ -0,0 +1,93 @@
+package com.id.fuzzy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.perf4j.StopWatch;
+
+import com.id.file.File;
+import com.id.file.TrieBenchmark;
+
+/**
+ * Edits a .files list at random, checks the index a {@link FuzzyFinderDriver}
+ * keeps for it against one rebuilt from scratch, and reports the size of
+ * both. Run with the number of paths and of edits as arguments.
+ */
+public class FuzzyIndexChecker {
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Inserts, removes, changes or replaces a random line of the file.
+   */
+  public static void applyRandomEdit(Random random, File file) {
+    int lineCount = file.getLineCount();
+    int y = random.nextInt(lineCount + 1);
+    switch (lineCount == 0 ? 0 : random.nextInt(4)) {
+      case 0:
+        file.insertLine(y, TrieBenchmark.makePath(random));
+        break;
+      case 1:
+        file.removeLine(Math.min(y, lineCount - 1));
+        break;
+      case 2:
+        // Sometimes duplicate a line, since .files can hold the same path twice.
+        String line = random.nextInt(10) == 0
+            ? file.getLine(random.nextInt(lineCount)) : TrieBenchmark.makePath(random);
+        file.changeLine(Math.min(y, lineCount - 1), line);
+        break;
+      default:
+        int removed = Math.min(random.nextInt(4), lineCount - Math.min(y, lineCount - 1));
+        List<String> inserted = new ArrayList<String>();
+        for (int i = random.nextInt(4); i > 0; i--) {
+          inserted.add(TrieBenchmark.makePath(random));
+        }
+        file.replaceLines(Math.min(y, lineCount - 1), removed, inserted);
+        break;
+    }
+  }
+
+  public static void main(String[] args) {
+    int pathCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int editCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    Random random = new Random(0);
+    List<String> paths = new ArrayList<String>(pathCount);
+    for (int i = 0; i < pathCount; i++) {
+      paths.add(TrieBenchmark.makePath(random));
+    }
+    File file = new File(paths);
+    long before = usedMemory();
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file);
+    StopWatch editWatch = new StopWatch("edits");
+    for (int i = 0; i < editCount; i++) {
+      applyRandomEdit(random, file);
+    }
+    editWatch.stop();
+    long maintained = usedMemory();
+
+    StopWatch checkWatch = new StopWatch("check");
+    List<String> differences = driver.findIndexDifferences(file);
+    checkWatch.stop();
+    FuzzyFinderDriver rebuilt = new FuzzyFinderDriver(new File(file.getLineList()));
+    long afterRebuild = usedMemory();
+
+    System.out.println(editCount + " edits on " + pathCount + " paths, "
+        + file.getLineCount() + " left");
+    System.out.println(editWatch);
+    System.out.println(checkWatch);
+    System.out.println("maintained: " + driver.getIndex().getNodeCount() + " nodes, "
+        + (maintained - before) / 1024 + "KB with the file's undo history");
+    System.out.println("rebuilt: " + rebuilt.getIndex().getNodeCount() + " nodes, "
+        + (afterRebuild - maintained) / 1024 + "KB");
+    System.out.println(differences.size() + " differences");
+    for (int i = 0; i < differences.size() && i < 20; i++) {
+      System.out.println("  " + differences.get(i));
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.id.fuzzy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.perf4j.StopWatch;
+
+import com.id.file.File;
+import com.id.file.Trie;
+import com.id.file.TrieBenchmark;
+
+/**
+ * Compares fuzzy matching whole paths with a {@link PackedFuzzyFinderDriver}
+ * and with a {@link Trie} keyed by the paths. Run with the number of paths as
+ * the only argument.
+ */
+public class PackedFuzzyFinderDriverBenchmark {
+  public static void main(String[] args) {
+    int pathCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    Random random = new Random(0);
+    List<String> paths = new ArrayList<String>(pathCount);
+    for (int i = 0; i < pathCount; i++) {
+      paths.add(TrieBenchmark.makePath(random));
+    }
+
+    StopWatch trieBuildWatch = new StopWatch("trie build");
+    Trie<String> trie = new Trie<String>();
+    for (String path : paths) {
+      trie.add(path, path);
+    }
+    trieBuildWatch.stop();
+    System.out.println(trieBuildWatch);
+
+    StopWatch packedBuildWatch = new StopWatch("packed build");
+    PackedFuzzyFinderDriver driver = new PackedFuzzyFinderDriver(new File(paths));
+    packedBuildWatch.stop();
+    System.out.println(packedBuildWatch);
+
+    for (String query : Arrays.asList("qzwvk", "chrbrvi", "abc", "x_y")) {
+      // The first round warms up both.
+      for (int round = 0; round < 2; round++) {
+        StopWatch trieWatch = new StopWatch("trie top 50 " + query);
+        int trieMatches = trie.doFuzzyMatch(true, query, 50).size();
+        trieWatch.stop();
+        StopWatch packedWatch = new StopWatch("packed top 50 " + query);
+        int packedMatches = driver.getMatches(query, 50).size();
+        packedWatch.stop();
+        if (round == 1) {
+          System.out.println(trieWatch + " (" + trieMatches + " matches)");
+          System.out.println(packedWatch + " (" + packedMatches + " matches)");
+        }
+      }
+    }
+  }
+}
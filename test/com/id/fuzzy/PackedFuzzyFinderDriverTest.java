@@ -0,0 +1,35 @@
+package com.id.fuzzy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.id.file.File;
+
+public class PackedFuzzyFinderDriverTest {
+  private final PackedFuzzyFinderDriver driver = new PackedFuzzyFinderDriver(
+      new File("src/FooBar.java", "src/foo_bar.py", "README", "src/FooBaz.java"));
+
+  @Test
+  public void bestMatchesComeFirst() {
+    assertEquals(Arrays.asList("src/foo_bar.py", "src/FooBar.java", "src/FooBaz.java"),
+        driver.getMatches("B", 10));
+    assertEquals(Arrays.asList("src/foo_bar.py"), driver.getMatches("B", 1));
+    assertEquals(Arrays.asList("src/FooBaz.java"), driver.getMatches("FBz", 10));
+    assertTrue(driver.getMatches("xyz", 10).isEmpty());
+    assertEquals(4, driver.getMatches("", 10).size());
+  }
+
+  @Test
+  public void sessionsMatchLikeTheDriver() {
+    FinderDriver.Session session = driver.startSession();
+    for (String query : Arrays.asList("F", "FB", "FBz", "FB", "", "R", "src", "s")) {
+      for (int max : new int[] { 0, 1, 2, 10 }) {
+        assertEquals(query, driver.getMatches(query, max), session.getMatches(query, max));
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.id.fuzzy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.perf4j.StopWatch;
+
+import com.id.file.File;
+import com.id.file.MappedTrie;
+import com.id.file.Trie;
+import com.id.file.TrieBenchmark;
+
+/**
+ * Compares the file finder's startup when it builds its index with opening an
+ * index saved in a {@link MappedTrie}, and the first queries on each. Run with
+ * the number of paths as the only argument.
+ */
+public class SavedFuzzyIndexBenchmark {
+  public static void main(String[] args) throws IOException {
+    int pathCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    Random random = new Random(0);
+    List<String> paths = new ArrayList<String>(pathCount);
+    for (int i = 0; i < pathCount; i++) {
+      paths.add(TrieBenchmark.makePath(random));
+    }
+    File file = new File(paths);
+
+    StopWatch buildWatch = new StopWatch("build");
+    FuzzyFinderDriver driver = new FuzzyFinderDriver(file);
+    buildWatch.stop();
+    System.out.println(buildWatch);
+
+    java.io.File indexFile = java.io.File.createTempFile("files", ".index");
+    indexFile.deleteOnExit();
+    StopWatch writeWatch = new StopWatch("write");
+    MappedTrie.write(driver.getIndex().getEntries(), 0, 0, 0, indexFile);
+    writeWatch.stop();
+    System.out.println(writeWatch + " (" + indexFile.length() + " bytes)");
+
+    StopWatch openWatch = new StopWatch("open");
+    MappedTrie mapped = MappedTrie.open(indexFile);
+    openWatch.stop();
+    System.out.println(openWatch);
+
+    for (String query : Arrays.asList("qzwvk", "abc", "x_y")) {
+      StopWatch heapWatch = new StopWatch("built top 50 " + query);
+      int matches = driver.getMatches(query, 50).size();
+      heapWatch.stop();
+      System.out.println(heapWatch + " (" + matches + " matches)");
+      StopWatch mappedWatch = new StopWatch("mapped top 50 " + query);
+      List<Trie.FuzzyMatch> mappedMatches = mapped.doScoredFuzzyMatch(true, query, 50);
+      mappedWatch.stop();
+      System.out.println(mappedWatch + " (" + mappedMatches.size() + " matches)");
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.id.fuzzy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.perf4j.StopWatch;
+
+import com.id.file.TrieBenchmark;
+
+/**
+ * Compares building and querying a {@link ShardedFuzzyIndex} with one shard
+ * and with one per core, or two on a single core machine. Run with the number
+ * of paths as the only argument.
+ */
+public class ShardedFuzzyIndexBenchmark {
+  public static void main(String[] args) {
+    int pathCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    Random random = new Random(0);
+    List<String> paths = new ArrayList<String>(pathCount);
+    List<String> keys = new ArrayList<String>(pathCount);
+    for (int i = 0; i < pathCount; i++) {
+      String path = TrieBenchmark.makePath(random);
+      paths.add(path);
+      keys.add(path.substring(path.lastIndexOf('/') + 1));
+    }
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println(pathCount + " paths, " + cores + " cores");
+    for (int shardCount : new int[] { 1, Math.max(2, cores) }) {
+      StopWatch buildWatch = new StopWatch("build " + shardCount + " shards");
+      ShardedFuzzyIndex index = new ShardedFuzzyIndex(shardCount);
+      index.addAll(keys, paths);
+      buildWatch.stop();
+      System.out.println(buildWatch);
+      for (String query : Arrays.asList("qzwvk", "abc", "x_y")) {
+        StopWatch queryWatch = new StopWatch("top 50 " + query);
+        int matches = index.getMatches(query, 50).size();
+        queryWatch.stop();
+        System.out.println(queryWatch + " (" + matches + " matches)");
+      }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.id.fuzzy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+import com.id.file.Trie;
+
+public class ShardedFuzzyIndexTest {
+  @Test
+  public void matchesLikeOneTrie() {
+    Random random = new Random(11);
+    Trie<String> trie = new Trie<String>();
+    ShardedFuzzyIndex index = new ShardedFuzzyIndex(3);
+    List<String> keys = new ArrayList<String>();
+    List<String> values = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      StringBuilder key = new StringBuilder();
+      for (int j = 1 + random.nextInt(8); j > 0; j--) {
+        key.append("abAB_".charAt(random.nextInt(5)));
+      }
+      keys.add(key.toString());
+      values.add("dir" + i + "/" + key);
+      trie.add(keys.get(i), values.get(i));
+    }
+    index.addAll(keys.subList(0, 500), values.subList(0, 500));
+    for (int i = 500; i < 1000; i++) {
+      index.add(keys.get(i), values.get(i));
+    }
+    for (String query : Arrays.asList("a", "AB", "b_a")) {
+      assertEquals(new HashSet<String>(trie.doFuzzyMatch(true, "", query)),
+          new HashSet<String>(index.getMatches(query, Integer.MAX_VALUE)));
+      List<Trie.FuzzyMatch> best = trie.doScoredFuzzyMatch(true, query, 20);
+      List<String> indexBest = index.getMatches(query, 20);
+      assertEquals(best.size(), indexBest.size());
+      // Ties may come in another order, but the scores must be the same.
+      List<Trie.FuzzyMatch> all = trie.doScoredFuzzyMatch(true, query, Integer.MAX_VALUE);
+      for (int i = 0; i < indexBest.size(); i++) {
+        assertEquals(best.get(i).getScore(), getScore(all, indexBest.get(i)));
+      }
+    }
+    index.remove(keys.get(0), values.get(0));
+    assertTrue(!index.getMatches(keys.get(0), Integer.MAX_VALUE).contains(values.get(0)));
+  }
+
+  private static int getScore(List<Trie.FuzzyMatch> matches, String text) {
+    for (Trie.FuzzyMatch match : matches) {
+      if (match.getText().equals(text)) {
+        return match.getScore();
+      }
+    }
+    throw new IllegalStateException(text);
+  }
+
+  @Test
+  public void interruptedCallersGiveUp() {
+    ShardedFuzzyIndex index = new ShardedFuzzyIndex(2);
+    index.add("a", "a");
+    Thread.currentThread().interrupt();
+    try {
+      index.getMatches("a", 10);
+      fail();
+    } catch (CancellationException e) {
+      // Expected.
+    }
+    assertEquals(Arrays.asList("a"), index.getMatches("a", 10));
+  }
+
+  @Test(timeout = 10000)
+  public void editsDontWaitForBusyShards() throws InterruptedException {
+    ShardedFuzzyIndex index = new ShardedFuzzyIndex(2);
+    final ReentrantLock lock = index.getShardLock("b");
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch edited = new CountDownLatch(1);
+    Thread user = new Thread() {
+      @Override
+      public void run() {
+        lock.lock();
+        locked.countDown();
+        try {
+          edited.await();
+        } catch (InterruptedException e) {
+          // Let go anyway.
+        }
+        lock.unlock();
+      }
+    };
+    user.start();
+    locked.await();
+    index.add("b", "b");
+    index.add("bc", "bc");
+    edited.countDown();
+    user.join();
+    assertEquals(Arrays.asList("b", "bc"), index.getMatches("b", 10));
+  }
+
+  @Test(timeout = 10000)
+  public void addingManyDoesntWaitForBusyShards() throws InterruptedException {
+    ShardedFuzzyIndex index = new ShardedFuzzyIndex(2);
+    final ReentrantLock lock = index.getShardLock("b");
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch edited = new CountDownLatch(1);
+    Thread user = new Thread() {
+      @Override
+      public void run() {
+        lock.lock();
+        locked.countDown();
+        try {
+          edited.await();
+        } catch (InterruptedException e) {
+          // Let go anyway.
+        }
+        lock.unlock();
+      }
+    };
+    user.start();
+    locked.await();
+    List<String> lines = Arrays.asList("b", "bc", "bcd", "bd");
+    index.addAll(lines, lines);
+    edited.countDown();
+    user.join();
+    assertEquals(Arrays.asList("b", "bd", "bc", "bcd"), index.getMatches("b", 10));
+  }
+}
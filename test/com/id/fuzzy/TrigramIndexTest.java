@@ -0,0 +1,76 @@
+package com.id.fuzzy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.id.file.File;
+
+public class TrigramIndexTest {
+  @Test
+  public void findsLinesContainingTheQuery() {
+    TrigramIndex index = new TrigramIndex(Arrays.asList("abcd", "bcde", "xabc", "ab"));
+    assertEquals(Arrays.asList("abcd", "xabc"), index.getMatches("abc", 10));
+    assertEquals(Arrays.asList("abcd", "bcde"), index.getMatches("bcd", 10));
+    assertEquals(Arrays.asList("abcd", "xabc", "ab"), index.getMatches("ab", 10));
+    assertEquals(Arrays.asList("abcd"), index.getMatches("ab", 1));
+    assertTrue(index.getMatches("abcde", 10).isEmpty());
+  }
+
+  @Test
+  public void trigramsMustBeInOrder() {
+    TrigramIndex index = new TrigramIndex(Arrays.asList("bcdxabc"));
+    assertTrue(index.getMatches("abcd", 10).isEmpty());
+  }
+
+  @Test
+  public void repeatedLinesMatchEachTime() {
+    TrigramIndex index = new TrigramIndex(Arrays.asList("foo", "bar", "foo"));
+    assertEquals(Arrays.asList("foo", "foo"), index.getMatches("foo", 10));
+    index.remove("foo");
+    assertEquals(Arrays.asList("foo"), index.getMatches("foo", 10));
+    index.remove("foo");
+    assertTrue(index.getMatches("foo", 10).isEmpty());
+  }
+
+  @Test
+  public void matchesComeInTheOrderLinesWereFirstAdded() {
+    TrigramIndex index = new TrigramIndex(Arrays.asList("foo1", "bar", "foo2", "foo1"));
+    index.remove("bar");
+    index.add("foo0");
+    assertEquals(Arrays.asList("foo1", "foo1", "foo2", "foo0"), index.getMatches("foo", 10));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void removingAMissingLineThrows() {
+    new TrigramIndex(Arrays.asList("foo")).remove("bar");
+  }
+
+  @Test
+  public void followsTheFile() {
+    Random random = new Random(5);
+    File file = new File();
+    TrigramIndex index = new TrigramIndex(file.getLineList());
+    file.addListener(index);
+    for (int i = 0; i < 2000; i++) {
+      FuzzyIndexChecker.applyRandomEdit(random, file);
+    }
+    for (String query : Arrays.asList("a", "ja", "jav", ".java", "src/", "x")) {
+      List<String> expected = new ArrayList<String>();
+      for (String line : file.getLineList()) {
+        if (line.contains(query)) {
+          expected.add(line);
+        }
+      }
+      List<String> actual = index.getMatches(query, Integer.MAX_VALUE);
+      assertEquals(query, expected.size(), actual.size());
+      assertTrue(query, actual.containsAll(expected));
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.id.platform;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MappedLineListTest {
+  private List<String> linesOf(String contents) throws IOException {
+    java.io.File file = java.io.File.createTempFile("mapped", ".txt");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(contents.getBytes("UTF-8"));
+    out.close();
+    return new MappedLineList(file, Charset.forName("UTF-8"));
+  }
+
+  @Test
+  public void emptyFile() throws IOException {
+    assertEquals(0, linesOf("").size());
+  }
+
+  @Test
+  public void trailingNewlineDoesNotAddALine() throws IOException {
+    assertEquals(Arrays.asList("a", "b"), linesOf("a\nb\n"));
+    assertEquals(Arrays.asList("a", "b"), linesOf("a\nb"));
+  }
+
+  @Test
+  public void lineEndings() throws IOException {
+    assertEquals(Arrays.asList("a", "", "b", "c"), linesOf("a\r\n\r\nb\rc"));
+    assertEquals(Arrays.asList("a", ""), linesOf("a\r\r"));
+  }
+
+  @Test
+  public void decodesCharset() throws IOException {
+    assertEquals(Arrays.asList("h\u00e9llo", "w\u00f6rld"), linesOf("h\u00e9llo\nw\u00f6rld\n"));
+  }
+
+  @Test
+  public void detachedListsDontSeeTheFileChange() throws IOException {
+    final java.io.File file = java.io.File.createTempFile("mapped", ".txt");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("a\nb\n".getBytes("UTF-8"));
+    out.close();
+    MappedLineList lines = new MappedLineList(file, Charset.forName("UTF-8"));
+    lines.detach();
+    new FileOutputStream(file).close();
+    assertEquals(Arrays.asList("a", "b"), lines);
+    // The copy is only kept alive by the mapping.
+    assertEquals(0, file.getParentFile().list(new FilenameFilter() {
+      @Override
+      public boolean accept(java.io.File directory, String name) {
+        return name.startsWith(".id-" + file.getName());
+      }
+    }).length);
+  }
+}
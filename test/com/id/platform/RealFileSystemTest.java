@@ -0,0 +1,267 @@
+package com.id.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.id.editor.Point;
+import com.id.file.File;
+
+public class RealFileSystemTest {
+  private java.io.File directory;
+  private RealFileSystem fileSystem;
+
+  @Before
+  public void setup() throws IOException {
+    directory = java.io.File.createTempFile("realfs", "");
+    directory.delete();
+    directory.mkdir();
+    fileSystem = new RealFileSystem(directory);
+    fileSystem.setCharset(Charset.forName("UTF-8"));
+  }
+
+  @After
+  public void teardown() {
+    for (java.io.File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  private void write(String filename, String contents) throws IOException {
+    FileOutputStream out = new FileOutputStream(new java.io.File(directory, filename));
+    out.write(contents.getBytes("UTF-8"));
+    out.close();
+  }
+
+  private String read(String filename) throws IOException {
+    java.io.File file = new java.io.File(directory, filename);
+    byte[] bytes = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    in.read(bytes);
+    in.close();
+    return new String(bytes, "UTF-8");
+  }
+
+  @Test
+  public void savesLinesWithTheirLineBreaks() throws IOException {
+    write("a", "one\r\ntwo\r\n");
+    File file = fileSystem.getFile("a");
+    file.changeLine(1, "deux");
+    file.save(fileSystem);
+    assertEquals("one\r\ndeux\r\n", read("a"));
+  }
+
+  @Test
+  public void savesInTheChosenCharset() throws IOException {
+    fileSystem.save("a", "caf\u00e9", "\u65e5\u672c");
+    assertEquals(Arrays.asList("caf\u00e9", "\u65e5\u672c"),
+        fileSystem.getFile("a").getLineList());
+  }
+
+  @Test
+  public void appendedLinesAreAddedToTheSavedOnes() throws IOException {
+    write("a", "one\ntwo\n");
+    File file = fileSystem.getFile("a");
+    file.insertLine(2, "three");
+    assertEquals(2, file.getAppendOnlyStart());
+    file.save(fileSystem);
+    assertEquals("one\ntwo\nthree\n", read("a"));
+    file.insertLines(3, Arrays.asList("four", "five"));
+    file.save(fileSystem);
+    assertEquals("one\ntwo\nthree\nfour\nfive\n", read("a"));
+    file.changeLine(0, "zero");
+    assertEquals(-1, file.getAppendOnlyStart());
+    file.save(fileSystem);
+    assertEquals("zero\ntwo\nthree\nfour\nfive\n", read("a"));
+  }
+
+  @Test
+  public void failedSaveLeavesTheFileAlone() throws IOException {
+    fileSystem.setCharset(Charset.forName("US-ASCII"));
+    write("a", "one\n");
+    File file = fileSystem.getFile("a");
+    file.startPatchAt(0, 0);
+    file.changeLine(0, "\u00e9");
+    file.breakPatch();
+    try {
+      file.save(fileSystem);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertTrue(file.isModified());
+    assertEquals("one\n", read("a"));
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  @Test
+  public void filesLoadInChunksInTheBackground() throws IOException {
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      contents.append("line ").append(i).append("\r\n");
+    }
+    write("a", contents.toString());
+    final List<Runnable> uiTasks = new ArrayList<Runnable>();
+    fileSystem.setLoadExecutors(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    }, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        uiTasks.add(command);
+      }
+    });
+    File file = fileSystem.getFileAsync("a");
+    assertTrue(file.isLoading());
+    assertEquals(0, file.getLineCount());
+    uiTasks.remove(0).run();
+    assertEquals(128, file.getLineCount());
+    while (!uiTasks.isEmpty()) {
+      uiTasks.remove(0).run();
+    }
+    assertFalse(file.isLoading());
+    assertEquals(1000, file.getLineCount());
+    assertEquals("line 999", file.getLine(999));
+    assertEquals("\r\n", file.getLineSeparator());
+    assertFalse(file.isModified());
+  }
+
+  @Test
+  public void partlyLoadedFilesArentSavedOverTheOriginal() throws IOException {
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      contents.append("line ").append(i).append("\n");
+    }
+    write("a", contents.toString());
+    final List<Runnable> loadTasks = new ArrayList<Runnable>();
+    final List<Runnable> uiTasks = new ArrayList<Runnable>();
+    fileSystem.setLoadExecutors(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        loadTasks.add(command);
+      }
+    }, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        uiTasks.add(command);
+      }
+    });
+    File file = fileSystem.getFileAsync("a");
+    loadTasks.remove(0).run();
+    uiTasks.remove(0).run();
+    assertEquals(128, file.getLineCount());
+    try {
+      file.save(fileSystem);
+      fail();
+    } catch (File.LoadingException e) {
+      // Expected.
+    }
+    assertEquals(contents.toString(), read("a"));
+
+    // A file that can't be read is left read-only once what was read is in.
+    File missing = fileSystem.getFileAsync("a");
+    new java.io.File(directory, "a").delete();
+    loadTasks.remove(0).run();
+    while (!uiTasks.isEmpty()) {
+      uiTasks.remove(0).run();
+    }
+    assertTrue(missing.isLoadFailed());
+    assertFalse(missing.isLoading());
+    try {
+      missing.save(fileSystem);
+      fail();
+    } catch (File.LoadingException e) {
+      // Expected.
+    }
+    assertFalse(new java.io.File(directory, "a").exists());
+  }
+
+  @Test
+  public void savingThroughASymlinkKeepsTheLink() throws IOException {
+    write("real", "one\n");
+    Path link = new java.io.File(directory, "link").toPath();
+    Files.createSymbolicLink(link, new java.io.File(directory, "real").toPath());
+    File file = fileSystem.getFile("link");
+    file.insertLine(1, "two");
+    file.save(fileSystem);
+    assertTrue(Files.isSymbolicLink(link));
+    assertEquals("one\ntwo\n", read("real"));
+    assertEquals(2, directory.list().length);
+  }
+
+  @Test
+  public void savingKeepsHardLinksAndPermissions() throws IOException {
+    write("a", "one\n");
+    Path path = new java.io.File(directory, "a").toPath();
+    Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+    Files.setPosixFilePermissions(path, permissions);
+    File file = fileSystem.getFile("a");
+    file.changeLine(0, "two");
+    file.save(fileSystem);
+    assertEquals(permissions, Files.getPosixFilePermissions(path));
+
+    Files.createLink(new java.io.File(directory, "b").toPath(), path);
+    file.changeLine(0, "three");
+    file.save(fileSystem);
+    assertEquals("three\n", read("b"));
+    assertEquals(2, directory.list().length);
+  }
+
+  @Test
+  public void mappedFilesSurviveBeingSavedInPlace() throws IOException {
+    fileSystem.setMappingThreshold(1);
+    write("a", "one\ntwo\nthree\n");
+    Path path = new java.io.File(directory, "a").toPath();
+    Files.createLink(new java.io.File(directory, "b").toPath(), path);
+    File file = fileSystem.getFile("a");
+    file.changeLine(0, "1");
+    file.save(fileSystem);
+    assertEquals("1\ntwo\nthree\n", read("b"));
+    assertEquals(Arrays.asList("1", "two", "three"), file.getLineList());
+    file.changeLine(2, "3");
+    file.save(fileSystem);
+    assertEquals("1\ntwo\n3\n", read("a"));
+  }
+
+  @Test
+  public void undoHistoryIsKeptUntilTheFileChangesElsewhere() throws IOException {
+    java.io.File journals = new java.io.File(directory, "undo");
+    fileSystem.setUndoJournalDirectory(journals);
+    write("a", "one\n");
+    File file = fileSystem.getFile("a");
+    file.startPatchAt(new Point(0, 0));
+    file.changeLine(0, "two");
+    file.breakPatch();
+    file.save(fileSystem);
+    assertTrue(fileSystem.getFile("a").hasUndo());
+
+    write("a", "three\n");
+    assertFalse(fileSystem.getFile("a").hasUndo());
+    for (java.io.File journal : journals.listFiles()) {
+      journal.delete();
+    }
+    journals.delete();
+  }
+}
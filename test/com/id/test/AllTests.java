@@ -10,6 +10,7 @@ import com.id.editor.CachingHighlightTest;
 import com.id.editor.EditorFileViewTest;
 import com.id.editor.EditorTest;
 import com.id.editor.EditorTypingTest;
+import com.id.editor.HighlightCacheTest;
 import com.id.editor.MinibufferTest;
 import com.id.editor.StackListTest;
 import com.id.editor.VisualTest;
@@ -17,12 +18,27 @@ import com.id.events.KeyStrokeParserTest;
 import com.id.events.KeyStrokeTest;
 import com.id.file.FileTest;
 import com.id.file.FileViewTest;
+import com.id.file.FuzzyScorerTest;
 import com.id.file.GraveyardTest;
+import com.id.file.LineWeightIndexTest;
+import com.id.file.MappedTrieTest;
 import com.id.file.PatchworkTest;
+import com.id.file.PieceTableTest;
+import com.id.file.SparseLineListTest;
 import com.id.file.TokenCounterTest;
 import com.id.file.TrieTest;
+import com.id.file.UndoJournalTest;
+import com.id.file.ViewRegistryTest;
+import com.id.fuzzy.FinderSessionTest;
+import com.id.fuzzy.FrecencyStoreTest;
+import com.id.fuzzy.FuzzyFinderDriverTest;
 import com.id.fuzzy.FuzzyFinderTest;
+import com.id.fuzzy.PackedFuzzyFinderDriverTest;
+import com.id.fuzzy.ShardedFuzzyIndexTest;
+import com.id.fuzzy.TrigramIndexTest;
 import com.id.platform.InMemoryFileSystemTest;
+import com.id.platform.MappedLineListTest;
+import com.id.platform.RealFileSystemTest;
 import com.id.util.UtilTest;
 
 @RunWith(Suite.class)
@@ -33,6 +49,13 @@ import com.id.util.UtilTest;
     ControllerTest.class, KeyStrokeParserTest.class, PatchworkTest.class,
     ListModelTest.class, TokenCounterTest.class, TrieTest.class,
     HighlightStateTest.class, UtilTest.class, StackListTest.class,
-    KeyStrokeTest.class })
+    KeyStrokeTest.class, PieceTableTest.class,
+    MappedLineListTest.class, UndoJournalTest.class,
+    LineWeightIndexTest.class, SparseLineListTest.class, ViewRegistryTest.class,
+    RealFileSystemTest.class, FinderSessionTest.class,
+    ShardedFuzzyIndexTest.class, FuzzyFinderDriverTest.class,
+    MappedTrieTest.class, TrigramIndexTest.class,
+    FuzzyScorerTest.class, PackedFuzzyFinderDriverTest.class,
+    FrecencyStoreTest.class, HighlightCacheTest.class })
 public class AllTests {
 }
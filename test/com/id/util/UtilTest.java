@@ -29,4 +29,17 @@ public class UtilTest {
     Util.walkFiles(fileSystem, ".", walker);
     assertEquals(3, walker.visitedFiles.size());
   }
+
+  @Test
+  public void latencyHistogramBuckets() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(2, 500000);
+    histogram.record(2, 3000000);
+    histogram.record(2, 5000000);
+    histogram.record(2, 100000000);
+    assertEquals(4, histogram.getCount(2));
+    assertEquals(0, histogram.getCount(3));
+    assertEquals(4, histogram.getPercentileMillis(2, 0.5));
+    assertEquals(128, histogram.getPercentileMillis(2, 1));
+  }
 }